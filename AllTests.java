@@ -15,7 +15,9 @@ import org.junit.runners.Suite.SuiteClasses;
  *
  */
 @RunWith(Suite.class)
-@SuiteClasses({ MoneyTest.class, AuctionHouseTest.class })
+@SuiteClasses({ MoneyTest.class, AuctionHouseTest.class, ConcurrencyTest.class,
+        NotificationDispatcherTest.class, JournalTest.class, PaymentRetrierTest.class,
+        HouseMetricsTest.class, TraceTest.class, HouseEventsTest.class })
 public class AllTests {
 
     public static void main(String[] args) {
@@ -4,6 +4,7 @@
 package auctionhouse;
 
 import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * @author pbj
@@ -28,8 +29,59 @@ public interface AuctionHouse {
             String description,
             Money reservePrice);
     
+    /**
+     * Returns the whole catalogue, in lot number order, as a read-only
+     * view that makes each entry as it is reached. It is a sequential list:
+     * iterate over it, or copy it, rather than indexing into it, since get
+     * and size walk the catalogue from the first lot.
+     */
     List<CatalogueEntry> viewCatalogue();
     
+    /**
+     * Returns up to pageSize entries with lot numbers greater than
+     * afterLotNumber, in lot number order, without copying the rest of
+     * the catalogue. hasMore is false once the end has been reached.
+     * 
+     * @param afterLotNumber CataloguePage.START, or the nextCursor of the
+     *        previous page
+     * @param status only entries with this status, or null for all; lots
+     *        in other statuses are not visited
+     */
+    CataloguePage viewCatalogue(
+            int afterLotNumber,
+            int pageSize,
+            LotStatus status);
+    
+    /**
+     * Returns the catalogue as a lazy stream in lot number order. Entries
+     * are produced as the stream is consumed, and reflect lots added or
+     * changed while it is being read.
+     * 
+     * @param status only entries with this status, or null for all; lots
+     *        in other statuses are not visited
+     */
+    Stream<CatalogueEntry> streamCatalogue(LotStatus status);
+    
+    /**
+     * Returns the number of lots with this status, without scanning the
+     * catalogue. While a lot changes status it may briefly be counted
+     * under both.
+     */
+    int countLots(LotStatus status);
+    
+    /**
+     * Searches lot descriptions, returning at most limit entries, best
+     * matches first. Words are matched whole and ignoring case; a word
+     * followed by '*' matches any word it begins ("vict*"). Lots containing
+     * more of the words, and rarer words, rank higher.
+     * 
+     * @param status only entries with this status, or null for all
+     */
+    List<CatalogueEntry> searchCatalogue(
+            String query,
+            LotStatus status,
+            int limit);
+    
     Status noteInterest(
             String buyerName,
             int lotNumber);
@@ -48,5 +100,49 @@ public interface AuctionHouse {
             String auctioneerName,
             int lotNumber);
     
+    /**
+     * Closes the auctions of several lots at once, as if closeAuction were
+     * called for each lot number in turn: a lot listed more than once is
+     * closed by its first entry, and the later entries fail as closing it
+     * again would. Auctions of different lots may be closed in any order.
+     * 
+     * @return the status of each entry of lotNumbers, in the same order
+     */
+    List<Status> closeAuctions(
+            String auctioneerName,
+            List<Integer> lotNumbers);
+    
+    /*
+     * Buyers and sellers are given dense integer ids as they register.
+     * The overloads below take those ids instead of names and skip the
+     * name lookup; the name-based operations resolve the name and then
+     * behave exactly like them.
+     */
+    
+    /**
+     * @return the buyer's id, or -1 if no buyer has this name
+     */
+    int buyerId(String name);
+    
+    /**
+     * @return the seller's id, or -1 if no seller has this name
+     */
+    int sellerId(String name);
+    
+    Status addLot(
+            int sellerId,
+            int number,
+            String description,
+            Money reservePrice);
+    
+    Status noteInterest(
+            int buyerId,
+            int lotNumber);
+    
+    Status makeBid(
+            int buyerId,
+            int lotNumber,
+            Money bid);
+    
     
 }
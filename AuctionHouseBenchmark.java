@@ -0,0 +1,967 @@
+package auctionhouse;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Micro-benchmarks for AuctionHouseImp, run from the command line:
+ * 
+ *     java auctionhouse.AuctionHouseBenchmark [benchmark]
+ * 
+ * With no argument every benchmark is run in turn. Results are printed
+ * to standard output and are only comparable between runs on one machine.
+ */
+public class AuctionHouseBenchmark {
+
+    private static final int BIDS_PER_THREAD = 200000;
+
+    // held so that its level survives the collections made to measure the heap
+    private static final Logger LOGGER = Logger.getLogger("auctionhouse");
+
+    private static final Map<String, Runnable> BENCHMARKS = new LinkedHashMap<String, Runnable>();
+    static {
+        BENCHMARKS.put("bidScaling", AuctionHouseBenchmark::bidScaling);
+        BENCHMARKS.put("hotLot", AuctionHouseBenchmark::hotLot);
+        BENCHMARKS.put("money", AuctionHouseBenchmark::money);
+        BENCHMARKS.put("fanOut", AuctionHouseBenchmark::fanOut);
+        BENCHMARKS.put("bidLookup", AuctionHouseBenchmark::bidLookup);
+        BENCHMARKS.put("catalogueFootprint", AuctionHouseBenchmark::catalogueFootprint);
+        BENCHMARKS.put("liveLots", AuctionHouseBenchmark::liveLots);
+        BENCHMARKS.put("descriptionSearch", AuctionHouseBenchmark::descriptionSearch);
+        BENCHMARKS.put("journalDurability", AuctionHouseBenchmark::journalDurability);
+        BENCHMARKS.put("restart", AuctionHouseBenchmark::restart);
+        BENCHMARKS.put("archive", AuctionHouseBenchmark::archive);
+        BENCHMARKS.put("settlement", AuctionHouseBenchmark::settlement);
+        BENCHMARKS.put("paymentRetry", AuctionHouseBenchmark::paymentRetry);
+        BENCHMARKS.put("bulkClose", AuctionHouseBenchmark::bulkClose);
+        BENCHMARKS.put("catalogueImport", AuctionHouseBenchmark::catalogueImport);
+    }
+
+    public static void main(String[] args) {
+        if (args.length >= 2) {
+            System.err.println("Unrecognised arguments");
+            return;
+        }
+        // losing bids log warnings, which would swamp the measurements
+        LOGGER.setLevel(Level.OFF);
+
+        if (args.length == 0) {
+            for (Runnable benchmark : BENCHMARKS.values()) {
+                benchmark.run();
+            }
+        } else if (BENCHMARKS.containsKey(args[0])) {
+            BENCHMARKS.get(args[0]).run();
+        } else {
+            System.err.println("Unrecognised benchmark: " + args[0]);
+        }
+    }
+
+    static AuctionHouseImp newHouse(MessagingService messagingService, BankingService bankingService) {
+        return new AuctionHouseImp(
+                new Parameters(
+                        10.0,
+                        15.0,
+                        new Money("10.00"),
+                        "AH A/C",
+                        "AH-auth",
+                        messagingService,
+                        bankingService));
+    }
+
+    /*
+     * Strictly increasing bid amounts, built once so that parsing does not
+     * count towards the time of makeBid.
+     */
+    static Money[] increasingBids(int count) {
+        Money[] bids = new Money[count];
+        for (int i = 0; i < count; i++) {
+            bids[i] = new Money(Integer.toString(i + 1));
+        }
+        return bids;
+    }
+
+    /*
+     * Runs body on each of threads threads, released together, and returns
+     * the wall-clock time in nanoseconds until the last one finishes.
+     */
+    static long timeThreads(int threads, final ThreadBody body) {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread(() -> {
+                try {
+                    start.await();
+                    body.run(thread);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return System.nanoTime() - begin;
+    }
+
+    interface ThreadBody {
+        void run(int thread);
+    }
+
+    /*
+     * Every thread bids on its own lot, so throughput should grow with
+     * the thread count up to the number of cores.
+     */
+    static void bidScaling() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        final Money[] bids = increasingBids(BIDS_PER_THREAD);
+        System.out.println("bidScaling: makeBid on one lot per thread (" + cores + " cores)");
+        System.out.println("threads     bids/s");
+        for (int threads = 1; threads <= 2 * cores; threads *= 2) {
+            final AuctionHouseImp house = newHouse(new CountingMessagingService(), new CountingBankingService());
+            house.registerSeller("Seller", "@Seller", "S A/C");
+            for (int t = 0; t < threads; t++) {
+                house.registerBuyer("Buyer" + t, "@Buyer" + t, "B" + t + " A/C", "B" + t + "-auth");
+                house.addLot("Seller", t, "Lot " + t, new Money("1.00"));
+                house.noteInterest("Buyer" + t, t);
+                house.openAuction("Auctioneer", "@Auctioneer", t);
+            }
+            final String[] names = new String[threads];
+            for (int t = 0; t < threads; t++) {
+                names[t] = "Buyer" + t;
+            }
+            long nanos = timeThreads(threads, thread -> {
+                for (Money bid : bids) {
+                    house.makeBid(names[thread], thread, bid);
+                }
+            });
+            System.out.printf("%7d %10.0f%n", threads, threads * (double) BIDS_PER_THREAD * 1e9 / nanos);
+        }
+    }
+
+    /*
+     * Every thread bids on the same lot with interleaved amounts, so most
+     * bids race another thread's and many lose.
+     */
+    static void hotLot() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("hotLot: makeBid on a single lot (" + cores + " cores)");
+        System.out.println("threads     bids/s   accepted");
+        for (int threads = 1; threads <= 2 * cores; threads *= 2) {
+            final AuctionHouseImp house = newHouse(new CountingMessagingService(), new CountingBankingService());
+            house.registerSeller("Seller", "@Seller", "S A/C");
+            house.addLot("Seller", 1, "Hot lot", new Money("1.00"));
+            final String[] names = new String[threads];
+            for (int t = 0; t < threads; t++) {
+                names[t] = "Buyer" + t;
+                house.registerBuyer(names[t], "@" + names[t], names[t] + " A/C", names[t] + "-auth");
+                house.noteInterest(names[t], 1);
+            }
+            house.openAuction("Auctioneer", "@Auctioneer", 1);
+            final int total = threads;
+            final Money[] bids = increasingBids(BIDS_PER_THREAD * threads);
+            final long[] accepted = new long[threads];
+            long nanos = timeThreads(threads, thread -> {
+                for (int i = thread; i < bids.length; i += total) {
+                    if (house.makeBid(names[thread], 1, bids[i]).kind == Status.Kind.OK) {
+                        accepted[thread]++;
+                    }
+                }
+            });
+            long sum = 0;
+            for (long a : accepted) {
+                sum += a;
+            }
+            System.out.printf("%7d %10.0f %10d%n", threads, bids.length * 1e9 / nanos, sum);
+        }
+    }
+
+    /*
+     * The arithmetic closeAuction does per sale, through Money objects and
+     * through the static API on raw pence.
+     */
+    static void money() {
+        final int n = 10000000;
+        Money bid = new Money("123.45");
+        long premium = Money.basisPoints(10.0);
+        long sink = 0;
+        System.out.println("money: premium and comparison per bid");
+        for (int round = 0; round < 3; round++) {
+            long begin = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                Money amount = bid.addPercent(10.0);
+                sink += amount.lessEqual(bid) ? 1 : amount.hashCode();
+            }
+            long objects = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                long amount = Money.addBasisPoints(bid.getPence(), premium);
+                sink += Money.compare(amount, bid.getPence()) <= 0 ? 1 : amount;
+            }
+            long primitives = System.nanoTime() - begin;
+            System.out.printf("Money objects %6.2f ns/op, raw pence %6.2f ns/op%n",
+                    (double) objects / n, (double) primitives / n);
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    /*
+     * A messaging gateway where every request has a fixed round-trip cost,
+     * simulated by spinning, on top of a small cost per address. It only
+     * implements the single-address methods, so multicasts fall back to
+     * one request per address.
+     */
+    static class PerAddressGateway extends CountingMessagingService {
+        static final long REQUEST_NANOS = 2000;
+        static final long ADDRESS_NANOS = 20;
+
+        static void spin(long nanos) {
+            long end = System.nanoTime() + nanos;
+            while (System.nanoTime() < end) {
+                // busy wait, as a blocking call would be descheduled
+            }
+        }
+
+        public void auctionOpened(String address, int lotNumber) {
+            spin(REQUEST_NANOS + ADDRESS_NANOS);
+            super.auctionOpened(address, lotNumber);
+        }
+
+        public void bidAccepted(String address, int lotNumber, Money amount) {
+            spin(REQUEST_NANOS + ADDRESS_NANOS);
+            super.bidAccepted(address, lotNumber, amount);
+        }
+
+        public void auctionOpened(String[] addresses, int lotNumber) {
+            for (String address : addresses) {
+                auctionOpened(address, lotNumber);
+            }
+        }
+
+        public void bidAccepted(String[] addresses, int lotNumber, Money amount) {
+            for (String address : addresses) {
+                bidAccepted(address, lotNumber, amount);
+            }
+        }
+    }
+
+    // the same gateway, sending each multicast as one request
+    static class MulticastGateway extends PerAddressGateway {
+        public void auctionOpened(String[] addresses, int lotNumber) {
+            spin(REQUEST_NANOS + ADDRESS_NANOS * addresses.length);
+            super.count(addresses.length);
+        }
+
+        public void bidAccepted(String[] addresses, int lotNumber, Money amount) {
+            spin(REQUEST_NANOS + ADDRESS_NANOS * addresses.length);
+            super.count(addresses.length);
+        }
+    }
+
+    /*
+     * Opens a lot with many watchers and takes a few bids on it, once
+     * through a gateway sending one request per address and once through
+     * one sending one request per multicast.
+     */
+    static void fanOut() {
+        final int bidsPerLot = 10;
+        Money[] bids = increasingBids(bidsPerLot);
+        System.out.println("fanOut: openAuction and " + bidsPerLot + " bids on a watched lot");
+        System.out.println("watchers   per-address ms  requests   multicast ms  requests");
+        for (int watchers : new int[] { 10, 1000, 50000 }) {
+            System.out.printf("%8d", watchers);
+            for (CountingMessagingService gateway : new CountingMessagingService[] {
+                    new PerAddressGateway(), new MulticastGateway() }) {
+                AuctionHouseImp house = newHouse(gateway, new CountingBankingService());
+                house.registerSeller("Seller", "@Seller", "S A/C");
+                house.addLot("Seller", 1, "Watched lot", new Money("1.00"));
+                for (int w = 0; w < watchers; w++) {
+                    house.registerBuyer("Buyer" + w, "@Buyer" + w, "A/C", "auth");
+                    house.noteInterest("Buyer" + w, 1);
+                }
+                long begin = System.nanoTime();
+                house.openAuction("Auctioneer", "@Auctioneer", 1);
+                for (Money bid : bids) {
+                    house.makeBid("Buyer0", 1, bid);
+                }
+                long nanos = System.nanoTime() - begin;
+                System.out.printf(" %15.1f %9d", nanos / 1e6, gateway.getRequests());
+            }
+            System.out.println();
+        }
+    }
+
+    /*
+     * Losing bids by name and by id in a house with many buyers, where the
+     * buyer lookup is a large part of the work.
+     */
+    static void bidLookup() {
+        final int buyers = 200000;
+        final int n = 1000000;
+        AuctionHouseImp house = newHouse(new CountingMessagingService(), new CountingBankingService());
+        house.registerSeller("Seller", "@Seller", "S A/C");
+        house.addLot("Seller", 1, "Lot", new Money("1.00"));
+        String[] names = new String[buyers];
+        int[] ids = new int[buyers];
+        for (int b = 0; b < buyers; b++) {
+            names[b] = "Buyer" + b;
+            house.registerBuyer(names[b], "@" + names[b], "A/C", "auth");
+            ids[b] = house.buyerId(names[b]);
+            house.noteInterest(ids[b], 1);
+        }
+        house.openAuction("Auctioneer", "@Auctioneer", 1);
+        house.makeBid(ids[0], 1, new Money("1000000.00"));
+        Money low = new Money("1.00");
+        System.out.println("bidLookup: losing bids from " + buyers + " buyers");
+        for (int round = 0; round < 3; round++) {
+            long begin = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                house.makeBid(names[i % buyers], 1, low);
+            }
+            long byName = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                house.makeBid(ids[i % buyers], 1, low);
+            }
+            long byId = System.nanoTime() - begin;
+            System.out.printf("by name %6.1f ns/bid, by id %6.1f ns/bid%n", (double) byName / n, (double) byId / n);
+        }
+    }
+
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /*
+     * Heap retained per catalogued lot. Sizes that do not fit in the heap
+     * given with -Xmx are skipped.
+     */
+    static void catalogueFootprint() {
+        Money reserve = new Money("100.00");
+        System.out.println("catalogueFootprint: heap retained by the catalogue");
+        System.out.println("    lots         MB  bytes/lot");
+        double bytesPerLot = 0;
+        for (int lots : new int[] { 1000000, 5000000, 10000000 }) {
+            // estimated from the previous size, with headroom for building the catalogue
+            if (1.5 * bytesPerLot * lots > Runtime.getRuntime().maxMemory()) {
+                System.out.printf("%8d    skipped, needs a larger -Xmx%n", lots);
+                continue;
+            }
+            long before = usedHeap();
+            AuctionHouseImp house = newHouse(new CountingMessagingService(), new CountingBankingService());
+            house.registerSeller("Seller", "@Seller", "S A/C");
+            int seller = house.sellerId("Seller");
+            for (int n = 0; n < lots; n++) {
+                house.addLot(seller, n, "Lot description " + n, reserve);
+            }
+            long retained = usedHeap() - before;
+            bytesPerLot = (double) retained / lots;
+            System.out.printf("%8d %10.1f %10.1f%n", lots, retained / 1048576.0, bytesPerLot);
+            if (house.viewCatalogue(CataloguePage.START, 1, null).entries.isEmpty()) {
+                System.out.println();
+            }
+        }
+    }
+
+    /*
+     * Listing and counting the lots in auction, a few among many, by
+     * scanning every lot and through the status index.
+     */
+    static void liveLots() {
+        final int lots = 1000000;
+        final int live = 1000;
+        AuctionHouseImp house = newHouse(new CountingMessagingService(), new CountingBankingService());
+        house.registerSeller("Seller", "@Seller", "S A/C");
+        int seller = house.sellerId("Seller");
+        Money reserve = new Money("100.00");
+        for (int n = 0; n < lots; n++) {
+            house.addLot(seller, n, "Lot " + n, reserve);
+        }
+        for (int n = 0; n < lots; n += lots / live) {
+            house.openAuction("Auctioneer", "@Auctioneer", n);
+        }
+        System.out.println("liveLots: " + live + " of " + lots + " lots in auction");
+        for (int round = 0; round < 5; round++) {
+            long begin = System.nanoTime();
+            long scanned = house.streamCatalogue(null)
+                    .filter(entry -> entry.status == LotStatus.IN_AUCTION)
+                    .count();
+            long scan = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            long indexed = house.streamCatalogue(LotStatus.IN_AUCTION).count();
+            long index = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            int counted = house.countLots(LotStatus.IN_AUCTION);
+            long count = System.nanoTime() - begin;
+            System.out.printf("scan %4d in %8.0f us, index %4d in %6.0f us, count %4d in %4.1f us%n",
+                    scanned, scan / 1e3, indexed, index / 1e3, counted, count / 1e3);
+        }
+    }
+
+    /*
+     * Searches of a large catalogue whose descriptions are drawn from a
+     * small vocabulary plus a maker's name, so that terms range from very
+     * common to rare.
+     */
+    static void descriptionSearch() {
+        final int lots = 5000000;
+        String[] periods = { "Victorian", "Georgian", "Edwardian", "Regency", "Art Deco", "Mid-century", "Modern" };
+        String[] materials = { "oak", "mahogany", "walnut", "brass", "silver", "porcelain", "glass", "pine", "rosewood" };
+        String[] objects = { "clock", "desk", "chair", "table", "cabinet", "mirror", "vase", "lamp", "bureau",
+                "chest", "bookcase", "teapot", "candlestick", "tallboy", "dresser", "sideboard" };
+        AuctionHouseImp house = newHouse(new CountingMessagingService(), new CountingBankingService());
+        house.registerSeller("Seller", "@Seller", "S A/C");
+        int seller = house.sellerId("Seller");
+        Money reserve = new Money("100.00");
+        Random random = new Random(42);
+        long begin = System.nanoTime();
+        for (int n = 0; n < lots; n++) {
+            String description = periods[random.nextInt(periods.length)] + " "
+                    + materials[random.nextInt(materials.length)] + " "
+                    + objects[random.nextInt(objects.length)] + " by maker" + random.nextInt(20000);
+            house.addLot(seller, n, description, reserve);
+        }
+        long build = System.nanoTime() - begin;
+        for (int n = 0; n < lots; n += 1000) {
+            house.openAuction("Auctioneer", "@Auctioneer", n);
+        }
+        System.out.printf("descriptionSearch: %d lots added in %.1f s%n", lots, build / 1e9);
+        String[] queries = { "maker1234", "victorian clock", "victorian mahogany clock", "vict* cl*", "oak" };
+        for (int round = 0; round < 3; round++) {
+            for (String query : queries) {
+                begin = System.nanoTime();
+                int all = house.searchCatalogue(query, null, 20).size();
+                long any = System.nanoTime() - begin;
+                begin = System.nanoTime();
+                int live = house.searchCatalogue(query, LotStatus.IN_AUCTION, 20).size();
+                long inAuction = System.nanoTime() - begin;
+                System.out.printf("%-26s top %2d in %7.2f ms, %2d in auction in %7.2f ms%n",
+                        "\"" + query + "\"", all, any / 1e6, live, inAuction / 1e6);
+            }
+        }
+    }
+
+    /*
+     * Journaled bids on one lot per thread, in each durability mode. Every
+     * bid waits for its own fsync in SYNC mode, while in GROUP_COMMIT mode
+     * waiting threads share one, so throughput should grow with the thread
+     * count. ASYNC shows the cost of journaling without waiting for disk.
+     */
+    static void journalDurability() {
+        final int bidsPerThread = 2000;
+        final Money[] bids = increasingBids(bidsPerThread);
+        Object[][] modes = {
+                { Journal.Durability.SYNC, 0L },
+                { Journal.Durability.GROUP_COMMIT, 0L },
+                { Journal.Durability.GROUP_COMMIT, 500L },
+                { Journal.Durability.ASYNC, 1000L } };
+        System.out.println("journalDurability: journaled makeBid on one lot per thread");
+        System.out.println("mode          window/us threads     bids/s bids/fsync");
+        for (Object[] mode : modes) {
+            Journal.Durability durability = (Journal.Durability) mode[0];
+            long windowMicros = (Long) mode[1];
+            for (int threads = 1; threads <= 16; threads *= 4) {
+                try {
+                    Path directory = Files.createTempDirectory("auctionhouse");
+                    try (Journal journal = new Journal(directory, durability, windowMicros)) {
+                        final AuctionHouseImp house = new AuctionHouseImp(
+                                new Parameters(10.0, 15.0, new Money("10.00"), "AH A/C", "AH-auth",
+                                        new CountingMessagingService(), new CountingBankingService()),
+                                journal);
+                        house.registerSeller("Seller", "@Seller", "S A/C");
+                        for (int t = 0; t < threads; t++) {
+                            house.registerBuyer("Buyer" + t, "@Buyer" + t, "B" + t + " A/C", "B" + t + "-auth");
+                            house.addLot("Seller", t, "Lot " + t, new Money("1.00"));
+                            house.noteInterest(t, t);
+                            house.openAuction("Auctioneer", "@Auctioneer", t);
+                        }
+                        journal.flush();
+                        long syncs = journal.getSyncCount();
+                        long nanos = timeThreads(threads, thread -> {
+                            for (Money bid : bids) {
+                                house.makeBid(thread, thread, bid);
+                            }
+                        });
+                        journal.flush();
+                        long bidCount = (long) threads * bidsPerThread;
+                        System.out.printf("%-13s %9d %7d %10.0f %10.1f%n", durability, windowMicros, threads,
+                                bidCount * 1e9 / nanos, (double) bidCount / (journal.getSyncCount() - syncs));
+                    } finally {
+                        try (Stream<Path> files = Files.walk(directory)) {
+                            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    static long sizeOf(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+
+    /*
+     * Time to restart a journaled house, by replaying its whole journal, and
+     * by loading a snapshot, read or mapped, and replaying only the journal
+     * after it. One lot in 100 has been auctioned with a history of 200
+     * bids, and a bidder carries on at up to 10k bids a second while the
+     * snapshot is written. The catalogue size can be set with
+     * -Dauctionhouse.lots=n; ten million lots need about 4GB of heap.
+     */
+    static void restart() {
+        final int lots = Integer.getInteger("auctionhouse.lots", 10000000);
+        Parameters parameters = new Parameters(10.0, 15.0, new Money("10.00"), "AH A/C", "AH-auth",
+                new CountingMessagingService(), new CountingBankingService());
+        System.out.println("restart: " + lots + " lots");
+        try {
+            Path directory = Files.createTempDirectory("auctionhouse");
+            Path journalDirectory = directory.resolve("journal");
+            Path snapshotDirectory = directory.resolve("snapshots");
+            try {
+                // each step in its own method, so that no house outlives its step
+                journalHouse(parameters, journalDirectory, snapshotDirectory, lots);
+                System.out.printf("journal of %.0f MB%n", sizeOf(journalDirectory) / 1e6);
+                snapshotHouse(parameters, journalDirectory, snapshotDirectory, lots);
+                for (SnapshotStore.Loading loading : SnapshotStore.Loading.values()) {
+                    restartHouse(parameters, journalDirectory, snapshotDirectory, loading);
+                }
+            } finally {
+                try (Stream<Path> files = Files.walk(directory)) {
+                    files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final int RESTART_BUYERS = 1000;
+    private static final int RESTART_TAIL_BIDS = 100000;
+
+    private static void journalHouse(
+            Parameters parameters,
+            Path journalDirectory,
+            Path snapshotDirectory,
+            int lots) throws IOException {
+        final int historyBids = 200;
+        String[] periods = { "Victorian", "Georgian", "Edwardian", "Regency", "Art Deco", "Modern" };
+        String[] objects = { "clock", "desk", "chair", "table", "cabinet", "mirror", "vase", "lamp" };
+        try (Journal journal = new Journal(journalDirectory, Journal.Durability.ASYNC, 1000)) {
+            AuctionHouseImp house = new AuctionHouseImp(parameters, journal, new SnapshotStore(snapshotDirectory));
+            house.registerSeller("Seller", "@Seller", "S A/C");
+            for (int b = 0; b < RESTART_BUYERS; b++) {
+                house.registerBuyer("Buyer" + b, "@Buyer" + b, "B" + b + " A/C", "B" + b + "-auth");
+            }
+            Money reserve = new Money("100.00");
+            for (int n = 0; n < lots; n++) {
+                house.addLot(0, n, periods[n % periods.length] + " " + objects[n / periods.length % objects.length], reserve);
+                if (n % 100 == 0) {
+                    house.noteInterest(n % RESTART_BUYERS, n);
+                    house.openAuction("Auctioneer", "@Auctioneer", n);
+                    for (int b = 1; b <= historyBids; b++) {
+                        house.makeBid(n % RESTART_BUYERS, n, Money.ofPence(b));
+                    }
+                }
+            }
+        }
+    }
+
+    private static void snapshotHouse(
+            Parameters parameters,
+            Path journalDirectory,
+            Path snapshotDirectory,
+            int lots) throws IOException, InterruptedException {
+        try (Journal journal = new Journal(journalDirectory, Journal.Durability.ASYNC, 1000)) {
+            long begin = System.nanoTime();
+            final AuctionHouseImp house = new AuctionHouseImp(parameters, journal, new SnapshotStore(snapshotDirectory));
+            System.out.printf("full replay:            %6.2f s%n", (System.nanoTime() - begin) / 1e9);
+
+            // one bidder carries on while the snapshot is written
+            final AtomicBoolean snapshotting = new AtomicBoolean(true);
+            final long[] bidStats = new long[2];
+            Thread bidder = new Thread(() -> {
+                long pence = Integer.MAX_VALUE;
+                while (snapshotting.get()) {
+                    long start = System.nanoTime();
+                    house.makeBid(0, 0, Money.ofPence(++pence));
+                    bidStats[0]++;
+                    bidStats[1] = Math.max(bidStats[1], System.nanoTime() - start);
+                    LockSupport.parkNanos(100000);
+                }
+            });
+            bidder.start();
+            begin = System.nanoTime();
+            house.takeSnapshot();
+            long snapshotNanos = System.nanoTime() - begin;
+            snapshotting.set(false);
+            bidder.join();
+            System.out.printf("snapshot written in     %6.2f s, %.0f MB; %d bids meanwhile, slowest %.2f ms%n",
+                    snapshotNanos / 1e9, sizeOf(snapshotDirectory) / 1e6, bidStats[0], bidStats[1] / 1e6);
+
+            for (int b = 0; b < RESTART_TAIL_BIDS; b++) {
+                int lot = b % (lots / 100) * 100;
+                house.makeBid(lot % RESTART_BUYERS, lot, Money.ofPence(Integer.MAX_VALUE + (long) b));
+            }
+        }
+    }
+
+    private static void restartHouse(
+            Parameters parameters,
+            Path journalDirectory,
+            Path snapshotDirectory,
+            SnapshotStore.Loading loading) throws IOException {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        try (Journal journal = new Journal(journalDirectory, Journal.Durability.ASYNC, 1000)) {
+            long begin = System.nanoTime();
+            AuctionHouseImp house = new AuctionHouseImp(parameters, journal, new SnapshotStore(snapshotDirectory, loading));
+            // lot 0 is in auction, and was bid on in the journal after the snapshot
+            house.makeBid(0, 0, Money.ofPence((1L << 40) + loading.ordinal()));
+            long firstBidNanos = System.nanoTime() - begin;
+            System.gc();
+            long heap = runtime.totalMemory() - runtime.freeMemory() - heapBefore;
+            System.out.printf("%-6s snapshot + %d bids: first bid after %6.2f s, %.0f MB of heap%n",
+                    loading, RESTART_TAIL_BIDS, firstBidNanos / 1e9, heap / 1e6);
+            // keeps the house reachable until its heap is measured
+            house.countLots(LotStatus.SOLD);
+        }
+    }
+
+    /*
+     * Heap retained by a house that keeps adding and auctioning lots, with
+     * every lot in the heap and with settled and idle lots archived after
+     * each round, then the cost of reading and reopening archived lots.
+     * Each round adds auctionhouse.lots / 10 lots and sells one in four.
+     */
+    static void archive() {
+        final int lots = Integer.getInteger("auctionhouse.lots", 2000000);
+        System.out.println("archive: " + lots + " lots added in 10 rounds");
+        try {
+            Path directory = Files.createTempDirectory("auctionhouse");
+            try {
+                archiveRounds(null, lots);
+                try (LotArchive archive = new LotArchive(directory, 256, 2)) {
+                    archiveRounds(archive, lots);
+                }
+            } finally {
+                try (Stream<Path> files = Files.walk(directory)) {
+                    files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void archiveRounds(LotArchive archive, int lots) throws IOException {
+        final int rounds = 10;
+        final int perRound = lots / rounds;
+        long before = usedHeap();
+        AuctionHouseImp house = newHouse(new CountingMessagingService(), new CountingBankingService());
+        house.registerSeller("Seller", "@Seller", "S A/C");
+        house.registerBuyer("Buyer", "@Buyer", "B A/C", "B-auth");
+        int seller = house.sellerId("Seller");
+        int buyer = house.buyerId("Buyer");
+        if (archive != null) {
+            house.archiveLots(archive);
+        }
+        Money reserve = new Money("100.00");
+        Money bid = new Money("150.00");
+        System.out.println(archive == null ? "in heap:" : "archived:");
+        for (int round = 0; round < rounds; round++) {
+            for (int n = round * perRound; n < (round + 1) * perRound; n++) {
+                house.addLot(seller, n, "Lot description " + n, reserve);
+                if (n % 4 == 0) {
+                    house.noteInterest(buyer, n);
+                    house.openAuction("Auctioneer", "@Auctioneer", n);
+                    house.makeBid(buyer, n, bid);
+                    house.closeAuction("Auctioneer", n);
+                }
+            }
+            long evictNanos = 0;
+            if (archive != null) {
+                long begin = System.nanoTime();
+                house.evictLots();
+                evictNanos = System.nanoTime() - begin;
+            }
+            System.out.printf("round %2d: %8d lots, %6.0f MB of heap, %7d archived in %5.0f ms%n",
+                    round, house.countLots(LotStatus.UNSOLD) + house.countLots(LotStatus.SOLD),
+                    (usedHeap() - before) / 1e6, archive == null ? 0 : archive.size(), evictNanos / 1e6);
+        }
+        if (archive == null) {
+            return;
+        }
+        final int reads = 10000;
+        Random random = new Random(1);
+        long blockReads = archive.getBlockReads();
+        long begin = System.nanoTime();
+        int pages = 0;
+        CataloguePage page = house.viewCatalogue(CataloguePage.START, 100, null);
+        while (page.hasMore && pages < reads / 100) {
+            page = house.viewCatalogue(page.nextCursor, 100, null);
+            pages++;
+        }
+        long pageNanos = System.nanoTime() - begin;
+        System.out.printf("%d lots read in pages of 100 in %.0f us/lot, %d block reads%n",
+                pages * 100, pageNanos / 1e3 / (pages * 100), archive.getBlockReads() - blockReads);
+        blockReads = archive.getBlockReads();
+        begin = System.nanoTime();
+        for (int i = 0; i < reads; i++) {
+            // lots numbered 1 to 3 modulo 4 were never opened
+            house.openAuction("Auctioneer", "@Auctioneer", random.nextInt(lots / 4) * 4 + 1);
+        }
+        long openNanos = System.nanoTime() - begin;
+        System.out.printf("%d archived lots reopened in %.0f us/lot, %d block reads%n",
+                reads, openNanos / 1e3 / reads, archive.getBlockReads() - blockReads);
+    }
+
+    /*
+     * Settling the end of a sale: 10k lots sold by 100 sellers to 1000
+     * buyers, paid for per lot as each auction closes, and netted in one
+     * batch after they have all closed. The bank takes 200us a call.
+     */
+    static void settlement() {
+        final int lots = 10000;
+        final int sellers = 100;
+        final int buyers = 1000;
+        final long roundTripNanos = 200000;
+        System.out.println("settlement: " + lots + " lots, " + sellers + " sellers, " + buyers
+                + " buyers, " + roundTripNanos / 1000 + " us a bank call");
+        for (AuctionHouseImp.Settlement settlement : AuctionHouseImp.Settlement.values()) {
+            CountingBankingService bank = new CountingBankingService(roundTripNanos);
+            AuctionHouseImp house = newHouse(new CountingMessagingService(), bank);
+            house.setSettlement(settlement);
+            for (int s = 0; s < sellers; s++) {
+                house.registerSeller("Seller" + s, "@Seller" + s, "S" + s + " A/C");
+            }
+            for (int b = 0; b < buyers; b++) {
+                house.registerBuyer("Buyer" + b, "@Buyer" + b, "B" + b + " A/C", "B" + b + "-auth");
+            }
+            Money reserve = new Money("100.00");
+            Money bid = new Money("150.00");
+            for (int n = 0; n < lots; n++) {
+                house.addLot(n % sellers, n, "Lot " + n, reserve);
+                house.noteInterest(n % buyers, n);
+                house.openAuction("Auctioneer", "@Auctioneer", n);
+                house.makeBid(n % buyers, n, bid);
+            }
+            long begin = System.nanoTime();
+            for (int n = 0; n < lots; n++) {
+                house.closeAuction("Auctioneer", n);
+            }
+            long closeNanos = System.nanoTime() - begin;
+            house.settleQueued();
+            long settleNanos = System.nanoTime() - begin;
+            System.out.printf("%-7s closed in %7.0f ms, settled in %7.0f ms: %5d bank calls, %5d transfers, %d lots sold%n",
+                    settlement, closeNanos / 1e6, settleNanos / 1e6, bank.getCalls(), bank.getTransfers(),
+                    house.countLots(LotStatus.SOLD));
+        }
+    }
+
+    /*
+     * Recovering from a bank outage: 20k lots are closed while every
+     * transfer fails, the bank comes back a second later, and the retrier
+     * works through the pending sales with 16 calls in flight. The bank
+     * takes 200us a call.
+     */
+    static void paymentRetry() {
+        final int lots = 20000;
+        final int buyers = 1000;
+        final int maxInFlight = 16;
+        final AtomicBoolean bankDown = new AtomicBoolean(true);
+        BankingService bank = new CountingBankingService(200000) {
+            @Override
+            public Status transfer(String senderAccount, String senderAuthCode, String receiverAccount, Money amount) {
+                Status status = super.transfer(senderAccount, senderAuthCode, receiverAccount, amount);
+                return bankDown.get() ? Status.error("Bank unavailable") : status;
+            }
+        };
+        AuctionHouseImp house = newHouse(new CountingMessagingService(), bank);
+        house.registerSeller("Seller", "@Seller", "S A/C");
+        for (int b = 0; b < buyers; b++) {
+            house.registerBuyer("Buyer" + b, "@Buyer" + b, "B" + b + " A/C", "B" + b + "-auth");
+        }
+        Money reserve = new Money("100.00");
+        Money bid = new Money("150.00");
+        for (int n = 0; n < lots; n++) {
+            house.addLot(0, n, "Lot " + n, reserve);
+            house.noteInterest(n % buyers, n);
+            house.openAuction("Auctioneer", "@Auctioneer", n);
+            house.makeBid(n % buyers, n, bid);
+        }
+        System.out.println("paymentRetry: " + lots + " lots closed while the bank is down, "
+                + maxInFlight + " calls in flight");
+        int threadsBefore = Thread.activeCount();
+        try (PaymentRetrier retrier = house.retryPayments(10, 1000, TimeUnit.MILLISECONDS, maxInFlight)) {
+            long begin = System.nanoTime();
+            for (int n = 0; n < lots; n++) {
+                house.closeAuction("Auctioneer", n);
+            }
+            System.out.printf("closed in %.0f ms, %d pending, %d threads added%n",
+                    (System.nanoTime() - begin) / 1e6, house.countLots(LotStatus.SOLD_PENDING_PAYMENT),
+                    Thread.activeCount() - threadsBefore);
+            Thread.sleep(1000);
+            long attemptsWhileDown = retrier.getAttempts();
+            bankDown.set(false);
+            long up = System.nanoTime();
+            while (house.countLots(LotStatus.SOLD) < lots) {
+                Thread.sleep(10);
+            }
+            System.out.printf("%d attempts while the bank was down; all sold %.0f ms after it came back%n",
+                    attemptsWhileDown, (System.nanoTime() - up) / 1e6);
+            System.out.printf("%d attempts for %d sales, pending %.0f ms on average, %.0f ms at most%n",
+                    retrier.getAttempts(), retrier.getRecovered(),
+                    retrier.getMeanPendingNanos() / 1e6, retrier.getMaxPendingNanos() / 1e6);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Closing 10k sold lots one closeAuction at a time, and with one
+     * closeAuctions call on fork-join pools of growing parallelism. The bank
+     * takes 200us a call, and every lot makes two.
+     */
+    static void bulkClose() {
+        final int lots = 10000;
+        final int buyers = 1000;
+        final long roundTripNanos = 200000;
+        System.out.println("bulkClose: " + lots + " lots, " + roundTripNanos / 1000 + " us a bank call");
+        int[] parallelisms = { 0, 1, 4, 16, 64 };
+        for (int parallelism : parallelisms) {
+            AuctionHouseImp house = newHouse(new CountingMessagingService(), new CountingBankingService(roundTripNanos));
+            house.registerSeller("Seller", "@Seller", "S A/C");
+            for (int b = 0; b < buyers; b++) {
+                house.registerBuyer("Buyer" + b, "@Buyer" + b, "B" + b + " A/C", "B" + b + "-auth");
+            }
+            Money reserve = new Money("100.00");
+            Money bid = new Money("150.00");
+            List<Integer> lotNumbers = new ArrayList<Integer>();
+            for (int n = 0; n < lots; n++) {
+                house.addLot(0, n, "Lot " + n, reserve);
+                house.noteInterest(n % buyers, n);
+                house.openAuction("Auctioneer", "@Auctioneer", n);
+                house.makeBid(n % buyers, n, bid);
+                lotNumbers.add(n);
+            }
+            long begin = System.nanoTime();
+            if (parallelism == 0) {
+                for (int n = 0; n < lots; n++) {
+                    house.closeAuction("Auctioneer", n);
+                }
+            } else {
+                ForkJoinPool pool = new ForkJoinPool(parallelism);
+                house.setClosePool(pool);
+                house.closeAuctions("Auctioneer", lotNumbers);
+                pool.shutdown();
+            }
+            long nanos = System.nanoTime() - begin;
+            System.out.printf("%-17s %7.0f ms, %d lots sold%n",
+                    parallelism == 0 ? "serial" : "bulk, parallel " + parallelism,
+                    nanos / 1e6, house.countLots(LotStatus.SOLD));
+        }
+    }
+
+    /*
+     * Adding a consignment file of 100k lots from 100 sellers, with addLot
+     * a line and with a LotImporter in batches of 1000, without a journal
+     * and with a GROUP_COMMIT journal.
+     */
+    static void catalogueImport() {
+        final int lots = 100000;
+        final int sellers = 100;
+        final int batchSize = 1000;
+        System.out.println("catalogueImport: " + lots + " lots, " + sellers + " sellers");
+        try {
+            Path directory = Files.createTempDirectory("auctionhouse");
+            try {
+                Path file = directory.resolve("lots.csv");
+                try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                    for (int n = 0; n < lots; n++) {
+                        out.write("Seller" + n % sellers + "," + n + ",100.00,Lot " + n + ", boxed");
+                        out.newLine();
+                    }
+                }
+                int run = 0;
+                for (boolean journaled : new boolean[] { false, true }) {
+                    for (boolean importer : new boolean[] { false, true }) {
+                        Path journalDirectory = directory.resolve("journal" + run++);
+                        try (Journal journal = journaled
+                                ? new Journal(journalDirectory, Journal.Durability.GROUP_COMMIT, 0) : null) {
+                            AuctionHouseImp house = journal == null
+                                    ? newHouse(new CountingMessagingService(), new CountingBankingService())
+                                    : new AuctionHouseImp(
+                                            new Parameters(10.0, 15.0, new Money("10.00"), "AH A/C", "AH-auth",
+                                                    new CountingMessagingService(), new CountingBankingService()),
+                                            journal);
+                            for (int s = 0; s < sellers; s++) {
+                                house.registerSeller("Seller" + s, "@Seller" + s, "S" + s + " A/C");
+                            }
+                            long begin = System.nanoTime();
+                            if (importer) {
+                                new LotImporter(house, ',', batchSize).importLots(file, rejection -> { });
+                            } else {
+                                try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                                    for (String line = in.readLine(); line != null; line = in.readLine()) {
+                                        String[] fields = line.split(",", 4);
+                                        house.addLot(fields[0], Integer.parseInt(fields[1]), fields[3], new Money(fields[2]));
+                                    }
+                                }
+                            }
+                            long nanos = System.nanoTime() - begin;
+                            System.out.printf("%-10s %-15s %7.0f ms, %8.0f lots/s, %d lots%n",
+                                    journaled ? "journaled" : "in memory",
+                                    importer ? "LotImporter" : "addLot a line",
+                                    nanos / 1e6, lots * 1e9 / nanos, house.countLots(LotStatus.UNSOLD));
+                        }
+                    }
+                }
+            } finally {
+                try (Stream<Path> files = Files.walk(directory)) {
+                    files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+}
@@ -3,14 +3,70 @@
  */
 package auctionhouse;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 /**
+ * Thread-safe implementation of the AuctionHouse interface.
+ * 
+ * Registration and catalogue state is held in concurrent structures so that
+ * registering users, adding lots and viewing the catalogue never block
+ * bidding. Buyers and sellers are numbered densely as they register (see
+ * UserTable); lots and interest sets refer to them by id, and name-based
+ * calls resolve the name once and continue as the ID-based overloads.
+ * openAuction and closeAuction synchronize on that Lot object only, so calls
+ * on different lots run in parallel and never contend. makeBid takes no lock
+ * at all: the highest bid, bidder and status of a lot are swapped together
+ * by compare-and-set (see Lot.BidState). The messaging and banking services
+ * are called from many threads at once and must themselves be thread-safe.
+ * 
+ * A house may be given a Journal, in which case every change is recorded
+ * there and the record made durable before the call returns or anyone is
+ * notified of the change. Records are appended in an order that replays to
+ * the same state: registrations, new lots, interest and openings are
+ * journaled in the same step as they are made, so that ids are given out
+ * in journal order and no call depending on them is journaled first. Bids,
+ * closes and settlements are journaled just after they are made. A bid's
+ * record may follow the close of its auction, but the close record carries
+ * the final highest bid, which makes replaying the bid harmless. Since no
+ * change is journaled before it is made, a snapshot started at a journal
+ * position holds every change recorded before it (see SnapshotStore).
+ * 
+ * A sale is paid for by two bank transfers made before closeAuction
+ * returns, or, in NETTED settlement, queued and paid for later together with
+ * other sales, in one batch of transfers netted per account (see
+ * settleQueued). Payments that fail may be retried in the background (see
+ * retryPayments).
+ * 
+ * closeAuctions closes many lots at once on a fork-join pool (see
+ * setClosePool). Each close holds only its own lot's monitor, so they run
+ * in parallel, and the bank calls of one overlap those of others.
+ * 
+ * A house may also be given a LotArchive, to which settled and idle lots
+ * are moved out of the heap (see evictLots). Calls that change a lot hold
+ * its monitor while they check that it has not been archived meanwhile.
+ * 
+ * Operations are logged through a Trace, which formats nothing unless the
+ * level is logged, and recorded as flight recorder events when a recording
+ * enables them (see HouseEvents).
+ * 
  * @author pbj
  *
  */
@@ -18,25 +74,316 @@ public class AuctionHouseImp implements AuctionHouse {
 
     private static Logger logger = Logger.getLogger("auctionhouse");
     private static final String LS = System.lineSeparator();
+    // each message in a banner, formatted off the caller's thread and only when logged
+    private static final Trace trace = new Trace(logger, AuctionHouseImp.class.getName(),
+            LS + "-------------------------------------------------------------" + LS + "MESSAGE IN: ",
+            LS + "-------------------------------------------------------------",
+            4096);
     // added code here
     private Parameters parameters;
-    //Association between AuctionHouse and Buyers - map buyers to their names for easy access in methods
-    private Map<String,Buyer> buyerList = new HashMap<String,Buyer>();
-    //Association between AuctionHouse and Sellers - map sellers to their names for easy access in methods
-    private Map<String, Seller> sellerList = new HashMap<String, Seller>();
-    //Association between AuctionHouse and Lots - map lots to their lotNumbers for easy access in methods
-    private Map<Integer, Lot> catalogueLot = new HashMap<Integer, Lot>();
-    TreeMap<Integer, CatalogueEntry> catalogueEntries = new TreeMap<>();
-    
-    private String startBanner(String messageName) {
-        return  LS 
-          + "-------------------------------------------------------------" + LS
-          + "MESSAGE IN: " + messageName + LS
-          + "-------------------------------------------------------------";
-    }
-   
+    // buyer's premium and commission in basis points, for allocation-free arithmetic on pence
+    private final long buyerPremiumBasisPoints;
+    private final long commissionBasisPoints;
+    //Association between AuctionHouse and Buyers - buyers indexed by id, with their names mapped to ids
+    private UserTable<Buyer> buyerList = new UserTable<Buyer>();
+    //Association between AuctionHouse and Sellers - sellers indexed by id, with their names mapped to ids
+    private UserTable<Seller> sellerList = new UserTable<Seller>();
+    //Association between AuctionHouse and Lots - the lots, which also serve as the catalogue
+    private LotStore catalogueLot = new LotStore();
+    // where changes are recorded for replay after a restart, or null
+    private Journal journal;
+    // where the state is saved so that the journal before it can be dropped, or null
+    private SnapshotStore snapshots;
+    private volatile Settlement settlement = Settlement.PER_LOT;
+    // sales closed in NETTED settlement and not yet paid; its monitor is held while settling
+    private final Queue<NettedSettlement.Sale> unsettled = new ConcurrentLinkedQueue<NettedSettlement.Sale>();
+    // retries the payments of sales left pending, or null
+    private volatile PaymentRetrier retrier;
+    
+    private volatile ForkJoinPool closePool = ForkJoinPool.commonPool();
+    
+    /**
+     * How closeAuction pays for a sale.
+     */
+    public static enum Settlement {
+        /** two transfers per lot, made before closeAuction returns */
+        PER_LOT,
+        /** queued for settleQueued, which nets the transfers of many lots */
+        NETTED
+    }
+    
     public AuctionHouseImp(Parameters parameters) {
         this.parameters = parameters;
+        this.buyerPremiumBasisPoints = Money.basisPoints(parameters.buyerPremium);
+        this.commissionBasisPoints = Money.basisPoints(parameters.commission);
+    }
+
+    /*
+     * The events of every house not logged because the logger fell behind.
+     */
+    static long tracedEventsDropped() {
+        return trace.getDropped();
+    }
+
+    /**
+     * Creates a house that journals its changes, after first restoring the
+     * state recorded in the journal. Notifications and bank transfers made
+     * before the restart are not repeated.
+     */
+    public AuctionHouseImp(Parameters parameters, Journal journal) throws IOException {
+        this(parameters);
+        long replayed = journal.replay(this::replay);
+        logger.info("Replayed " + replayed + " journal records");
+        this.journal = journal;
+    }
+    
+    /**
+     * Creates a house that journals its changes and can take snapshots,
+     * after first loading the newest snapshot and replaying the journal
+     * recorded since it. If snapshots are mapped, lots the journal does not
+     * mention are only read from the snapshot when first used.
+     */
+    public AuctionHouseImp(Parameters parameters, Journal journal, SnapshotStore snapshots) throws IOException {
+        this(parameters);
+        long position = snapshots.load(buyerList, sellerList, catalogueLot);
+        long replayed = journal.replay(position, this::replay);
+        logger.info("Replayed " + replayed + " journal records after the snapshot");
+        this.journal = journal;
+        this.snapshots = snapshots;
+    }
+    
+    /**
+     * Saves the state of the house as a snapshot, then deletes the journal
+     * segments recorded before it. Calls carry on while the snapshot is
+     * written; only journal appends wait, for one fsync, while the journal
+     * starts a new segment for the snapshot to begin at.
+     */
+    public synchronized void takeSnapshot() throws IOException {
+        if (snapshots == null) {
+            throw new IllegalStateException("This house has no snapshot store");
+        }
+        long position = journal.roll();
+        snapshots.write(position, buyerList, sellerList, catalogueLot);
+        journal.deleteBefore(position);
+    }
+    
+    /**
+     * Takes a snapshot every period on executor, until the returned future
+     * is cancelled. A snapshot that fails is logged and retried at the
+     * next period.
+     */
+    public ScheduledFuture<?> scheduleSnapshots(ScheduledExecutorService executor, long period, TimeUnit unit) {
+        return executor.scheduleWithFixedDelay(() -> {
+            try {
+                takeSnapshot();
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "Snapshot failed", e);
+            }
+        }, period, period, unit);
+    }
+    
+    /**
+     * Chooses how sales are paid for from now on. Sales already queued for
+     * NETTED settlement are still settled by settleQueued.
+     */
+    public void setSettlement(Settlement settlement) {
+        this.settlement = settlement;
+    }
+    
+    /**
+     * Chooses the pool closeAuctions runs on, the common pool by default.
+     * A close waits for its bank transfers, so the pool's parallelism is the
+     * most lots whose payments are made at once.
+     */
+    public void setClosePool(ForkJoinPool closePool) {
+        this.closePool = closePool;
+    }
+    
+    /**
+     * Starts retrying, in the background, the payments of every sale left
+     * SOLD_PENDING_PAYMENT from now on (see PaymentRetrier). Each lot is
+     * SOLD, and the seller and interested buyers told, once it is paid for.
+     * Once the retrier is closed, the sales it had not paid for are queued
+     * for settleQueued, and retryPayments may be called again.
+     * 
+     * @param maxInFlight the most bank calls made at once
+     * @return the retrier, to be closed when the house is done with
+     */
+    public synchronized PaymentRetrier retryPayments(long initialDelay, long maxDelay, TimeUnit unit, int maxInFlight) {
+        if (retrier != null) {
+            throw new IllegalStateException("This house already retries payments");
+        }
+        retrier = new PaymentRetrier(parameters.bankingService,
+                parameters.houseBankAccount, parameters.houseBankAuthCode,
+                sale -> {
+                    synchronized (sale.lot) {
+                        sold(sale.lot, null);
+                    }
+                },
+                unsettled::add,
+                closed -> {
+                    synchronized (this) {
+                        if (retrier == closed) {
+                            retrier = null;
+                        }
+                    }
+                },
+                initialDelay, maxDelay, unit, maxInFlight);
+        return retrier;
+    }
+    
+    /**
+     * Has evictLots move settled and idle lots to archive, out of the heap.
+     * Archived lots are still listed, counted and searched, and are brought
+     * back when an auction is opened or interest is noted.
+     */
+    public void archiveLots(LotArchive archive) {
+        catalogueLot.archiveTo(archive, buyerList);
+    }
+    
+    /**
+     * Moves the lots that have been SOLD for a whole eviction pass, and the
+     * UNSOLD lots unused for the archive's idle passes, to the archive.
+     * 
+     * @return the number of lots moved
+     */
+    public int evictLots() throws IOException {
+        int evicted = catalogueLot.evict();
+        logger.info("Archived " + evicted + " lots");
+        return evicted;
+    }
+    
+    /**
+     * Evicts lots every period on executor, until the returned future is
+     * cancelled. An eviction that fails is logged and retried at the next
+     * period.
+     */
+    public ScheduledFuture<?> scheduleEviction(ScheduledExecutorService executor, long period, TimeUnit unit) {
+        return executor.scheduleWithFixedDelay(() -> {
+            try {
+                evictLots();
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "Eviction failed", e);
+            }
+        }, period, period, unit);
+    }
+    
+    /*
+     * Makes a change that must be journaled in the same step, then waits
+     * for its record to be durable. record is only encoded when there is
+     * a journal.
+     * 
+     * @return false if change made no change, when nothing is journaled
+     */
+    private boolean journaled(Supplier<byte[]> record, BooleanSupplier change) {
+        if (journal == null) {
+            return change.getAsBoolean();
+        }
+        long position = journal.append(record.get(), change);
+        if (position < 0) {
+            return false;
+        }
+        journal.awaitDurable(position);
+        return true;
+    }
+    
+    /*
+     * Appends record, returning the position to wait for before the change
+     * it records is acknowledged, or -1 when there is no journal.
+     */
+    private long journal(Supplier<byte[]> record) {
+        return journal == null ? -1 : journal.append(record.get());
+    }
+    
+    private void awaitDurable(long position) {
+        if (position >= 0) {
+            journal.awaitDurable(position);
+        }
+    }
+    
+    /*
+     * Redoes one journaled change, without notifying anyone or moving
+     * money. Replay runs before the house is shared, so lot monitors are
+     * not needed.
+     */
+    private void replay(ByteBuffer record) {
+        byte command = record.get();
+        switch (command) {
+        case CommandCodec.REGISTER_BUYER: {
+            String name = CommandCodec.getString(record);
+            String address = CommandCodec.getString(record);
+            String bankAccount = CommandCodec.getString(record);
+            buyerList.register(new Buyer(name, address, bankAccount, CommandCodec.getString(record)));
+            break;
+        }
+        case CommandCodec.REGISTER_SELLER: {
+            String name = CommandCodec.getString(record);
+            String address = CommandCodec.getString(record);
+            sellerList.register(new Seller(name, address, CommandCodec.getString(record)));
+            break;
+        }
+        case CommandCodec.ADD_LOT: {
+            int sellerId = record.getInt();
+            int number = record.getInt();
+            Money reservePrice = Money.ofPence(record.getLong());
+            String description = CommandCodec.getString(record);
+            catalogueLot.putIfAbsent(new Lot(sellerId, number, description, reservePrice, LotStatus.UNSOLD));
+            break;
+        }
+        case CommandCodec.NOTE_INTEREST: {
+            int buyerId = record.getInt();
+            catalogueLot.get(record.getInt()).addBuyer(buyerId, buyerList.get(buyerId).getAddress());
+            break;
+        }
+        case CommandCodec.OPEN_AUCTION: {
+            Lot lot = catalogueLot.get(record.getInt());
+            String name = CommandCodec.getString(record);
+            lot.setAuctioneer(new Auctioneer(name, CommandCodec.getString(record)));
+            lot.setInAuction();
+            break;
+        }
+        case CommandCodec.BID: {
+            int buyerId = record.getInt();
+            Lot lot = catalogueLot.get(record.getInt());
+            lot.placeBid(buyerId, Money.ofPence(record.getLong()));
+            break;
+        }
+        case CommandCodec.CLOSE_AUCTION: {
+            Lot lot = catalogueLot.get(record.getInt());
+            LotStatus outcome = CommandCodec.getStatus(record);
+            int highestBidderId = record.getInt();
+            lot.restore(outcome, Money.ofPence(record.getLong()), highestBidderId);
+            break;
+        }
+        case CommandCodec.SETTLE:
+            catalogueLot.get(record.getInt()).setSold();
+            break;
+        default:
+            throw new IllegalStateException("Unknown journal record " + command);
+        }
+    }
+    
+    /*
+     * Builds the address list for one multicast: the seller, every buyer
+     * interested in the lot except excludedBuyerId, then extraAddress.
+     * excludedBuyerId may be UserTable.NO_ID and extraAddress may be null.
+     */
+    private static String[] recipients(
+            String sellerAddress,
+            Lot lot,
+            int excludedBuyerId,
+            String extraAddress) {
+        InterestSet interested = lot.getInterestedBuyers();
+        int extra = extraAddress == null ? 0 : 1;
+        String[] addresses = new String[1 + interested.size() + extra];
+        int count = 0;
+        addresses[count++] = sellerAddress;
+        count += interested.copyAddresses(addresses, count, addresses.length - extra, excludedBuyerId);
+        if (extraAddress != null) {
+            addresses[count++] = extraAddress;
+        }
+        // shorter than allocated when excludedBuyerId was one of the interested
+        return count == addresses.length ? addresses : Arrays.copyOf(addresses, count);
     }
     
     public Status registerBuyer(
@@ -44,16 +391,18 @@ public class AuctionHouseImp implements AuctionHouse {
             String address,
             String bankAccount,
             String bankAuthCode) {
-        logger.fine(startBanner("registerBuyer " + name));
+        trace.log(Level.FINE, "registerBuyer {}", name);
+        HouseEvents.RegisterBuyer event = HouseEvents.registerBuyer(name);
         
-        //check if buyer is registered 
-        if(buyerList.get(name) == null) {
-            buyerList.put(name, new Buyer(name, address, bankAccount, bankAuthCode));
-            return Status.OK();    
+        //check if buyer is registered, atomically with registering it
+        Buyer buyer = new Buyer(name, address, bankAccount, bankAuthCode);
+        if(journaled(() -> CommandCodec.registerBuyer(name, address, bankAccount, bankAuthCode),
+                () -> buyerList.register(buyer) != UserTable.NO_ID)) {
+            return HouseEvents.end(event, Status.OK());    
         }
         else {
-            logger.warning(startBanner("Buyer already registered"));
-            return Status.error("This buyer has already been registerd");
+            trace.log(Level.WARNING, "Buyer already registered");
+            return HouseEvents.end(event, Status.of(Status.Code.BUYER_ALREADY_REGISTERED));
         }
     }
 
@@ -61,16 +410,17 @@ public class AuctionHouseImp implements AuctionHouse {
             String name,
             String address,
             String bankAccount) {
-        logger.fine(startBanner("registerSeller " + name));
+        trace.log(Level.FINE, "registerSeller {}", name);
         
-        //check if Seller is registered
-        if(sellerList.get(name) == null) {
-            sellerList.put(name, new Seller(name, address, bankAccount));
+        //check if Seller is registered, atomically with registering it
+        Seller seller = new Seller(name, address, bankAccount);
+        if(journaled(() -> CommandCodec.registerSeller(name, address, bankAccount),
+                () -> sellerList.register(seller) != UserTable.NO_ID)) {
             return Status.OK();    
         }
         else {
-            logger.warning(startBanner("Seller already registered"));
-            return Status.error("This seller has already been registered");
+            trace.log(Level.WARNING, "Seller already registered");
+            return Status.of(Status.Code.SELLER_ALREADY_REGISTERED);
         }
     }
 
@@ -79,89 +429,262 @@ public class AuctionHouseImp implements AuctionHouse {
             int number,
             String description,
             Money reservePrice) {
-        logger.fine(startBanner("addLot " + sellerName + " " + number));
+        trace.log(Level.FINE, "addLot {} {}", sellerName, number);
+        HouseEvents.AddLot event = HouseEvents.addLot();
         
+        return HouseEvents.end(event, number, addLotFor(sellerList.idOf(sellerName), number, description, reservePrice));
+    }
+    
+    public Status addLot(
+            int sellerId,
+            int number,
+            String description,
+            Money reservePrice) {
+        trace.log(Level.FINE, "addLot #{} {}", sellerId, number);
+        HouseEvents.AddLot event = HouseEvents.addLot();
+        
+        return HouseEvents.end(event, number, addLotFor(sellerId, number, description, reservePrice));
+    }
+    
+    private Status addLotFor(
+            int sellerId,
+            int number,
+            String description,
+            Money reservePrice) {
         //check if seller is unregistered
-        if(sellerList.get(sellerName) == null) {
-            logger.warning(startBanner("Seller not registered"));
-            return Status.error("This seller has not been registered"); 
+        if(sellerList.get(sellerId) == null) {
+            trace.log(Level.WARNING, "Seller not registered");
+            return Status.of(Status.Code.SELLER_NOT_REGISTERED); 
         }
         
-        catalogueEntries.put(number, new CatalogueEntry(number, description, LotStatus.UNSOLD));
-        catalogueLot.put(number, new Lot(sellerName, number, description, reservePrice, LotStatus.UNSOLD));
+ 
+        //replacing a lot could discard bids made on it concurrently, so lot numbers are claimed once
+        Lot lot = new Lot(sellerId, number, description, reservePrice, LotStatus.UNSOLD);
+        if(!journaled(() -> CommandCodec.addLot(sellerId, number, description, reservePrice.getPence()),
+                () -> catalogueLot.putIfAbsent(lot) == null)) {
+            trace.log(Level.WARNING, "Lot already registered");
+            return Status.of(Status.Code.LOT_ALREADY_REGISTERED);
+        }
         return Status.OK();    
     }
 
+    /*
+     * Adds a batch of lots of registered sellers, each as addLot would, but
+     * journals them in one step and waits for the journal once (see
+     * LotImporter).
+     * 
+     * @return whether each lot was added; a lot whose number is taken is not
+     */
+    boolean[] addLots(List<Lot> batch) {
+        boolean[] added = new boolean[batch.size()];
+        if (journal == null) {
+            for (int i = 0; i < added.length; i++) {
+                added[i] = catalogueLot.putIfAbsent(batch.get(i)) == null;
+            }
+            return added;
+        }
+        List<byte[]> records = new ArrayList<byte[]>(batch.size());
+        for (Lot lot : batch) {
+            records.add(CommandCodec.addLot(
+                    lot.getSellerId(), lot.getLotNumber(), lot.description, lot.getReservePrice().getPence()));
+        }
+        awaitDurable(journal.appendAll(records,
+                i -> added[i] = catalogueLot.putIfAbsent(batch.get(i)) == null));
+        return added;
+    }
+    
+    public int buyerId(String name) {
+        return buyerList.idOf(name);
+    }
+    
+    public int sellerId(String name) {
+        return sellerList.idOf(name);
+    }
+
     public List<CatalogueEntry> viewCatalogue() {
-        logger.fine(startBanner("viewCatalog"));
+        trace.log(Level.FINE, "viewCatalog");
         
-       List<CatalogueEntry> catalogue = new ArrayList<CatalogueEntry>(catalogueEntries.values());
+        // a read-only view of the store: no lot is copied until it is reached
+        return Collections.unmodifiableList(catalogueLot.entries());
+    }
+    
+    public CataloguePage viewCatalogue(
+            int afterLotNumber,
+            int pageSize,
+            LotStatus status) {
+        trace.log(Level.FINE, "viewCatalog {} {} {}", afterLotNumber, pageSize, status);
         
-        return catalogue;
+        List<CatalogueEntry> page = new ArrayList<CatalogueEntry>(Math.min(pageSize, 1024));
+        // with a status, only the lots in that status are visited
+        Iterator<Lot> lots = status == null
+                ? catalogueLot.lotsAfter(afterLotNumber).iterator()
+                : catalogueLot.lotsAfter(status, afterLotNumber).iterator();
+        int cursor = afterLotNumber;
+        while (page.size() < pageSize && lots.hasNext()) {
+            Lot lot = lots.next();
+            if (status == null || lot.getLotStatus() == status) {
+                page.add(lot.entry());
+            }
+            cursor = lot.getLotNumber();
+        }
+        return new CataloguePage(Collections.unmodifiableList(page), cursor, lots.hasNext());
+    }
+    
+    public Stream<CatalogueEntry> streamCatalogue(LotStatus status) {
+        trace.log(Level.FINE, "streamCatalog {}", status);
+        
+        if (status == null) {
+            return catalogueLot.lots().stream().map(Lot::entry);
+        }
+        // the index may still list a lot that is moving to another status
+        return catalogueLot.lots(status).stream()
+                .filter(lot -> lot.getLotStatus() == status)
+                .map(Lot::entry);
+    }
+    
+    public int countLots(LotStatus status) {
+        return catalogueLot.count(status);
+    }
+    
+    public List<CatalogueEntry> searchCatalogue(
+            String query,
+            LotStatus status,
+            int limit) {
+        trace.log(Level.FINE, "searchCatalog {} {} {}", query, status, limit);
+        
+        // a status held by few lots, like IN_AUCTION, is cheaper to search from its side
+        int[] among = null;
+        if (status != null && countLots(status) < catalogueLot.size() / 8) {
+            among = catalogueLot.lots(status).stream().mapToInt(lot -> lot.lotNumber).toArray();
+        }
+        // status is only checked for lots that would make the results
+        int[] found = catalogueLot.byDescription().search(query, limit,
+                lotNumber -> status == null || catalogueLot.statusOf(lotNumber) == status,
+                among);
+        List<CatalogueEntry> results = new ArrayList<CatalogueEntry>(found.length);
+        for (int lotNumber : found) {
+            results.add(catalogueLot.peek(lotNumber).entry());
+        }
+        return Collections.unmodifiableList(results);
     }
     
     public Status noteInterest(
             String buyerName,
             int lotNumber) {
-        logger.fine(startBanner("noteInterest " + buyerName + " " + lotNumber));
-       
-        if(catalogueLot.get(lotNumber) == null) {
-            logger.warning(startBanner("Lot not registered"));
-            return Status.error("This lot has not been registerd");
-        }
+        trace.log(Level.FINE, "noteInterest {} {}", buyerName, lotNumber);
+        HouseEvents.NoteInterest event = HouseEvents.noteInterest();
         
-        catalogueLot.get(lotNumber).addBuyer(buyerList.get(buyerName));
-       
-        return Status.OK();   
+        return HouseEvents.end(event, lotNumber, noteInterestOf(buyerList.idOf(buyerName), lotNumber));
+    }
+    
+    public Status noteInterest(
+            int buyerId,
+            int lotNumber) {
+        trace.log(Level.FINE, "noteInterest #{} {}", buyerId, lotNumber);
+        HouseEvents.NoteInterest event = HouseEvents.noteInterest();
+        
+        return HouseEvents.end(event, lotNumber, noteInterestOf(buyerId, lotNumber));
+    }
+    
+    private Status noteInterestOf(
+            int buyerId,
+            int lotNumber) {
+        Buyer buyer = buyerList.get(buyerId);
+        
+        for (;;) {
+            Lot currentLot = catalogueLot.get(lotNumber);
+            
+            if(currentLot == null) {
+                trace.log(Level.WARNING, "Lot not registered");
+                return Status.of(Status.Code.LOT_NOT_REGISTERED);
+            }
+            
+            if(buyer == null) {
+                trace.log(Level.WARNING, "Buyer not registered");
+                return Status.of(Status.Code.BUYER_NOT_REGISTERED);
+            }
+            
+            // the monitor keeps the lot from being archived while interest is added
+            synchronized (currentLot) {
+                if (currentLot.isEvicted()) {
+                    continue;
+                }
+                // noting interest again is harmless: the buyer is only notified once.
+                // It is journaled in the same step, so no bid relying on it is journaled first
+                journaled(() -> CommandCodec.noteInterest(buyerId, lotNumber), () -> {
+                    currentLot.addBuyer(buyerId, buyer.getAddress());
+                    return true;
+                });
+            }
+            
+            return Status.OK();
+        }
     }
 
     public Status openAuction(
             String auctioneerName,
             String auctioneerAddress,
             int lotNumber) {
-        logger.fine(startBanner("openAuction " + auctioneerName + " " + lotNumber));
+        trace.log(Level.FINE, "openAuction {} {}", auctioneerName, lotNumber);
+        HouseEvents.OpenAuction event = HouseEvents.openAuction();
         
-        if(catalogueLot.get(lotNumber) == null) {
-            logger.warning(startBanner("Lot not registered"));
-            return Status.error("This lot has not been registerd");
+        for (;;) {
+            Lot currentLot = catalogueLot.get(lotNumber);
+            
+            if(currentLot == null) {
+                trace.log(Level.WARNING, "Lot not registered");
+                return HouseEvents.end(event, lotNumber, Status.of(Status.Code.LOT_NOT_REGISTERED));
+            }
+            
+            synchronized (currentLot) {
+                // an archived lot is fetched back into the store and opened there
+                if (!currentLot.isEvicted()) {
+                    return HouseEvents.end(event, lotNumber,
+                            openAuction(currentLot, auctioneerName, auctioneerAddress, event));
+                }
+            }
         }
-        
-        
-        Lot currentLot = catalogueLot.get(lotNumber);
+    }
+    
+    // caller holds the lot's monitor; event may be null
+    private Status openAuction(Lot currentLot, String auctioneerName, String auctioneerAddress,
+            HouseEvents.Operation event) {
+        int lotNumber = currentLot.getLotNumber();
         
         // check if the lot is not already opened
         if (currentLot.getLotStatus() == LotStatus.UNSOLD) {
          // notify the seller
             //retrieve seller
             
-            String sellerAddress = sellerList.get(currentLot.getSellerName()).getAddress();
-            
-            parameters.messagingService.auctionOpened(sellerAddress, lotNumber);
+            // change the status of the lot, journaled in the same step so
+            // that no bid on it can be journaled first
+            journaled(() -> CommandCodec.openAuction(lotNumber, auctioneerName, auctioneerAddress), () -> {
+                currentLot.setAuctioneer(new Auctioneer(auctioneerName, auctioneerAddress));
+                currentLot.setInAuction();
+                return true;
+            });
             
+            String sellerAddress = sellerList.get(currentLot.getSellerId()).getAddress();
             
-            // notify each interested buyer
-            List<Buyer> buyers = catalogueLot.get(lotNumber).getInterestedBuyers();
-            for (Buyer b : buyers) {
-               parameters.messagingService.auctionOpened(b.getAddress(), lotNumber);
+            // notify the seller and each interested buyer in one multicast
+            String[] to = recipients(sellerAddress, currentLot, UserTable.NO_ID, null);
+            if (event != null) {
+                event.fanOut = to.length;
             }
-            
-            currentLot.setAuctioneer(new Auctioneer(auctioneerName, auctioneerAddress));
-            
-            // change the status of the lot
-            currentLot.setInAuction();
+            parameters.messagingService.auctionOpened(to, lotNumber);
             
             return Status.OK();
         }
         
         if (currentLot.getLotStatus() == LotStatus.SOLD) {
-            logger.warning(startBanner("Lot already sold"));
-            return Status.error("This lot is already sold.");
+            trace.log(Level.WARNING, "Lot already sold");
+            return Status.of(Status.Code.LOT_SOLD);
         } else if (currentLot.getLotStatus() == LotStatus.IN_AUCTION) {
-            logger.warning(startBanner("Lot not opened"));
-            return Status.error("This lot has already been opened.");
+            trace.log(Level.WARNING, "Lot not opened");
+            return Status.of(Status.Code.LOT_ALREADY_OPENED);
         } else {
-            logger.warning(startBanner("Lot already sold and pending payment"));
-            return Status.error("This lot is already sold and is pending payment.");
+            trace.log(Level.WARNING, "Lot already sold and pending payment");
+            return Status.of(Status.Code.LOT_PENDING_PAYMENT);
         }
     }
 
@@ -169,58 +692,82 @@ public class AuctionHouseImp implements AuctionHouse {
             String buyerName,
             int lotNumber,
             Money bid) {
-        logger.fine(startBanner("makeBid " + buyerName + " " + lotNumber + " " + bid));
+        trace.log(Level.FINE, "makeBid {} {} {}", buyerName, lotNumber, bid);
+        HouseEvents.MakeBid event = HouseEvents.makeBid(bid);
         
+        return HouseEvents.end(event, lotNumber, makeBidFor(buyerList.idOf(buyerName), lotNumber, bid, event));
+    }
+    
+    public Status makeBid(
+            int buyerId,
+            int lotNumber,
+            Money bid) {
+        trace.log(Level.FINE, "makeBid #{} {} {}", buyerId, lotNumber, bid);
+        HouseEvents.MakeBid event = HouseEvents.makeBid(bid);
+        
+        return HouseEvents.end(event, lotNumber, makeBidFor(buyerId, lotNumber, bid, event));
+    }
+    
+    // event may be null
+    private Status makeBidFor(
+            int buyerId,
+            int lotNumber,
+            Money bid,
+            HouseEvents.Operation event) {
         Lot currentLot = catalogueLot.get(lotNumber);
         
-        if (currentLot.getLotStatus() == LotStatus.IN_AUCTION) {
-            
-            Money currentBid = currentLot.getHighestBid();
+        if(currentLot == null) {
+            trace.log(Level.WARNING, "Lot not registered");
+            return Status.of(Status.Code.LOT_NOT_REGISTERED);
+        }
+        
+        // bids are not serialized on the lot: Lot.placeBid swaps the highest
+        // bid atomically, so losing bids fail without waiting for winning ones
+        Lot.BidState refused = currentLot.getBidState();
+        
+        if (refused.status == LotStatus.IN_AUCTION) {
             
             //if a buyer has not noted interest in a lot he/she cannot make a bid on it
-            if(!currentLot.getInterestedBuyers().contains(buyerList.get(buyerName))){
-                logger.warning("Buyer has not noted interest");
-                return Status.error("Buyer has not noted interest");
-            }
-            
-            if (!bid.lessEqual(currentBid)) {
-                currentLot.setHighestBid(bid);
-                currentLot.setHighestBidder(buyerList.get(buyerName));;
-            }
-            else {
-                logger.warning("Bid not high enough");
-                return Status.error("Bid not high enough");
+            if(!currentLot.getInterestedBuyers().contains(buyerId)){
+                trace.log(Level.WARNING, "Buyer has not noted interest");
+                return Status.of(Status.Code.BUYER_NOT_INTERESTED);
             }
             
-            String sellerAddress = sellerList.get(currentLot.getSellerName()).getAddress();
-            //notify Seller that the bid was accepted
-            parameters.messagingService.bidAccepted(sellerAddress, lotNumber, bid);
-            
+            refused = currentLot.placeBid(buyerId, bid);
             
-            // notify each interested buyer
-            List<Buyer> buyers = catalogueLot.get(lotNumber).getInterestedBuyers();
-            for (Buyer b : buyers) {
-                if (b.getName() != buyerName) {
-                    parameters.messagingService.bidAccepted(b.getAddress(), lotNumber, bid);
+            if (refused == null) {
+                awaitDurable(journal(() -> CommandCodec.bid(buyerId, lotNumber, bid.getPence())));
+                
+                String sellerAddress = sellerList.get(currentLot.getSellerId()).getAddress();
+                String auctioneerAddress = currentLot.getAuctioneer().getAddress();
+                
+                //notify Seller, every other interested buyer and the auctioneer in one multicast
+                String[] to = recipients(sellerAddress, currentLot, buyerId, auctioneerAddress);
+                if (event != null) {
+                    event.fanOut = to.length;
                 }
+                parameters.messagingService.bidAccepted(to, lotNumber, bid);
+                
+                trace.log(Level.FINER, "Bid #{} {} {} accepted", buyerId, lotNumber, bid);
+                return Status.OK();
             }
             
-            //notify auctioneer
-            String auctioneerAddress = currentLot.getAuctioneer().getAddress();
-            parameters.messagingService.bidAccepted(auctioneerAddress, lotNumber, bid);
-            
-            return Status.OK();
+            if (refused.status == LotStatus.IN_AUCTION) {
+                trace.log(Level.WARNING, "Bid not high enough");
+                return Status.of(Status.Code.BID_TOO_LOW);
+            }
         }
         
-        if (currentLot.getLotStatus() == LotStatus.SOLD) {
-            logger.warning(startBanner("Lot already sold"));
-            return Status.error("This lot is already sold.");
-        } else if (currentLot.getLotStatus() == LotStatus.UNSOLD) {
-            logger.warning(startBanner("Lot not opened"));
-            return Status.error("This lot has not been opened.");
+        // the auction was not open, or was closed while the bid was placed
+        if (refused.status == LotStatus.SOLD) {
+            trace.log(Level.WARNING, "Lot already sold");
+            return Status.of(Status.Code.LOT_SOLD);
+        } else if (refused.status == LotStatus.UNSOLD) {
+            trace.log(Level.WARNING, "Lot not opened");
+            return Status.of(Status.Code.LOT_NOT_OPENED);
         } else {
-            logger.warning(startBanner("Lot already sold and pending payment"));
-            return Status.error("This lot is already sold and is pending payment.");
+            trace.log(Level.WARNING, "Lot already sold and pending payment");
+            return Status.of(Status.Code.LOT_PENDING_PAYMENT);
         }
         
     }
@@ -228,68 +775,237 @@ public class AuctionHouseImp implements AuctionHouse {
     public Status closeAuction(
             String auctioneerName,
             int lotNumber) {
-        logger.fine(startBanner("closeAuction " + auctioneerName + " " + lotNumber));
+        trace.log(Level.FINE, "closeAuction {} {}", auctioneerName, lotNumber);
+        HouseEvents.CloseAuction event = HouseEvents.closeAuction();
         
         Lot currentLot = catalogueLot.get(lotNumber);
         
         
         if(currentLot == null) {
-            return Status.error("This lot has not been registerd");
+            return HouseEvents.end(event, lotNumber, Status.of(Status.Code.LOT_NOT_REGISTERED));
         }
         
-        if(currentLot.status != LotStatus.IN_AUCTION) {
-            return Status.error("This lot has not been opened");
+        synchronized (currentLot) {
+            return HouseEvents.end(event, lotNumber, closeAuction(currentLot, auctioneerName, event));
         }
+    }
+    
+    public List<Status> closeAuctions(
+            String auctioneerName,
+            List<Integer> lotNumbers) {
+        trace.log(Level.FINE, "closeAuctions {} {} lots", auctioneerName, lotNumbers.size());
+        
+        // each entry's lot number above its index: sorted, the entries for a
+        // lot are together and in list order
+        long[] order = new long[lotNumbers.size()];
+        int index = 0;
+        for (int lotNumber : lotNumbers) {
+            order[index] = (long) lotNumber << 32 | index;
+            index++;
+        }
+        Arrays.sort(order);
+        Status[] statuses = new Status[order.length];
+        if (order.length > 0) {
+            closePool.invoke(new CloseTask(auctioneerName, order, 0, order.length, statuses));
+        }
+        return Arrays.asList(statuses);
+    }
+    
+    /*
+     * Closes the entries order[from, to) of closeAuctions, halving the range
+     * between two lots until it holds the entries of one lot only. Those
+     * are closed in turn, so a lot listed twice is closed by its first entry.
+     */
+    private final class CloseTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        private final String auctioneerName;
+        private final long[] order;
+        private final int from;
+        private final int to;
+        private final Status[] statuses;
+        
+        CloseTask(String auctioneerName, long[] order, int from, int to, Status[] statuses) {
+            this.auctioneerName = auctioneerName;
+            this.order = order;
+            this.from = from;
+            this.to = to;
+            this.statuses = statuses;
+        }
+        
+        private boolean sameLot(int i, int j) {
+            return order[i] >> 32 == order[j] >> 32;
+        }
+        
+        protected void compute() {
+            // the first entry of a lot nearest the middle
+            int middle = (from + to) >>> 1;
+            int split = middle;
+            while (split > from && sameLot(split - 1, split)) {
+                split--;
+            }
+            if (split == from) {
+                split = middle + 1;
+                while (split < to && sameLot(split - 1, split)) {
+                    split++;
+                }
+            }
+            if (split >= to) {
+                for (int i = from; i < to; i++) {
+                    statuses[(int) order[i]] = closeAuction(auctioneerName, (int) (order[i] >> 32));
+                }
+                return;
+            }
+            invokeAll(new CloseTask(auctioneerName, order, from, split, statuses),
+                    new CloseTask(auctioneerName, order, split, to, statuses));
+        }
+    }
+    
+    // caller holds the lot's monitor; event may be null
+    private Status closeAuction(Lot currentLot, String auctioneerName, HouseEvents.Operation event) {
+        int lotNumber = currentLot.getLotNumber();
         
-        if(currentLot.getAuctioneer().getName() != auctioneerName) {
-            return Status.error("This auctioneer is not authorized to close this auction");
+        if(currentLot.getLotStatus() != LotStatus.IN_AUCTION) {
+            return Status.of(Status.Code.LOT_NOT_OPENED);
         }
         
+        if(!currentLot.getAuctioneer().getName().equals(auctioneerName)) {
+            return Status.of(Status.Code.AUCTIONEER_NOT_AUTHORIZED);
+        }
         
+        // bring the hammer down: take the final bid and leave the auction in
+        // one step, so that no bid can be accepted after the outcome is decided
+        Lot.BidState hammer;
+        boolean reserveMet;
+        do {
+            hammer = currentLot.getBidState();
+            reserveMet = hammer.highestBidderId != UserTable.NO_ID
+                    && Money.compare(currentLot.getReservePrice().getPence(), hammer.highestBid.getPence()) <= 0;
+        } while (!currentLot.compareAndSetBidState(hammer,
+                hammer.withStatus(reserveMet ? LotStatus.SOLD_PENDING_PAYMENT : LotStatus.UNSOLD)));
         
-        Money finalBid = currentLot.getHighestBid();
+        // the outcome is durable before any money moves
+        Lot.BidState closed = hammer;
+        LotStatus outcome = reserveMet ? LotStatus.SOLD_PENDING_PAYMENT : LotStatus.UNSOLD;
+        awaitDurable(journal(() -> CommandCodec.closeAuction(
+                lotNumber, outcome, closed.highestBidderId, closed.highestBid.getPence())));
         
-        if (currentLot.getReservePrice().lessEqual(finalBid)) {
-            String buyerAccount = currentLot.getHighestBidder().getAccount();
-            String buyerAuthCode = currentLot.getHighestBidder().getAuthCode();
-            String sellerAccount = sellerList.get(catalogueLot.get(lotNumber).getSellerName()).getAccount();
-            Money amountBuyer = currentLot.getHighestBid().addPercent(parameters.buyerPremium);
-            Money amountSeller = currentLot.getHighestBid().addPercent(-parameters.commission);
-            Status buyertoHouse = parameters.bankingService.transfer(buyerAccount, buyerAuthCode, parameters.houseBankAccount, amountBuyer);
-            Status housetoSeller = parameters.bankingService.transfer(parameters.houseBankAccount, parameters.houseBankAuthCode, sellerAccount, amountSeller);
+        if (reserveMet) {
+            // the lot stays sold pending payment until both transfers succeed
+            Buyer highestBidder = buyerList.get(hammer.highestBidderId);
+            String buyerAccount = highestBidder.getAccount();
+            String buyerAuthCode = highestBidder.getAuthCode();
+            String sellerAccount = sellerList.get(currentLot.getSellerId()).getAccount();
+            long hammerPence = hammer.highestBid.getPence();
+            long buyerPence = Money.addBasisPoints(hammerPence, buyerPremiumBasisPoints);
+            long sellerPence = Money.addBasisPoints(hammerPence, -commissionBasisPoints);
+            
+            if (settlement == Settlement.NETTED) {
+                unsettled.add(new NettedSettlement.Sale(
+                        currentLot, buyerAccount, buyerAuthCode, sellerAccount, buyerPence, sellerPence));
+                return Status.of(Status.Code.SALE_PENDING_PAYMENT);
+            }
+            
+            Status buyertoHouse = parameters.bankingService.transfer(buyerAccount, buyerAuthCode, parameters.houseBankAccount, Money.ofPence(buyerPence));
+            Status housetoSeller = parameters.bankingService.transfer(parameters.houseBankAccount, parameters.houseBankAuthCode, sellerAccount, Money.ofPence(sellerPence));
             
             //verify both transactions were okay
             if(housetoSeller.kind == Status.Kind.OK && buyertoHouse.kind == Status.Kind.OK) {
-                currentLot.setSold();
-                String sellerAddress = sellerList.get(currentLot.getSellerName()).getAddress();
-                
-                parameters.messagingService.lotSold(sellerAddress, lotNumber);
-                                
-                // notify each interested buyer
-                List<Buyer> buyers = catalogueLot.get(lotNumber).getInterestedBuyers();
-                for (Buyer b : buyers) {
-                   parameters.messagingService.lotSold(b.getAddress(), lotNumber);
-                }
-                
-                return new Status(Status.Kind.SALE);
+                sold(currentLot, event);
+                return Status.of(Status.Code.SALE);
             } else {
-                //if the transactions do not go through then the sale is pending
-                currentLot.setPendingPayment();
-                return new Status(Status.Kind.SALE_PENDING_PAYMENT);
+                //if the transactions do not go through then the sale is pending,
+                //and only the transfer that failed is retried, in the background
+                //or else by settleQueued
+                NettedSettlement.Sale sale = new NettedSettlement.Sale(
+                        currentLot, buyerAccount, buyerAuthCode, sellerAccount, buyerPence, sellerPence);
+                sale.buyerPaid = buyertoHouse.kind == Status.Kind.OK;
+                sale.sellerPaid = housetoSeller.kind == Status.Kind.OK;
+                retryLater(sale);
+                return Status.of(Status.Code.SALE_PENDING_PAYMENT);
             }   
         } else {
-            currentLot.setUnsold();
-            String sellerAddress = sellerList.get(currentLot.getSellerName()).getAddress();
-            
-            parameters.messagingService.lotUnsold(sellerAddress, lotNumber);
+            String sellerAddress = sellerList.get(currentLot.getSellerId()).getAddress();
             
-            // notify each interested buyer
-            List<Buyer> buyers = catalogueLot.get(lotNumber).getInterestedBuyers();
-            for (Buyer b : buyers) {
-               parameters.messagingService.lotUnsold(b.getAddress(), lotNumber);
+            // notify the seller and each interested buyer in one multicast
+            String[] to = recipients(sellerAddress, currentLot, UserTable.NO_ID, null);
+            if (event != null) {
+                event.fanOut = to.length;
             }
+            parameters.messagingService.lotUnsold(to, lotNumber);
             
-            return new Status(Status.Kind.NO_SALE);
+            return Status.of(Status.Code.NO_SALE);
+        }
+    }
+    
+    // caller holds the lot's monitor; event may be null
+    private void sold(Lot currentLot, HouseEvents.Operation event) {
+        int lotNumber = currentLot.getLotNumber();
+        currentLot.setSold();
+        awaitDurable(journal(() -> CommandCodec.settle(lotNumber)));
+        String sellerAddress = sellerList.get(currentLot.getSellerId()).getAddress();
+        
+        // notify the seller and each interested buyer in one multicast
+        String[] to = recipients(sellerAddress, currentLot, UserTable.NO_ID, null);
+        if (event != null) {
+            event.fanOut = to.length;
+        }
+        parameters.messagingService.lotSold(to, lotNumber);
+    }
+    
+    /*
+     * Hands a sale still owing payments to the payment retrier, or, if there
+     * is none, queues it for settleQueued. A retrier closed meanwhile hands
+     * the sale back to the queue itself.
+     */
+    private void retryLater(NettedSettlement.Sale sale) {
+        PaymentRetrier payments = retrier;
+        if (payments != null) {
+            payments.add(sale);
+        } else {
+            unsettled.add(sale);
+        }
+    }
+    
+    /**
+     * Settles the sales that closeAuction has queued in NETTED settlement,
+     * and those whose payments failed with no retrier to take them: the
+     * payments owed are netted per account (see NettedSettlement) and
+     * made in one call of BankingService.transferBatch. Each lot whose
+     * payments have all been made is SOLD, and the seller and interested
+     * buyers are told. The others stay SOLD_PENDING_PAYMENT, owing only the
+     * payments that failed, and are handed to the payment retrier if there
+     * is one, or else stay queued for the next call.
+     * 
+     * @return the number of lots sold
+     */
+    public int settleQueued() {
+        synchronized (unsettled) {
+            NettedSettlement batch = new NettedSettlement(
+                    parameters.houseBankAccount, parameters.houseBankAuthCode);
+            for (NettedSettlement.Sale sale = unsettled.poll(); sale != null; sale = unsettled.poll()) {
+                batch.add(sale);
+            }
+            if (batch.isEmpty()) {
+                return 0;
+            }
+            List<BankingService.Transfer> transfers = batch.transfers();
+            List<Status> outcomes = transfers.isEmpty()
+                    ? Collections.<Status>emptyList()
+                    : parameters.bankingService.transferBatch(transfers);
+            int sold = 0;
+            for (NettedSettlement.Sale sale : batch.apply(outcomes)) {
+                if (!sale.isPaid()) {
+                    retryLater(sale);
+                    continue;
+                }
+                synchronized (sale.lot) {
+                    sold(sale.lot, null);
+                }
+                sold++;
+            }
+            logger.info("Settled " + sold + " lots in " + transfers.size() + " transfers");
+            return sold;
         }
     }
 }
@@ -4,12 +4,21 @@
 package auctionhouse;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.RandomAccess;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -223,6 +232,118 @@ public class AuctionHouseTest {
         assertEquals(expectedCatalogue, actualCatalogue);
     }
 
+    @Test
+    public void testCatalogueEntriesDoNotChange() {
+        logger.info(makeBanner("testCatalogueEntriesDoNotChange"));
+        runStory(2);
+        
+        List<CatalogueEntry> catalogue = house.viewCatalogue();
+        CatalogueEntry before = catalogue.get(0);
+        assertOK(house.openAuction("Auctioneer1", "@Auctioneer1", 1));
+        
+        // an entry is a snapshot, while the catalogue is a view of the lots
+        assertEquals(LotStatus.UNSOLD, before.status);
+        assertEquals(LotStatus.IN_AUCTION, catalogue.get(0).status);
+        try {
+            catalogue.remove(0);
+            fail("catalogue changed");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCatalogueIsSequential() {
+        logger.info(makeBanner("testCatalogueIsSequential"));
+        runStory(2);
+        
+        List<CatalogueEntry> catalogue = house.viewCatalogue();
+        CatalogueEntry table = new CatalogueEntry(5, "Table", LotStatus.UNSOLD);
+        assertFalse(catalogue instanceof RandomAccess);
+        assertEquals(3, catalogue.size());
+        assertEquals(2, catalogue.indexOf(table));
+        assertEquals(2, catalogue.lastIndexOf(table));
+        
+        ListIterator<CatalogueEntry> entries = catalogue.listIterator(1);
+        assertEquals(2, entries.next().lotNumber);
+        assertEquals(2, entries.previous().lotNumber);
+        assertEquals(1, entries.previous().lotNumber);
+        assertFalse(entries.hasPrevious());
+        assertEquals(1, entries.next().lotNumber);
+    }
+
+    @Test
+    public void testViewCataloguePages() {
+        logger.info(makeBanner("testViewCataloguePages"));
+        runStory(2);
+        
+        CataloguePage first = house.viewCatalogue(CataloguePage.START, 2, null);
+        assertEquals(Arrays.asList(
+                new CatalogueEntry(1, "Bicycle", LotStatus.UNSOLD),
+                new CatalogueEntry(2, "Painting", LotStatus.UNSOLD)), first.entries);
+        assertTrue(first.hasMore);
+        
+        CataloguePage second = house.viewCatalogue(first.nextCursor, 2, null);
+        assertEquals(Arrays.asList(
+                new CatalogueEntry(5, "Table", LotStatus.UNSOLD)), second.entries);
+        assertFalse(second.hasMore);
+    }
+    
+    @Test
+    public void testViewCatalogueByStatus() {
+        logger.info(makeBanner("testViewCatalogueByStatus"));
+        runStory(5);
+        
+        List<CatalogueEntry> inAuction = Arrays.asList(new CatalogueEntry(1, "Bicycle", LotStatus.IN_AUCTION));
+        assertEquals(inAuction, house.viewCatalogue(CataloguePage.START, 10, LotStatus.IN_AUCTION).entries);
+        assertEquals(inAuction, house.streamCatalogue(LotStatus.IN_AUCTION).collect(Collectors.toList()));
+        assertEquals(2, house.streamCatalogue(LotStatus.UNSOLD).count());
+        assertEquals(1, house.countLots(LotStatus.IN_AUCTION));
+        assertEquals(2, house.countLots(LotStatus.UNSOLD));
+        assertEquals(0, house.countLots(LotStatus.SOLD));
+    }
+
+    @Test
+    public void testSearchCatalogue() {
+        logger.info(makeBanner("testSearchCatalogue"));
+        runStory(1);
+        assertOK(house.addLot("SellerY", 7, "Victorian mantel clock", new Money("50.00")));
+        assertOK(house.addLot("SellerY", 3, "Clock, carriage (brass)", new Money("50.00")));
+        assertOK(house.addLot("SellerY", 4, "Victorian writing desk", new Money("50.00")));
+        assertOK(house.addLot("SellerY", 9, "Oak desk", new Money("50.00")));
+        assertOK(house.openAuction("Auctioneer1", "@Auctioneer1", 3));
+        
+        // lots with both words first, then by rarer word, then by lot number
+        assertEquals(Arrays.asList(7, 3, 4), lotNumbers(house.searchCatalogue("victorian CLOCK", null, 10)));
+        assertEquals(Arrays.asList(7, 3), lotNumbers(house.searchCatalogue("victorian clock", null, 2)));
+        assertEquals(Arrays.asList(4, 7), lotNumbers(house.searchCatalogue("vict*", null, 10)));
+        assertEquals(Arrays.asList(9, 4), lotNumbers(house.searchCatalogue("desk oak", null, 10)));
+        assertEquals(Arrays.asList(3), lotNumbers(house.searchCatalogue("clock", LotStatus.IN_AUCTION, 10)));
+        assertEquals(Arrays.asList(), lotNumbers(house.searchCatalogue("table", null, 10)));
+    }
+    
+    @Test
+    public void testSearchCatalogueLoadedOutOfOrder() {
+        logger.info(makeBanner("testSearchCatalogueLoadedOutOfOrder"));
+        runStory(1);
+        // lots 100 to 299, added from the highest down, half chairs and half chests
+        for (int number = 299; number >= 100; number--) {
+            String description = (number % 2 == 0 ? "Oak chair " : "Oak chest ") + number;
+            assertOK(house.addLot("SellerY", number, description, new Money("50.00")));
+        }
+        
+        assertEquals(Arrays.asList(100, 102, 104), lotNumbers(house.searchCatalogue("chair", null, 3)));
+        assertEquals(Arrays.asList(101, 103), lotNumbers(house.searchCatalogue("chest", null, 2)));
+        // one prefix matching two terms, each lot counted once
+        assertEquals(Arrays.asList(100, 101, 102), lotNumbers(house.searchCatalogue("ch*", null, 3)));
+        assertEquals(200, house.searchCatalogue("ch*", null, 1000).size());
+        assertEquals(Arrays.asList(150, 151), lotNumbers(house.searchCatalogue("chair 150 151", null, 2)));
+    }
+    
+    private static List<Integer> lotNumbers(List<CatalogueEntry> entries) {
+        return entries.stream().map(entry -> entry.lotNumber).collect(Collectors.toList());
+    }
+
     @Test
     public void testRegisterBuyer() {
         logger.info(makeBanner("testRegisterBuyer"));
@@ -249,6 +370,35 @@ public class AuctionHouseTest {
         runStory(5);       
     }
     
+    @Test
+    //test that each event reaches all of its addresses in a single multicast
+    public void testNotificationsAreMulticast() {
+        logger.info(makeBanner("testNotificationsAreMulticast"));
+        runStory(4);
+        assertOK(house.openAuction("Auctioneer1", "@Auctioneer1", 1));
+        assertOK(house.makeBid("BuyerA", 1, new Money("70.00")));
+        // seller and two buyers; then seller, the other buyer and the auctioneer
+        assertEquals(Arrays.asList(3, 3), messagingService.getMulticasts());
+    }
+    
+    @Test
+    //test that noting interest twice does not notify the buyer twice
+    public void testNoteInterestTwice() {
+        logger.info(makeBanner("testNoteInterestTwice"));
+        runStory(4);
+        assertOK(house.noteInterest("BuyerA", 1));
+        assertOK(house.openAuction("Auctioneer1", "@Auctioneer1", 1));
+        assertEquals(Arrays.asList(3), messagingService.getMulticasts());
+    }
+    
+    @Test
+    //test the case where an unregistered buyer notes interest
+    public void testNoteInterestUnregBuyer() {
+        logger.info(makeBanner("testNoteInterestUnregBuyer"));
+        runStory(3);
+        assertError(house.noteInterest("BuyerN", 1));
+    }
+    
     @Test
     //test the case where an auction is opened on an unregistered lot
     public void testOpenAuctionUnregLot() {
@@ -278,6 +428,52 @@ public class AuctionHouseTest {
         assertError(house.makeBid("BuyerA",1, new Money("20")));
     }
     
+    @Test
+    //test that rejections carry their code, and are shared rather than made per call
+    public void testErrorCodes() {
+        logger.info(makeBanner("testErrorCodes"));
+        runStory(7);
+        Status tooLow = house.makeBid("BuyerA", 1, new Money("20"));
+        assertEquals(Status.Code.BID_TOO_LOW, tooLow.code);
+        assertEquals(Status.Kind.ERROR, tooLow.kind);
+        assertEquals("Bid not high enough", tooLow.message);
+        assertSame(tooLow, house.makeBid("BuyerA", 1, new Money("30")));
+        assertEquals(Status.Code.BUYER_NOT_INTERESTED, house.makeBid("BuyerC", 1, new Money("1200")).code);
+        assertEquals(Status.Code.LOT_NOT_OPENED, house.makeBid("BuyerA", 5, new Money("1200")).code);
+        assertEquals(Status.Code.LOT_NOT_REGISTERED, house.makeBid("BuyerA", 19, new Money("1200")).code);
+        assertEquals(Status.Code.OK, house.makeBid("BuyerA", 1, new Money("1200")).code);
+        assertEquals(Status.Code.OTHER, Status.error("Transfer failed").code);
+        assertEquals(Status.Code.SALE, new Status(Status.Kind.SALE).code);
+    }
+    
+    @Test
+    //test that the ID-based operations behave like the name-based ones
+    public void testIdOperations() {
+        logger.info(makeBanner("testIdOperations"));
+        runStory(3);
+        int sellerY = house.sellerId("SellerY");
+        int buyerA = house.buyerId("BuyerA");
+        int buyerC = house.buyerId("BuyerC");
+        assertEquals(0, sellerY);
+        assertEquals(2, buyerC);
+        assertEquals(-1, house.buyerId("BuyerN"));
+        
+        assertOK(house.addLot(sellerY, 7, "Clock", new Money("50.00")));
+        assertError(house.addLot(-1, 8, "Vase", new Money("50.00")));
+        assertOK(house.noteInterest(buyerA, 7));
+        assertOK(house.openAuction("Auctioneer1", "@Auctioneer1", 7));
+        messagingService.expectAuctionOpened("@BuyerA", 7);
+        messagingService.expectAuctionOpened("@SellerY", 7);
+        messagingService.verify();
+        
+        Money m60 = new Money("60.00");
+        assertError(house.makeBid(buyerC, 7, m60));
+        assertOK(house.makeBid(buyerA, 7, m60));
+        messagingService.expectBidReceived("@Auctioneer1", 7, m60);
+        messagingService.expectBidReceived("@SellerY", 7, m60);
+        messagingService.verify();
+    }
+    
     @Test
     public void testCloseAuctionUnopenedLot() {
         logger.info(makeBanner("testCloseAuctionUnopenedLot"));
@@ -317,7 +513,155 @@ public class AuctionHouseTest {
         
         assertPendingPayment(house.closeAuction("Auctioneer1",  1));
     }
+
+    @Test
+    public void testCloseAuctions() {
+        logger.info(makeBanner("testCloseAuctions"));
+        runStory(7);
+        assertOK(house.openAuction("Auctioneer2", "@Auctioneer2", 2));
+        messagingService.expectAuctionOpened("@BuyerB", 2);
+        messagingService.expectAuctionOpened("@SellerY", 2);
+        messagingService.verify();
+        
+        // the same outcomes as closing each in turn: lot 1 is sold by its
+        // first entry only, and the others fail
+        List<Status> statuses = house.closeAuctions("Auctioneer1", Arrays.asList(1, 5, 19, 1, 2));
+        assertEquals(5, statuses.size());
+        assertSale(statuses.get(0));
+        assertError(statuses.get(1));
+        assertError(statuses.get(2));
+        assertError(statuses.get(3));
+        assertError(statuses.get(4));
+        messagingService.expectLotSold("@BuyerA", 1);
+        messagingService.expectLotSold("@BuyerB", 1);
+        messagingService.expectLotSold("@SellerY", 1);
+        messagingService.verify();
+        bankingService.expectTransfer("BB A/C",  "BB-auth",  "AH A/C", new Money("110.00"));
+        bankingService.expectTransfer("AH A/C",  "AH-auth",  "SY A/C", new Money("85.00"));
+        bankingService.verify();
+        assertEquals(1, house.countLots(LotStatus.IN_AUCTION));
+    }
     
-     
+    @Test
+    public void testImportLots() throws Exception {
+        logger.info(makeBanner("testImportLots"));
+        runStory(2);
+        String file = "SellerY,3,50.00,Chair, oak" + LS
+                + LS
+                + "SellerX,4,50.00,Lamp" + LS
+                + "SellerZ,five,50.00,Lamp" + LS
+                + "SellerZ,6,fifty,Lamp" + LS
+                + "SellerZ,7,50.00" + LS
+                + "SellerY,2,50.00,Painting" + LS
+                + "SellerY,3,60.00,Chair" + LS
+                + "SellerZ,8,25.00,Stool" + LS;
+        List<LotImporter.Rejection> rejections = new ArrayList<LotImporter.Rejection>();
+        LotImporter importer = new LotImporter((AuctionHouseImp) house, ',', 2);
+        assertEquals(2, importer.importLots(new StringReader(file), rejections::add));
+        
+        assertEquals(Arrays.asList(
+                "line 3: This seller has not been registered",
+                "line 4: This lot number is not a number",
+                "line 5: This reserve price is not an amount of money",
+                "line 6: This line does not have a seller, lot number, reserve price and description",
+                "line 7: This lot has already been registered",
+                "line 8: This lot has already been registered"),
+                rejections.stream().map(Object::toString).collect(Collectors.toList()));
+        assertEquals(Arrays.asList(
+                new CatalogueEntry(1, "Bicycle", LotStatus.UNSOLD),
+                new CatalogueEntry(2, "Painting", LotStatus.UNSOLD),
+                new CatalogueEntry(3, "Chair, oak", LotStatus.UNSOLD),
+                new CatalogueEntry(5, "Table", LotStatus.UNSOLD),
+                new CatalogueEntry(8, "Stool", LotStatus.UNSOLD)),
+                house.viewCatalogue());
+        assertEquals(Arrays.asList(8), lotNumbers(house.searchCatalogue("stool", null, 10)));
+    }
+    
+    /*
+     * Continues the story to 7 in NETTED settlement, with lot 5 sold to
+     * BuyerA for 150.00 and lot 2 sold to BuyerB for 200.00 alongside lot 1,
+     * all three pending payment.
+     */
+    private AuctionHouseImp runNettedStory() {
+        runStory(7);
+        AuctionHouseImp netted = (AuctionHouseImp) house;
+        netted.setSettlement(AuctionHouseImp.Settlement.NETTED);
+        assertOK(house.openAuction("Auctioneer1", "@Auctioneer1", 5));
+        assertOK(house.makeBid("BuyerA", 5, new Money("150.00")));
+        assertOK(house.openAuction("Auctioneer1", "@Auctioneer1", 2));
+        assertOK(house.makeBid("BuyerB", 2, new Money("200.00")));
+        messagingService.expectAuctionOpened("@BuyerA", 5);
+        messagingService.expectAuctionOpened("@SellerZ", 5);
+        messagingService.expectBidReceived("@Auctioneer1", 5, new Money("150.00"));
+        messagingService.expectBidReceived("@SellerZ", 5, new Money("150.00"));
+        messagingService.expectAuctionOpened("@BuyerB", 2);
+        messagingService.expectAuctionOpened("@SellerY", 2);
+        messagingService.expectBidReceived("@Auctioneer1", 2, new Money("200.00"));
+        messagingService.expectBidReceived("@SellerY", 2, new Money("200.00"));
+        messagingService.verify();
+        
+        // nothing is paid until the queue is settled
+        assertPendingPayment(house.closeAuction("Auctioneer1", 1));
+        assertPendingPayment(house.closeAuction("Auctioneer1", 5));
+        assertPendingPayment(house.closeAuction("Auctioneer1", 2));
+        assertEquals(3, house.countLots(LotStatus.SOLD_PENDING_PAYMENT));
+        bankingService.verify();
+        messagingService.verify();
+        return netted;
+    }
+    
+    @Test
+    public void testNettedSettlement() {
+        logger.info(makeBanner("testNettedSettlement"));
+        AuctionHouseImp netted = runNettedStory();
+        
+        // one transfer per account: BuyerB pays for lots 1 and 2, SellerY is paid for both
+        assertEquals(3, netted.settleQueued());
+        bankingService.expectBatch(
+                new BankingService.Transfer("BB A/C", "BB-auth", "AH A/C", new Money("330.00")),
+                new BankingService.Transfer("AH A/C", "AH-auth", "SY A/C", new Money("255.00")),
+                new BankingService.Transfer("BA A/C", "BA-auth", "AH A/C", new Money("165.00")),
+                new BankingService.Transfer("AH A/C", "AH-auth", "SZ A/C", new Money("127.50")));
+        bankingService.expectTransfer("BB A/C", "BB-auth", "AH A/C", new Money("330.00"));
+        bankingService.expectTransfer("AH A/C", "AH-auth", "SY A/C", new Money("255.00"));
+        bankingService.expectTransfer("BA A/C", "BA-auth", "AH A/C", new Money("165.00"));
+        bankingService.expectTransfer("AH A/C", "AH-auth", "SZ A/C", new Money("127.50"));
+        bankingService.verify();
+        messagingService.expectLotSold("@BuyerA", 1);
+        messagingService.expectLotSold("@BuyerB", 1);
+        messagingService.expectLotSold("@SellerY", 1);
+        messagingService.expectLotSold("@BuyerA", 5);
+        messagingService.expectLotSold("@SellerZ", 5);
+        messagingService.expectLotSold("@BuyerB", 2);
+        messagingService.expectLotSold("@SellerY", 2);
+        messagingService.verify();
+        assertEquals(3, house.countLots(LotStatus.SOLD));
+        assertEquals(0, netted.settleQueued());
+    }
+    
+    @Test
+    public void testNettedSettlementBadAccount() {
+        logger.info(makeBanner("testNettedSettlementBadAccount"));
+        AuctionHouseImp netted = runNettedStory();
+        bankingService.setBadAccount("BB A/C");
+        
+        // only lot 5 has all its payments made
+        assertEquals(1, netted.settleQueued());
+        assertEquals(2, house.countLots(LotStatus.SOLD_PENDING_PAYMENT));
+        // SellerY has been paid, so only BuyerB's payment is owed again
+        assertEquals(0, netted.settleQueued());
+        bankingService.expectBatch(
+                new BankingService.Transfer("BB A/C", "BB-auth", "AH A/C", new Money("330.00")),
+                new BankingService.Transfer("AH A/C", "AH-auth", "SY A/C", new Money("255.00")),
+                new BankingService.Transfer("BA A/C", "BA-auth", "AH A/C", new Money("165.00")),
+                new BankingService.Transfer("AH A/C", "AH-auth", "SZ A/C", new Money("127.50")));
+        bankingService.expectBatch(
+                new BankingService.Transfer("BB A/C", "BB-auth", "AH A/C", new Money("330.00")));
+        bankingService.expectTransfer("BB A/C", "BB-auth", "AH A/C", new Money("330.00"));
+        bankingService.expectTransfer("AH A/C", "AH-auth", "SY A/C", new Money("255.00"));
+        bankingService.expectTransfer("BA A/C", "BA-auth", "AH A/C", new Money("165.00"));
+        bankingService.expectTransfer("AH A/C", "AH-auth", "SZ A/C", new Money("127.50"));
+        bankingService.verify();
+    }
     
 }
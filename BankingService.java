@@ -3,16 +3,56 @@
  */
 package auctionhouse;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * @author pbj
  *
  */
 public interface BankingService {
     
+    /**
+     * One transfer of a batch (see transferBatch).
+     */
+    public static final class Transfer {
+        public final String senderAccount;
+        public final String senderAuthCode;
+        public final String receiverAccount;
+        public final Money amount;
+        
+        public Transfer(
+                String senderAccount,
+                String senderAuthCode,
+                String receiverAccount,
+                Money amount) {
+            this.senderAccount = senderAccount;
+            this.senderAuthCode = senderAuthCode;
+            this.receiverAccount = receiverAccount;
+            this.amount = amount;
+        }
+    }
+    
     Status transfer(
             String senderAccount,
             String senderAuthCode,
             String receiverAccount,
             Money amount);
+    
+    /**
+     * Makes several transfers in one call, which a bank taking batches can
+     * make in one round trip. Each transfer succeeds or fails on its own.
+     * The default makes them one at a time.
+     * 
+     * @return the outcome of each transfer, in the same order
+     */
+    default List<Status> transferBatch(List<Transfer> transfers) {
+        List<Status> outcomes = new ArrayList<Status>(transfers.size());
+        for (Transfer transfer : transfers) {
+            outcomes.add(transfer(transfer.senderAccount, transfer.senderAuthCode,
+                    transfer.receiverAccount, transfer.amount));
+        }
+        return outcomes;
+    }
 
 }
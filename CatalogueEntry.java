@@ -5,15 +5,19 @@ package auctionhouse;
 
 
 /**
+ * A lot as listed in the catalogue, at the time it was listed. Entries are
+ * immutable, so one handed to a caller is unaffected by later bids and
+ * cannot be used to change the lot.
+ *
  * @author pbj
  *
  */
 public class CatalogueEntry {
     private static final String LS = System.lineSeparator();
     
-    public int lotNumber;
-    public String description;
-    public LotStatus status;
+    public final int lotNumber;
+    public final String description;
+    public final LotStatus status;
     
     
     public CatalogueEntry(int lotNumber, String description, LotStatus status) {
@@ -32,6 +36,11 @@ public class CatalogueEntry {
                 status == oCE.status;
     }
     
+    @Override
+    public int hashCode() {
+        return 31 * lotNumber + description.hashCode();
+    }
+    
     @Override
     public String toString() {
         return LS + Integer.toString(lotNumber) +
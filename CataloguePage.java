@@ -0,0 +1,28 @@
+package auctionhouse;
+
+import java.util.List;
+
+/**
+ * One page of the catalogue, in lot number order.
+ * 
+ * To read the next page, pass nextCursor as the afterLotNumber of the
+ * next call to AuctionHouse.viewCatalogue.
+ */
+public class CataloguePage {
+    
+    /**
+     * Cursor to pass for the first page.
+     */
+    public static final int START = Integer.MIN_VALUE;
+    
+    public final List<CatalogueEntry> entries;
+    public final int nextCursor;
+    public final boolean hasMore;
+    
+    public CataloguePage(List<CatalogueEntry> entries, int nextCursor, boolean hasMore) {
+        this.entries = entries;
+        this.nextCursor = nextCursor;
+        this.hasMore = hasMore;
+    }
+    
+}
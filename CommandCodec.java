@@ -0,0 +1,115 @@
+package auctionhouse;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary encoding of the changes made by AuctionHouse calls, as journaled
+ * by AuctionHouseImp (see Journal).
+ *
+ * A record is an opcode byte followed by the fields of the change. Ints
+ * and longs are big-endian, money is a long of pence and strings are an
+ * int length followed by UTF-8 bytes. Buyers and sellers are referred to
+ * by id, which replay reproduces by registering them in the same order.
+ *
+ * Opcodes are stored in journals, so existing ones must never change.
+ */
+final class CommandCodec {
+
+    static final byte REGISTER_BUYER = 1;
+    static final byte REGISTER_SELLER = 2;
+    static final byte ADD_LOT = 3;
+    static final byte NOTE_INTEREST = 4;
+    static final byte OPEN_AUCTION = 5;
+    static final byte BID = 6;
+    // the hammer: the outcome of closing, with the final highest bid
+    static final byte CLOSE_AUCTION = 7;
+    // both transfers of a sale succeeded
+    static final byte SETTLE = 8;
+
+    private CommandCodec() {
+    }
+
+    static byte[] registerBuyer(String name, String address, String bankAccount, String bankAuthCode) {
+        byte[][] strings = utf8(name, address, bankAccount, bankAuthCode);
+        ByteBuffer record = allocate(1, strings);
+        record.put(REGISTER_BUYER);
+        putStrings(record, strings);
+        return record.array();
+    }
+
+    static byte[] registerSeller(String name, String address, String bankAccount) {
+        byte[][] strings = utf8(name, address, bankAccount);
+        ByteBuffer record = allocate(1, strings);
+        record.put(REGISTER_SELLER);
+        putStrings(record, strings);
+        return record.array();
+    }
+
+    static byte[] addLot(int sellerId, int lotNumber, String description, long reservePence) {
+        byte[][] strings = utf8(description);
+        ByteBuffer record = allocate(1 + 4 + 4 + 8, strings);
+        record.put(ADD_LOT).putInt(sellerId).putInt(lotNumber).putLong(reservePence);
+        putStrings(record, strings);
+        return record.array();
+    }
+
+    static byte[] noteInterest(int buyerId, int lotNumber) {
+        return ByteBuffer.allocate(1 + 4 + 4).put(NOTE_INTEREST).putInt(buyerId).putInt(lotNumber).array();
+    }
+
+    static byte[] openAuction(int lotNumber, String auctioneerName, String auctioneerAddress) {
+        byte[][] strings = utf8(auctioneerName, auctioneerAddress);
+        ByteBuffer record = allocate(1 + 4, strings);
+        record.put(OPEN_AUCTION).putInt(lotNumber);
+        putStrings(record, strings);
+        return record.array();
+    }
+
+    static byte[] bid(int buyerId, int lotNumber, long pence) {
+        return ByteBuffer.allocate(1 + 4 + 4 + 8).put(BID).putInt(buyerId).putInt(lotNumber).putLong(pence).array();
+    }
+
+    static byte[] closeAuction(int lotNumber, LotStatus outcome, int highestBidderId, long highestBidPence) {
+        return ByteBuffer.allocate(1 + 4 + 1 + 4 + 8)
+                .put(CLOSE_AUCTION).putInt(lotNumber).put((byte) outcome.ordinal())
+                .putInt(highestBidderId).putLong(highestBidPence).array();
+    }
+
+    static byte[] settle(int lotNumber) {
+        return ByteBuffer.allocate(1 + 4).put(SETTLE).putInt(lotNumber).array();
+    }
+
+    static String getString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static LotStatus getStatus(ByteBuffer record) {
+        return LotStatus.values()[record.get()];
+    }
+
+    private static byte[][] utf8(String... strings) {
+        byte[][] bytes = new byte[strings.length][];
+        for (int i = 0; i < strings.length; i++) {
+            bytes[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return bytes;
+    }
+
+    private static ByteBuffer allocate(int fixed, byte[][] strings) {
+        int size = fixed;
+        for (byte[] s : strings) {
+            size += 4 + s.length;
+        }
+        return ByteBuffer.allocate(size);
+    }
+
+    private static void putStrings(ByteBuffer record, byte[][] strings) {
+        for (byte[] s : strings) {
+            record.putInt(s.length).put(s);
+        }
+    }
+
+}
@@ -0,0 +1,313 @@
+/**
+ * 
+ */
+package auctionhouse;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Stress tests running AuctionHouse operations from many threads at once.
+ */
+public class ConcurrencyTest {
+
+    private static final int THREADS = 8;
+    private static final int BIDS_PER_THREAD = 2000;
+
+    private AuctionHouse house;
+    private CountingMessagingService messagingService;
+    private MockBankingService bankingService;
+
+    @BeforeClass
+    public static void quietLogger() {
+        // warnings for every losing bid would swamp the output
+        Logger.getLogger("auctionhouse").setLevel(Level.SEVERE);
+    }
+
+    @Before
+    public void setup() {
+        messagingService = new CountingMessagingService();
+        bankingService = new MockBankingService();
+        house = new AuctionHouseImp(
+                    new Parameters(
+                        10.0,
+                        15.0,
+                        new Money("10.00"),
+                        "AH A/C",
+                        "AH-auth",
+                        messagingService,
+                        bankingService));
+    }
+
+    private interface ThreadTask {
+        Status run(int thread);
+    }
+
+    /*
+     * Runs task once on each of THREADS threads, released together, and
+     * returns the statuses in thread order.
+     */
+    private static List<Status> runConcurrently(final ThreadTask task) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Status>> futures = new ArrayList<Future<Status>>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            futures.add(pool.submit(new Callable<Status>() {
+                public Status call() throws Exception {
+                    start.await();
+                    return task.run(thread);
+                }
+            }));
+        }
+        start.countDown();
+        List<Status> results = new ArrayList<Status>();
+        for (Future<Status> f : futures) {
+            results.add(f.get());
+        }
+        pool.shutdown();
+        return results;
+    }
+
+    private static int count(List<Status> results, Status.Kind kind) {
+        int n = 0;
+        for (Status s : results) {
+            if (s.kind == kind) n++;
+        }
+        return n;
+    }
+
+    @Test
+    public void testConcurrentRegistrationOfSameName() throws Exception {
+        List<Status> results = runConcurrently(new ThreadTask() {
+            public Status run(int thread) {
+                return house.registerBuyer("BuyerA", "@BuyerA" + thread, "BA A/C", "BA-auth");
+            }
+        });
+        assertEquals(1, count(results, Status.Kind.OK));
+    }
+
+    @Test
+    public void testConcurrentAddOfSameLot() throws Exception {
+        house.registerSeller("SellerY", "@SellerY", "SY A/C");
+        List<Status> results = runConcurrently(new ThreadTask() {
+            public Status run(int thread) {
+                return house.addLot("SellerY", 1, "Bicycle " + thread, new Money("80.00"));
+            }
+        });
+        assertEquals(1, count(results, Status.Kind.OK));
+        assertEquals(1, house.viewCatalogue().size());
+    }
+
+    @Test
+    public void testConcurrentBidsOnOneLot() throws Exception {
+        house.registerSeller("SellerY", "@SellerY", "SY A/C");
+        house.addLot("SellerY", 1, "Bicycle", new Money("80.00"));
+        for (int t = 0; t < THREADS; t++) {
+            house.registerBuyer("Buyer" + t, "@Buyer" + t, "B" + t + " A/C", "B" + t + "-auth");
+            house.noteInterest("Buyer" + t, 1);
+        }
+        house.openAuction("Auctioneer1", "@Auctioneer1", 1);
+
+        // thread t bids t+1, t+1+THREADS, ... so every amount is distinct
+        runConcurrently(new ThreadTask() {
+            public Status run(int thread) {
+                for (int i = 0; i < BIDS_PER_THREAD; i++) {
+                    int pounds = thread + 1 + i * THREADS;
+                    house.makeBid("Buyer" + thread, 1, new Money(Integer.toString(pounds)));
+                }
+                return Status.OK();
+            }
+        });
+
+        // the highest amount of all was bid by the last thread
+        int winner = THREADS - 1;
+        Money top = new Money(Integer.toString(THREADS * BIDS_PER_THREAD));
+        assertEquals(Status.Kind.SALE, house.closeAuction("Auctioneer1", 1).kind);
+        bankingService.expectTransfer("B" + winner + " A/C", "B" + winner + "-auth", "AH A/C", top.addPercent(10.0));
+        bankingService.expectTransfer("AH A/C", "AH-auth", "SY A/C", top.addPercent(-15.0));
+        bankingService.verify();
+    }
+
+    @Test
+    public void testConcurrentAuctionsOnDifferentLots() throws Exception {
+        house.registerSeller("SellerY", "@SellerY", "SY A/C");
+        for (int t = 0; t < THREADS; t++) {
+            house.registerBuyer("Buyer" + t, "@Buyer" + t, "B" + t + " A/C", "B" + t + "-auth");
+        }
+
+        List<Status> results = runConcurrently(new ThreadTask() {
+            public Status run(int thread) {
+                int lot = 100 + thread;
+                house.addLot("SellerY", lot, "Lot " + lot, new Money("1.00"));
+                house.noteInterest("Buyer" + thread, lot);
+                house.openAuction("Auctioneer" + thread, "@Auctioneer" + thread, lot);
+                for (int i = 1; i <= BIDS_PER_THREAD; i++) {
+                    Status s = house.makeBid("Buyer" + thread, lot, new Money(Integer.toString(i)));
+                    if (s.kind != Status.Kind.OK) return s;
+                }
+                return house.closeAuction("Auctioneer" + thread, lot);
+            }
+        });
+
+        assertEquals(THREADS, count(results, Status.Kind.SALE));
+        // per bid: seller and auctioneer; per lot: seller and buyer on opening and on closing
+        assertEquals(THREADS * (2L * BIDS_PER_THREAD + 4), messagingService.getDeliveries());
+    }
+
+    @Test
+    public void testCloseAuctionsInParallel() throws Exception {
+        final int lots = 1000;
+        house.registerSeller("SellerY", "@SellerY", "SY A/C");
+        house.registerBuyer("BuyerA", "@BuyerA", "BA A/C", "BA-auth");
+        List<Integer> lotNumbers = new ArrayList<Integer>();
+        for (int lot = 0; lot < lots; lot++) {
+            house.addLot("SellerY", lot, "Lot " + lot, new Money("1.00"));
+            house.noteInterest("BuyerA", lot);
+            house.openAuction("Auctioneer", "@Auctioneer", lot);
+            // odd lots get a bid and are sold; even lots are not
+            if (lot % 2 == 1) {
+                house.makeBid("BuyerA", lot, new Money("2.00"));
+            }
+            lotNumbers.add(lots - 1 - lot);
+        }
+        // every lot listed twice, the second time failing
+        lotNumbers.addAll(lotNumbers);
+
+        ForkJoinPool pool = new ForkJoinPool(THREADS);
+        ((AuctionHouseImp) house).setClosePool(pool);
+        List<Status> results = house.closeAuctions("Auctioneer", lotNumbers);
+        pool.shutdown();
+
+        for (int i = 0; i < lots; i++) {
+            Status.Kind expected = lotNumbers.get(i) % 2 == 1 ? Status.Kind.SALE : Status.Kind.NO_SALE;
+            assertEquals(expected, results.get(i).kind);
+            assertEquals(Status.Kind.ERROR, results.get(lots + i).kind);
+        }
+        assertEquals(lots / 2, house.countLots(LotStatus.SOLD));
+        assertEquals(lots / 2, house.countLots(LotStatus.UNSOLD));
+    }
+
+    @Test
+    public void testNoBidAcceptedAfterClose() throws Exception {
+        house.registerSeller("SellerY", "@SellerY", "SY A/C");
+        house.addLot("SellerY", 1, "Bicycle", new Money("1.00"));
+        for (int t = 0; t < THREADS; t++) {
+            house.registerBuyer("Buyer" + t, "@Buyer" + t, "B" + t + " A/C", "B" + t + "-auth");
+            house.noteInterest("Buyer" + t, 1);
+        }
+        house.openAuction("Auctioneer1", "@Auctioneer1", 1);
+
+        // thread 0 closes the auction part way through everyone else's bidding
+        final int[] highestAccepted = new int[THREADS];
+        List<Status> results = runConcurrently(new ThreadTask() {
+            public Status run(int thread) {
+                if (thread == 0) {
+                    Thread.yield();
+                    return house.closeAuction("Auctioneer1", 1);
+                }
+                for (int i = 0; i < BIDS_PER_THREAD; i++) {
+                    int pounds = thread + 1 + i * THREADS;
+                    if (house.makeBid("Buyer" + thread, 1, new Money(Integer.toString(pounds))).kind == Status.Kind.OK) {
+                        highestAccepted[thread] = pounds;
+                    }
+                }
+                return Status.OK();
+            }
+        });
+
+        int top = 0;
+        int winner = -1;
+        for (int t = 1; t < THREADS; t++) {
+            if (highestAccepted[t] > top) {
+                top = highestAccepted[t];
+                winner = t;
+            }
+        }
+        if (results.get(0).kind == Status.Kind.SALE) {
+            // the hammer price is the last bid accepted, whenever the close happened
+            Money hammer = new Money(Integer.toString(top));
+            bankingService.expectTransfer("B" + winner + " A/C", "B" + winner + "-auth", "AH A/C", hammer.addPercent(10.0));
+            bankingService.expectTransfer("AH A/C", "AH-auth", "SY A/C", hammer.addPercent(-15.0));
+        } else {
+            assertEquals(Status.Kind.NO_SALE, results.get(0).kind);
+            assertEquals(0, top);
+        }
+        bankingService.verify();
+    }
+
+    @Test
+    public void testStatusCountsFollowConcurrentTransitions() throws Exception {
+        final int lotsPerThread = 500;
+        house.registerSeller("SellerY", "@SellerY", "SY A/C");
+        for (int t = 0; t < THREADS; t++) {
+            house.registerBuyer("Buyer" + t, "@Buyer" + t, "B" + t + " A/C", "B" + t + "-auth");
+        }
+
+        // every thread auctions its own lots, selling the even ones and leaving every tenth open
+        runConcurrently(new ThreadTask() {
+            public Status run(int thread) {
+                for (int i = 0; i < lotsPerThread; i++) {
+                    int lot = thread * lotsPerThread + i;
+                    house.addLot("SellerY", lot, "Lot " + lot, new Money("1.00"));
+                    house.noteInterest("Buyer" + thread, lot);
+                    house.openAuction("Auctioneer" + thread, "@Auctioneer" + thread, lot);
+                    if (i % 2 == 0) {
+                        house.makeBid("Buyer" + thread, lot, new Money("5.00"));
+                    }
+                    if (i % 10 != 9) {
+                        house.closeAuction("Auctioneer" + thread, lot);
+                    }
+                }
+                return Status.OK();
+            }
+        });
+
+        int lots = THREADS * lotsPerThread;
+        assertEquals(lots / 10, house.countLots(LotStatus.IN_AUCTION));
+        assertEquals(lots / 2, house.countLots(LotStatus.SOLD));
+        assertEquals(lots / 2 - lots / 10, house.countLots(LotStatus.UNSOLD));
+        assertEquals(0, house.countLots(LotStatus.SOLD_PENDING_PAYMENT));
+        for (LotStatus status : LotStatus.values()) {
+            assertEquals(house.countLots(status), house.streamCatalogue(status).count());
+        }
+    }
+
+    @Test
+    public void testConcurrentNoteInterestHasNoDuplicates() throws Exception {
+        final int buyers = 1000;
+        house.registerSeller("SellerY", "@SellerY", "SY A/C");
+        house.addLot("SellerY", 1, "Bicycle", new Money("80.00"));
+        for (int b = 0; b < buyers; b++) {
+            house.registerBuyer("Buyer" + b, "@Buyer" + b, "B" + b + " A/C", "B" + b + "-auth");
+        }
+
+        // every thread notes interest for every buyer
+        runConcurrently(new ThreadTask() {
+            public Status run(int thread) {
+                for (int b = 0; b < buyers; b++) {
+                    house.noteInterest("Buyer" + ((b + thread * 100) % buyers), 1);
+                }
+                return Status.OK();
+            }
+        });
+
+        house.openAuction("Auctioneer1", "@Auctioneer1", 1);
+        assertEquals(buyers + 1, messagingService.getDeliveries());
+    }
+
+}
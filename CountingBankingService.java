@@ -0,0 +1,65 @@
+package auctionhouse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A thread-safe BankingService stand-in that accepts every transfer and
+ * counts them. Used by concurrency tests and benchmarks. It may be given a
+ * round trip time, spent on every call, single or batched.
+ */
+public class CountingBankingService implements BankingService {
+
+    private final LongAdder transfers = new LongAdder();
+    private final LongAdder calls = new LongAdder();
+    private final long roundTripNanos;
+
+    public CountingBankingService() {
+        this(0);
+    }
+
+    public CountingBankingService(long roundTripNanos) {
+        this.roundTripNanos = roundTripNanos;
+    }
+
+    public Status transfer(
+            String senderAccount,
+            String senderAuthCode,
+            String receiverAccount,
+            Money amount) {
+        roundTrip();
+        transfers.increment();
+        return Status.OK();
+    }
+
+    public List<Status> transferBatch(List<Transfer> batch) {
+        roundTrip();
+        transfers.add(batch.size());
+        List<Status> outcomes = new ArrayList<Status>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            outcomes.add(Status.OK());
+        }
+        return outcomes;
+    }
+
+    private void roundTrip() {
+        calls.increment();
+        if (roundTripNanos > 0) {
+            LockSupport.parkNanos(roundTripNanos);
+        }
+    }
+
+    public long getTransfers() {
+        return transfers.sum();
+    }
+
+    /**
+     * @return the number of calls made, counting a batch as one
+     */
+    public long getCalls() {
+        return calls.sum();
+    }
+
+}
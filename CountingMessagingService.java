@@ -0,0 +1,61 @@
+package auctionhouse;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe MessagingService stand-in that only counts deliveries,
+ * one per address, and requests, one per call.
+ * Used by concurrency tests and benchmarks, where recording every event
+ * as MockMessagingService does would dominate the measurement.
+ */
+public class CountingMessagingService implements MessagingService {
+
+    private final LongAdder deliveries = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+
+    protected void count(int addresses) {
+        deliveries.add(addresses);
+        requests.increment();
+    }
+
+    public void auctionOpened(String address, int lotNumber) {
+        count(1);
+    }
+
+    public void bidAccepted(String address, int lotNumber, Money amount) {
+        count(1);
+    }
+
+    public void lotSold(String address, int lotNumber) {
+        count(1);
+    }
+
+    public void lotUnsold(String address, int lotNumber) {
+        count(1);
+    }
+
+    public void auctionOpened(String[] addresses, int lotNumber) {
+        count(addresses.length);
+    }
+
+    public void bidAccepted(String[] addresses, int lotNumber, Money amount) {
+        count(addresses.length);
+    }
+
+    public void lotSold(String[] addresses, int lotNumber) {
+        count(addresses.length);
+    }
+
+    public void lotUnsold(String[] addresses, int lotNumber) {
+        count(addresses.length);
+    }
+
+    public long getDeliveries() {
+        return deliveries.sum();
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+}
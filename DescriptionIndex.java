@@ -0,0 +1,523 @@
+package auctionhouse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+
+/**
+ * Inverted index of lot descriptions, for finding lots by the words in
+ * their descriptions without scanning the catalogue.
+ *
+ * A description is split into terms at every character that is not a
+ * letter or digit, and terms are lower-cased. Each term maps to a posting
+ * list: the numbers of the lots whose description contains it, in
+ * ascending order, held in an int array. Terms are kept sorted, so the
+ * terms starting with a prefix are a contiguous range.
+ *
+ * Lots are added as they are registered and never removed, since a lot's
+ * description never changes. Searches take no lock and see every lot added
+ * before they started; a lot being added concurrently may or may not be
+ * seen.
+ */
+public class DescriptionIndex {
+
+    /*
+     * Lot numbers containing one term. Readers take the current snapshot
+     * and never see it change: appends write past the end of the published
+     * size before publishing a new snapshot. Lots added out of order, as
+     * when a catalogue is imported or reloaded, are buffered and merged
+     * into a fresh copy in batches, so that loading costs a copy per batch
+     * rather than per lot; a reader merges any still buffered first.
+     */
+    private static final class PostingList {
+        private volatile Postings postings = Postings.NONE;
+        // out of order lot numbers not yet merged, in the order added
+        private int[] pending = Postings.NONE.lots;
+        private volatile int pendingSize;
+
+        synchronized void add(int lotNumber) {
+            Postings current = postings;
+            int[] lots = current.lots;
+            int n = current.size;
+            if (n == 0 || lots[n - 1] < lotNumber) {
+                if (n == lots.length) {
+                    lots = Arrays.copyOf(lots, Math.max(2, n + (n >> 1) + 1));
+                }
+                lots[n] = lotNumber;
+                postings = new Postings(lots, n + 1);
+                return;
+            }
+            if (pendingSize == pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(16, 2 * pendingSize));
+            }
+            pending[pendingSize] = lotNumber;
+            pendingSize++;
+            // batches grow with the list, so each lot is copied a bounded number of times
+            if (pendingSize >= Math.max(64, n >> 3)) {
+                mergePending();
+            }
+        }
+
+        Postings postings() {
+            if (pendingSize == 0) {
+                return postings;
+            }
+            synchronized (this) {
+                mergePending();
+                return postings;
+            }
+        }
+
+        // caller holds the list's monitor
+        private void mergePending() {
+            int p = pendingSize;
+            if (p == 0) {
+                return;
+            }
+            Arrays.sort(pending, 0, p);
+            Postings current = postings;
+            int[] lots = current.lots;
+            int n = current.size;
+            int[] merged = new int[n + p + ((n + p) >> 1)];
+            int size = 0;
+            int i = 0;
+            int j = 0;
+            while (i < n || j < p) {
+                int lot = j == p || (i < n && lots[i] <= pending[j]) ? lots[i++] : pending[j++];
+                // a lot added twice is only posted once
+                if (size == 0 || merged[size - 1] != lot) {
+                    merged[size++] = lot;
+                }
+            }
+            postings = new Postings(merged, size);
+            pendingSize = 0;
+        }
+    }
+
+    private static final class Postings {
+        static final Postings NONE = new Postings(new int[0], 0);
+
+        final int[] lots;
+        final int size;
+
+        Postings(int[] lots, int size) {
+            this.lots = lots;
+            this.size = size;
+        }
+    }
+
+    private final ConcurrentNavigableMap<String, PostingList> terms = new ConcurrentSkipListMap<String, PostingList>();
+    private final AtomicInteger lotCount = new AtomicInteger();
+
+    /*
+     * Splits text into lower-case terms, in order of appearance. With
+     * markPrefixes, a term followed by '*' keeps the '*'.
+     */
+    private static List<String> split(String text, boolean markPrefixes) {
+        List<String> result = new ArrayList<String>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inTerm = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inTerm && start < 0) {
+                start = i;
+            } else if (!inTerm && start >= 0) {
+                int end = markPrefixes && i < text.length() && text.charAt(i) == '*' ? i + 1 : i;
+                result.add(text.substring(start, end).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Indexes every term of description under lotNumber. Each lot number
+     * should be added once.
+     */
+    public void add(int lotNumber, String description) {
+        // a repeated term is only posted once
+        for (String term : new HashSet<String>(split(description, false))) {
+            PostingList list = terms.get(term);
+            if (list == null) {
+                PostingList created = new PostingList();
+                list = terms.putIfAbsent(term, created);
+                if (list == null) {
+                    list = created;
+                }
+            }
+            list.add(lotNumber);
+        }
+        lotCount.incrementAndGet();
+    }
+
+    /**
+     * Finds the lots best matching query, highest ranked first.
+     *
+     * Each term of query is matched exactly, or as a prefix when it is
+     * followed by '*' ("vict*"). A lot matches if its description contains
+     * any of the terms, and it scores the sum over the terms it contains
+     * of log(1 + lots / lots containing the term), so lots containing more
+     * of the terms, and rarer ones, rank first. Equal scores are ranked by
+     * lot number.
+     *
+     * @param accept called on candidate lot numbers, which are only ranked
+     *        if it returns true; it is only called for lots that would
+     *        make the results
+     * @return at most limit lot numbers
+     */
+    public int[] search(String query, int limit, IntPredicate accept) {
+        return search(query, limit, accept, null);
+    }
+
+    /**
+     * As search(query, limit, accept), but only considering the lots in
+     * among, which must be in ascending order. When among is smaller than
+     * the posting lists of the query, its lots are looked up in the lists
+     * rather than the lists being read in full.
+     */
+    public int[] search(String query, int limit, IntPredicate accept, int[] among) {
+        if (limit <= 0) {
+            return new int[0];
+        }
+        // the posting list of each distinct term in the query
+        List<Postings> lists = new ArrayList<Postings>();
+        long postings = 0;
+        for (String term : new HashSet<String>(split(query, true))) {
+            Postings p;
+            if (term.endsWith("*")) {
+                p = matchPrefix(term.substring(0, term.length() - 1));
+            } else {
+                PostingList list = terms.get(term);
+                p = list == null ? Postings.NONE : list.postings();
+            }
+            if (p.size > 0) {
+                lists.add(p);
+                postings += p.size;
+            }
+        }
+        if (lists.isEmpty()) {
+            return new int[0];
+        }
+        Query q = new Query(lists, Math.max(1, lotCount.get()));
+        TopLots top = new TopLots(limit);
+        if (among != null && among.length < postings) {
+            q.probe(among, top, accept);
+        } else {
+            q.merge(top, accept, among);
+        }
+        return top.ranked();
+    }
+
+    /*
+     * The posting lists of one query, rarest term last. Scores are fixed
+     * point so that sums are exact whatever order they are added in, which
+     * the pruning below relies on.
+     */
+    private static final class Query {
+        private static final double SCALE = 1e6;
+
+        final int k;
+        final int[][] lots;
+        final int[] sizes;
+        final long[] weights;
+        // upTo[t] is the total weight of lists 0 to t - 1
+        final long[] upTo;
+        final int[] cursors;
+
+        Query(List<Postings> lists, int documents) {
+            // most common first, and so lightest first
+            lists.sort((a, b) -> Integer.compare(b.size, a.size));
+            k = lists.size();
+            lots = new int[k][];
+            sizes = new int[k];
+            weights = new long[k];
+            upTo = new long[k + 1];
+            cursors = new int[k];
+            for (int t = 0; t < k; t++) {
+                Postings p = lists.get(t);
+                lots[t] = p.lots;
+                sizes[t] = p.size;
+                weights[t] = Math.round(SCALE * Math.log(1 + (double) documents / p.size));
+                upTo[t + 1] = upTo[t] + weights[t];
+            }
+        }
+
+        /*
+         * Merges the posting lists in lot number order, skipping lots that
+         * cannot make the results (the MaxScore method). Once top is full,
+         * a lot found only in the lightest lists, whose weights together
+         * do not beat the worst score held, cannot enter it; so only the
+         * remaining "essential" lists are merged, and the lighter ones are
+         * searched for each lot they produce.
+         */
+        void merge(TopLots top, IntPredicate accept, int[] among) {
+            int essential = 0;
+            while (essential < k) {
+                int lot = Integer.MAX_VALUE;
+                boolean any = false;
+                for (int t = essential; t < k; t++) {
+                    if (cursors[t] < sizes[t] && (!any || lots[t][cursors[t]] < lot)) {
+                        lot = lots[t][cursors[t]];
+                        any = true;
+                    }
+                }
+                if (!any) {
+                    break;
+                }
+                long score = 0;
+                for (int t = essential; t < k; t++) {
+                    if (cursors[t] < sizes[t] && lots[t][cursors[t]] == lot) {
+                        score += weights[t];
+                        cursors[t]++;
+                    }
+                }
+                score = addLighter(lot, score, essential, top);
+                if (top.wouldTake(score) && (among == null || Arrays.binarySearch(among, lot) >= 0)
+                        && accept.test(lot)) {
+                    top.offer(lot, score);
+                    while (essential < k && top.isFull() && upTo[essential + 1] <= top.worstScore()) {
+                        essential++;
+                    }
+                }
+            }
+        }
+
+        /*
+         * Scores each lot of among by searching the posting lists for it.
+         */
+        void probe(int[] among, TopLots top, IntPredicate accept) {
+            for (int lot : among) {
+                long score = addLighter(lot, 0, k, top);
+                if (score > 0 && top.wouldTake(score) && accept.test(lot)) {
+                    top.offer(lot, score);
+                }
+            }
+        }
+
+        /*
+         * Adds the weights of the lists below end that contain lot, heaviest
+         * first, giving up as soon as the lot cannot make top.
+         */
+        private long addLighter(int lot, long score, int end, TopLots top) {
+            for (int t = end - 1; t >= 0; t--) {
+                if (top.isFull() && score + upTo[t + 1] <= top.worstScore()) {
+                    return score;
+                }
+                cursors[t] = seek(lots[t], cursors[t], sizes[t], lot);
+                if (cursors[t] < sizes[t] && lots[t][cursors[t]] == lot) {
+                    score += weights[t];
+                }
+            }
+            return score;
+        }
+
+        /*
+         * The first index from from on whose lot is at least lot, by
+         * galloping then binary search.
+         */
+        private static int seek(int[] lots, int from, int size, int lot) {
+            int step = 1;
+            int low = from;
+            int high = from;
+            while (high < size && lots[high] < lot) {
+                low = high + 1;
+                high = from + step;
+                step <<= 1;
+            }
+            if (high >= size) {
+                high = size;
+            }
+            int at = Arrays.binarySearch(lots, low, high, lot);
+            return at >= 0 ? at : -at - 1;
+        }
+    }
+
+    /*
+     * The union of the posting lists of every term starting with prefix,
+     * merged in one pass with a heap of the lists by their next lot, since
+     * the lists are already sorted. A prefix matching one term is served
+     * from that term's list without a copy.
+     */
+    private Postings matchPrefix(String prefix) {
+        if (prefix.isEmpty()) {
+            return Postings.NONE;
+        }
+        // terms hold only letters and digits, so none sorts at or after prefix + MAX_VALUE
+        ConcurrentNavigableMap<String, PostingList> range =
+                terms.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        List<Postings> matched = new ArrayList<Postings>();
+        int total = 0;
+        for (PostingList list : range.values()) {
+            Postings p = list.postings();
+            if (p.size > 0) {
+                matched.add(p);
+                total += p.size;
+            }
+        }
+        if (matched.isEmpty()) {
+            return Postings.NONE;
+        }
+        if (matched.size() == 1) {
+            return matched.get(0);
+        }
+        int k = matched.size();
+        int[][] lists = new int[k][];
+        int[] sizes = new int[k];
+        int[] cursors = new int[k];
+        // list indexes, by the lot at their cursor
+        int[] heap = new int[k];
+        for (int t = 0; t < k; t++) {
+            lists[t] = matched.get(t).lots;
+            sizes[t] = matched.get(t).size;
+            heap[t] = t;
+        }
+        for (int i = (k >> 1) - 1; i >= 0; i--) {
+            siftDown(heap, k, i, lists, cursors);
+        }
+        int[] union = new int[total];
+        int n = 0;
+        int live = k;
+        while (live > 0) {
+            int t = heap[0];
+            int lot = lists[t][cursors[t]++];
+            // one description may contain several of the terms
+            if (n == 0 || union[n - 1] != lot) {
+                union[n++] = lot;
+            }
+            if (cursors[t] == sizes[t]) {
+                heap[0] = heap[--live];
+            }
+            if (live > 0) {
+                siftDown(heap, live, 0, lists, cursors);
+            }
+        }
+        return new Postings(union, n);
+    }
+
+    private static void siftDown(int[] heap, int size, int i, int[][] lists, int[] cursors) {
+        int t = heap[i];
+        int lot = lists[t][cursors[t]];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            int c = heap[child];
+            if (child + 1 < size) {
+                int right = heap[child + 1];
+                if (lists[right][cursors[right]] < lists[c][cursors[c]]) {
+                    child++;
+                    c = right;
+                }
+            }
+            if (lists[c][cursors[c]] >= lot) {
+                break;
+            }
+            heap[i] = c;
+            i = child;
+        }
+        heap[i] = t;
+    }
+
+    /*
+     * Bounded min-heap of lot numbers by score, the worst at the root.
+     * Lots are offered in ascending order, so among equal scores the lot
+     * already held is kept.
+     */
+    private static final class TopLots {
+        private final int limit;
+        private int[] lots;
+        private long[] scores;
+        private int size;
+
+        TopLots(int limit) {
+            this.limit = limit;
+            lots = new int[Math.min(limit, 1024)];
+            scores = new long[lots.length];
+        }
+
+        boolean isFull() {
+            return size == limit;
+        }
+
+        long worstScore() {
+            return scores[0];
+        }
+
+        // lots are offered in ascending order, so a later lot must score strictly more
+        boolean wouldTake(long score) {
+            return size < limit || score > scores[0];
+        }
+
+        void offer(int lot, long score) {
+            if (size == limit) {
+                siftDown(lot, score);
+                return;
+            }
+            if (size == lots.length) {
+                lots = Arrays.copyOf(lots, Math.min(limit, 2 * size));
+                scores = Arrays.copyOf(scores, lots.length);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (!worse(score, lot, scores[parent], lots[parent])) {
+                    break;
+                }
+                lots[i] = lots[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            lots[i] = lot;
+            scores[i] = score;
+        }
+
+        /*
+         * Empties the heap, best first.
+         */
+        int[] ranked() {
+            int[] result = new int[size];
+            while (size > 0) {
+                result[size - 1] = lots[0];
+                size--;
+                if (size > 0) {
+                    siftDown(lots[size], scores[size]);
+                }
+            }
+            return result;
+        }
+
+        // puts lot at the root, replacing the worst, and restores the heap
+        private void siftDown(int lot, long score) {
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && worse(scores[child + 1], lots[child + 1], scores[child], lots[child])) {
+                    child++;
+                }
+                if (!worse(scores[child], lots[child], score, lot)) {
+                    break;
+                }
+                lots[i] = lots[child];
+                scores[i] = scores[child];
+                i = child;
+            }
+            lots[i] = lot;
+            scores[i] = score;
+        }
+
+        // lower scores are worse, then higher lot numbers
+        private static boolean worse(long score, int lot, long otherScore, int otherLot) {
+            return score < otherScore || (score == otherScore && lot > otherLot);
+        }
+    }
+
+}
@@ -0,0 +1,409 @@
+package auctionhouse;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jdk.jfr.Recording;
+
+/**
+ * Steady-state micro-benchmarks of the AuctionHouse hot paths, run from the
+ * command line:
+ *
+ *     java auctionhouse.HotPathBenchmark [name prefix]
+ *
+ * Where AuctionHouseBenchmark measures whole scenarios once, this measures
+ * single operations the way a JMH harness would: each benchmark runs for
+ * warmup iterations, so that the JIT has compiled it, and then for timed
+ * iterations, on one thread and on several. It reports the mean time per
+ * operation on each thread, with the standard deviation over iterations,
+ * and the bytes each operation allocates, read from the JVM's per-thread
+ * allocation counters. Every operation's result is consumed, so that none
+ * of the work can be optimized away.
+ *
+ * Results can be kept as a baseline and later runs checked against it, to
+ * catch regressions when the implementation changes:
+ *
+ *     -Dauctionhouse.baseline=file   written if missing, otherwise compared
+ *     -Dauctionhouse.tolerance=20    slowdown or extra allocation, in percent,
+ *                                    reported as a regression
+ *
+ * The run exits with status 1 if any benchmark regressed. Iterations are
+ * set with auctionhouse.warmups (default 3), auctionhouse.iterations (5)
+ * and auctionhouse.iterationMillis (200), and the threads of multi-threaded
+ * variants with auctionhouse.threads (4). Times are only comparable between
+ * runs on one machine.
+ */
+public class HotPathBenchmark {
+
+    // held so that its level survives collections
+    private static final Logger LOGGER = Logger.getLogger("auctionhouse");
+
+    private static final int WARMUPS = Integer.getInteger("auctionhouse.warmups", 3);
+    private static final int ITERATIONS = Integer.getInteger("auctionhouse.iterations", 5);
+    private static final long ITERATION_NANOS = Long.getLong("auctionhouse.iterationMillis", 200) * 1000000;
+    private static final int THREADS = Integer.getInteger("auctionhouse.threads", 4);
+
+    private static final com.sun.management.ThreadMXBean THREAD_MX =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /*
+     * One operation of a benchmark: the index-th made by thread. The result
+     * is consumed by the harness.
+     */
+    interface Operation {
+        long run(int thread, long index);
+    }
+
+    static final class Result {
+        final String name;
+        final double nanosPerOp;
+        final double error;
+        final double bytesPerOp;
+
+        Result(String name, double nanosPerOp, double error, double bytesPerOp) {
+            this.name = name;
+            this.nanosPerOp = nanosPerOp;
+            this.error = error;
+            this.bytesPerOp = bytesPerOp;
+        }
+    }
+
+    private final List<Result> results = new ArrayList<Result>();
+    private final String prefix;
+
+    HotPathBenchmark(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 2) {
+            System.err.println("Unrecognised arguments");
+            return;
+        }
+        // losing bids log warnings, which would swamp the measurements
+        LOGGER.setLevel(Level.OFF);
+
+        HotPathBenchmark benchmark = new HotPathBenchmark(args.length == 0 ? "" : args[0]);
+        System.out.printf("%-36s %12s %10s %12s%n", "benchmark", "ns/op", "error", "B/op");
+        benchmark.money();
+        benchmark.makeBid();
+        benchmark.logging();
+        benchmark.fanOut();
+        benchmark.viewCatalogue();
+
+        String baseline = System.getProperty("auctionhouse.baseline");
+        if (baseline != null && benchmark.checkBaseline(Paths.get(baseline),
+                Integer.getInteger("auctionhouse.tolerance", 20)) > 0) {
+            System.exit(1);
+        }
+    }
+
+    /*
+     * Runs operation on threads threads for the warmup and timed
+     * iterations, all starting together, and records the result. An
+     * iteration ends at the first clock check after its time is up, and is
+     * measured by the time it actually took.
+     */
+    void measure(String name, int threads, Operation operation) {
+        final String fullName = name + (threads == 1 ? "" : " x" + threads);
+        if (!fullName.startsWith(prefix)) {
+            return;
+        }
+        final int iterations = WARMUPS + ITERATIONS;
+        final long[][] ops = new long[threads][iterations];
+        final long[][] nanos = new long[threads][iterations];
+        final long[][] bytes = new long[threads][iterations];
+        final long[] sinks = new long[threads];
+        final long start = System.nanoTime() + 10000000;
+        AuctionHouseBenchmark.timeThreads(threads, thread -> {
+            long threadId = Thread.currentThread().getId();
+            long index = 0;
+            long sink = 0;
+            while (System.nanoTime() < start) {
+                // line up with the other threads
+            }
+            for (int iteration = 0; iteration < iterations; iteration++) {
+                long begin = System.nanoTime();
+                long end = begin + ITERATION_NANOS;
+                long now = begin;
+                long allocated = THREAD_MX.getThreadAllocatedBytes(threadId);
+                long count = 0;
+                // check the clock every chunk of operations, a chunk being
+                // about a microsecond's worth once the operation is fast
+                int chunk = 1;
+                while (now < end) {
+                    for (int i = 0; i < chunk; i++) {
+                        sink ^= operation.run(thread, index++);
+                    }
+                    count += chunk;
+                    long then = System.nanoTime();
+                    if (then - now < 1000 && chunk < (1 << 20)) {
+                        chunk *= 2;
+                    }
+                    now = then;
+                }
+                ops[thread][iteration] = count;
+                nanos[thread][iteration] = now - begin;
+                bytes[thread][iteration] = THREAD_MX.getThreadAllocatedBytes(threadId) - allocated;
+            }
+            sinks[thread] = sink;
+        });
+
+        double[] nanosPerOp = new double[ITERATIONS];
+        long totalOps = 0;
+        long totalBytes = 0;
+        for (int iteration = WARMUPS; iteration < iterations; iteration++) {
+            long iterationOps = 0;
+            long iterationNanos = 0;
+            for (int t = 0; t < threads; t++) {
+                iterationOps += ops[t][iteration];
+                iterationNanos += nanos[t][iteration];
+                totalBytes += bytes[t][iteration];
+            }
+            totalOps += iterationOps;
+            nanosPerOp[iteration - WARMUPS] = (double) iterationNanos / iterationOps;
+        }
+        double mean = 0;
+        for (double n : nanosPerOp) {
+            mean += n / ITERATIONS;
+        }
+        double variance = 0;
+        for (double n : nanosPerOp) {
+            variance += (n - mean) * (n - mean) / ITERATIONS;
+        }
+        Result result = new Result(fullName, mean, Math.sqrt(variance), (double) totalBytes / totalOps);
+        results.add(result);
+        System.out.printf("%-36s %12.1f %10.1f %12.1f%n",
+                result.name, result.nanosPerOp, result.error, result.bytesPerOp);
+        long sink = 0;
+        for (long s : sinks) {
+            sink ^= s;
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    /*
+     * Writes the results to baseline if it does not exist, otherwise
+     * reports each result more than tolerance percent slower, or allocating
+     * more, than the baseline's.
+     *
+     * @return the number of regressions
+     */
+    int checkBaseline(Path baseline, int tolerance) throws IOException {
+        if (!Files.exists(baseline)) {
+            List<String> lines = new ArrayList<String>();
+            for (Result result : results) {
+                lines.add(result.name + "\t" + result.nanosPerOp + "\t" + result.bytesPerOp);
+            }
+            Files.write(baseline, lines, StandardCharsets.UTF_8);
+            System.out.println("Baseline written to " + baseline);
+            return 0;
+        }
+        Map<String, double[]> expected = new HashMap<String, double[]>();
+        for (String line : Files.readAllLines(baseline, StandardCharsets.UTF_8)) {
+            String[] fields = line.split("\t");
+            expected.put(fields[0], new double[] {
+                    Double.parseDouble(fields[1]), Double.parseDouble(fields[2]) });
+        }
+        double limit = 1 + tolerance / 100.0;
+        int regressions = 0;
+        for (Result result : results) {
+            double[] base = expected.get(result.name);
+            if (base == null) {
+                continue;
+            }
+            // a few bytes either way are the allocation counters' noise
+            if (result.nanosPerOp > base[0] * limit || result.bytesPerOp > base[1] * limit + 8) {
+                System.out.printf("REGRESSION %s: %.1f ns/op, %.1f B/op against %.1f ns/op, %.1f B/op%n",
+                        result.name, result.nanosPerOp, result.bytesPerOp, base[0], base[1]);
+                regressions++;
+            }
+        }
+        System.out.println(regressions + " regressions against " + baseline);
+        return regressions;
+    }
+
+    /*
+     * The premium and reserve check closeAuction makes per sale, through
+     * Money objects and on raw pence.
+     */
+    void money() {
+        final Money hammer = new Money("123.45");
+        final Money reserve = new Money("100.00");
+        final long premium = Money.basisPoints(10.0);
+        for (int threads : new int[] { 1, THREADS }) {
+            measure("money objects", threads, (thread, index) -> {
+                Money due = hammer.add(Money.ofPence(index & 0xff)).addPercent(10.0);
+                return reserve.lessEqual(due) ? due.getPence() : 0;
+            });
+            measure("money pence", threads, (thread, index) -> {
+                long due = Money.addBasisPoints(Money.add(hammer.getPence(), index & 0xff), premium);
+                return Money.compare(reserve.getPence(), due) <= 0 ? due : 0;
+            });
+        }
+    }
+
+    /*
+     * Winning bids by id. On a hot lot every thread bids on the same lot, so
+     * most bids race another thread's and many lose. On cold lots each bid
+     * goes to the next of 100k open lots, so the lot is rarely in cache; each
+     * thread bids on lots of its own. The operation includes making the
+     * bid's Money, as a caller would. The hot lot is bid on again through
+     * HouseMetrics, to show what metering costs, and with a flight
+     * recording of the house's events running, to show what recording costs
+     * over the plain runs, where the events are not enabled. Last, bids too
+     * low to win, with a Money made once, show that a rejection allocates
+     * nothing.
+     */
+    void makeBid() {
+        final int coldLots = 100000;
+        final long step = 2000;
+        for (int threads : new int[] { 1, THREADS }) {
+            final AuctionHouseImp hot = newHouse(threads, 1);
+            final int bidders = threads;
+            measure("makeBid hot lot", threads, (thread, index) -> {
+                long amount = ((index * bidders) + thread + 1) * step;
+                return hot.makeBid(thread, 0, Money.ofPence(amount)).kind.ordinal();
+            });
+            final AuctionHouse metered = new HouseMetrics().meter(newHouse(threads, 1));
+            measure("makeBid hot lot, metered", threads, (thread, index) -> {
+                long amount = ((index * bidders) + thread + 1) * step;
+                return metered.makeBid(thread, 0, Money.ofPence(amount)).kind.ordinal();
+            });
+            final AuctionHouseImp recorded = newHouse(threads, 1);
+            try (Recording recording = new Recording()) {
+                recording.enable("auctionhouse.MakeBid").withoutThreshold();
+                recording.start();
+                measure("makeBid hot lot, recording", threads, (thread, index) -> {
+                    long amount = ((index * bidders) + thread + 1) * step;
+                    return recorded.makeBid(thread, 0, Money.ofPence(amount)).kind.ordinal();
+                });
+            }
+            final AuctionHouseImp cold = newHouse(threads, coldLots);
+            final int lotsPerThread = coldLots / threads;
+            measure("makeBid cold lots", threads, (thread, index) -> {
+                int lot = thread * lotsPerThread + (int) (index % lotsPerThread);
+                long amount = (index / lotsPerThread + 1) * step;
+                return cold.makeBid(thread, lot, Money.ofPence(amount)).kind.ordinal();
+            });
+            final AuctionHouseImp outbid = newHouse(threads, 1);
+            outbid.makeBid(0, 0, new Money("1000000.00"));
+            final Money low = new Money("2.00");
+            measure("makeBid rejected", threads, (thread, index) -> {
+                return outbid.makeBid(thread, 0, low).code.ordinal();
+            });
+        }
+    }
+
+    /*
+     * Winning bids on a hot lot with the house's logger off, at FINE, where
+     * each bid is traced, and at FINER, where each accepted bid is traced
+     * too. The records are not passed on to any handler, so this measures
+     * tracing on the bidding threads and formatting on the trace drainer,
+     * but not writing. Events the drainer fell behind on are counted.
+     */
+    void logging() {
+        final long step = 2000;
+        LOGGER.setUseParentHandlers(false);
+        for (Level level : new Level[] { Level.OFF, Level.FINE, Level.FINER }) {
+            for (int threads : new int[] { 1, THREADS }) {
+                final AuctionHouseImp house = newHouse(threads, 1);
+                final int bidders = threads;
+                LOGGER.setLevel(level);
+                measure("makeBid, logging " + level, threads, (thread, index) -> {
+                    long amount = ((index * bidders) + thread + 1) * step;
+                    return house.makeBid(thread, 0, Money.ofPence(amount)).kind.ordinal();
+                });
+                LOGGER.setLevel(Level.OFF);
+            }
+        }
+        LOGGER.setUseParentHandlers(true);
+        System.out.println(AuctionHouseImp.tracedEventsDropped() + " trace events dropped");
+    }
+
+    /*
+     * A house with a seller and buyers 0 to buyers - 1, each interested in
+     * every one of lots open lots numbered from 0.
+     */
+    private static AuctionHouseImp newHouse(int buyers, int lots) {
+        AuctionHouseImp house = AuctionHouseBenchmark.newHouse(
+                new CountingMessagingService(), new CountingBankingService());
+        house.registerSeller("Seller", "@Seller", "S A/C");
+        for (int b = 0; b < buyers; b++) {
+            house.registerBuyer("Buyer" + b, "@Buyer" + b, "B" + b + " A/C", "B" + b + "-auth");
+        }
+        for (int n = 0; n < lots; n++) {
+            house.addLot(0, n, "Lot " + n, new Money("1.00"));
+            for (int b = 0; b < buyers; b++) {
+                house.noteInterest(b, n);
+            }
+            house.openAuction("Auctioneer", "@Auctioneer", n);
+        }
+        return house;
+    }
+
+    /*
+     * Opening an auction and closing it unsold, each of which notifies the
+     * seller and every watcher in one multicast. Each thread opens and
+     * closes a lot of its own, watched by the same buyers.
+     */
+    void fanOut() {
+        for (int watchers : new int[] { 10, 1000, 100000 }) {
+            for (int threads : new int[] { 1, THREADS }) {
+                final AuctionHouseImp house = AuctionHouseBenchmark.newHouse(
+                        new CountingMessagingService(), new CountingBankingService());
+                house.registerSeller("Seller", "@Seller", "S A/C");
+                for (int t = 0; t < threads; t++) {
+                    house.addLot(0, t, "Lot " + t, new Money("1.00"));
+                }
+                for (int w = 0; w < watchers; w++) {
+                    house.registerBuyer("Buyer" + w, "@Buyer" + w, "B" + w + " A/C", "B" + w + "-auth");
+                    for (int t = 0; t < threads; t++) {
+                        house.noteInterest(w, t);
+                    }
+                }
+                measure("open and close, " + watchers + " watchers", threads, (thread, index) -> {
+                    house.openAuction("Auctioneer", "@Auctioneer", thread);
+                    return house.closeAuction("Auctioneer", thread).kind.ordinal();
+                });
+            }
+        }
+    }
+
+    /*
+     * Listing the whole catalogue, while other threads list it too.
+     */
+    void viewCatalogue() {
+        for (int lots : new int[] { 1000, 10000, 100000 }) {
+            final AuctionHouseImp house = AuctionHouseBenchmark.newHouse(
+                    new CountingMessagingService(), new CountingBankingService());
+            house.registerSeller("Seller", "@Seller", "S A/C");
+            for (int n = 0; n < lots; n++) {
+                house.addLot(0, n, "Lot " + n, new Money("1.00"));
+            }
+            for (int threads : new int[] { 1, THREADS }) {
+                measure("viewCatalogue, " + lots + " lots", threads, (thread, index) -> {
+                    // the view is lazy, so every entry is read to list it
+                    long listed = 0;
+                    for (CatalogueEntry entry : house.viewCatalogue()) {
+                        listed += entry.lotNumber + entry.status.ordinal();
+                    }
+                    return listed;
+                });
+            }
+        }
+    }
+
+}
@@ -0,0 +1,223 @@
+package auctionhouse;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for a house, so that its latency can be lined
+ * up with garbage collection, lock contention and the rest of a recording.
+ *
+ * AuctionHouseImp records an event for each registerBuyer, addLot,
+ * noteInterest, openAuction, makeBid and closeAuction, with the Status
+ * kind it returned and the number of addresses its notification went to.
+ * Bank calls and notifications are recorded by wrapping the services
+ * before the house is built:
+ *
+ *     AuctionHouse house = new AuctionHouseImp(new Parameters(...,
+ *             HouseEvents.record(messagingService), HouseEvents.record(bankingService)));
+ *
+ * and every event is then enabled in a recording with, for example,
+ *
+ *     java -XX:StartFlightRecording:settings=profile ...
+ *
+ * or individually by name, auctionhouse.MakeBid and so on. An event not
+ * enabled is not created, so recording nothing costs a check of a flag.
+ * Stack traces are left out by default, since the events say where they
+ * come from and walking the stack would cost more than the operation.
+ */
+public final class HouseEvents {
+
+    private HouseEvents() {
+    }
+
+    @Category({ "Auction House", "Operations" })
+    @StackTrace(false)
+    abstract static class Operation extends Event {
+        @Label("Outcome")
+        @Description("The kind of Status returned")
+        String outcome;
+
+        @Label("Fan-out")
+        @Description("The addresses the operation's notification was sent to")
+        int fanOut;
+    }
+
+    abstract static class LotOperation extends Operation {
+        @Label("Lot Number")
+        int lotNumber;
+    }
+
+    @Name("auctionhouse.RegisterBuyer")
+    @Label("Register Buyer")
+    static final class RegisterBuyer extends Operation {
+        @Label("Buyer")
+        String buyerName;
+    }
+
+    @Name("auctionhouse.AddLot")
+    @Label("Add Lot")
+    static final class AddLot extends LotOperation {
+    }
+
+    @Name("auctionhouse.NoteInterest")
+    @Label("Note Interest")
+    static final class NoteInterest extends LotOperation {
+    }
+
+    @Name("auctionhouse.OpenAuction")
+    @Label("Open Auction")
+    static final class OpenAuction extends LotOperation {
+    }
+
+    @Name("auctionhouse.MakeBid")
+    @Label("Make Bid")
+    static final class MakeBid extends LotOperation {
+        @Label("Bid (pence)")
+        long bidPence;
+    }
+
+    @Name("auctionhouse.CloseAuction")
+    @Label("Close Auction")
+    static final class CloseAuction extends LotOperation {
+    }
+
+    @Name("auctionhouse.BankTransfer")
+    @Label("Bank Transfer")
+    @Category({ "Auction House", "Bank" })
+    @StackTrace(false)
+    static final class BankTransfer extends Event {
+        @Label("Sender Account")
+        String senderAccount;
+
+        @Label("Receiver Account")
+        String receiverAccount;
+
+        @Label("Amount (pence)")
+        long amountPence;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("auctionhouse.BankTransferBatch")
+    @Label("Bank Transfer Batch")
+    @Category({ "Auction House", "Bank" })
+    @StackTrace(false)
+    static final class BankTransferBatch extends Event {
+        @Label("Transfers")
+        int transfers;
+
+        @Label("Failed")
+        @Description("Transfers whose Status was not OK, or that had none")
+        int failed;
+    }
+
+    @Name("auctionhouse.Notification")
+    @Label("Notification")
+    @Category({ "Auction House", "Notifications" })
+    @StackTrace(false)
+    static final class Notification extends Event {
+        @Label("Notification")
+        @Description("The MessagingService method called")
+        String notification;
+
+        @Label("Lot Number")
+        int lotNumber;
+
+        @Label("Fan-out")
+        int fanOut;
+    }
+
+    private static final EventType REGISTER_BUYER = EventType.getEventType(RegisterBuyer.class);
+    private static final EventType ADD_LOT = EventType.getEventType(AddLot.class);
+    private static final EventType NOTE_INTEREST = EventType.getEventType(NoteInterest.class);
+    private static final EventType OPEN_AUCTION = EventType.getEventType(OpenAuction.class);
+    private static final EventType MAKE_BID = EventType.getEventType(MakeBid.class);
+    private static final EventType CLOSE_AUCTION = EventType.getEventType(CloseAuction.class);
+    static final EventType BANK_TRANSFER = EventType.getEventType(BankTransfer.class);
+    static final EventType BANK_TRANSFER_BATCH = EventType.getEventType(BankTransferBatch.class);
+    static final EventType NOTIFICATION = EventType.getEventType(Notification.class);
+
+    /**
+     * @return messagingService, with every notification recorded
+     */
+    public static MessagingService record(MessagingService messagingService) {
+        return new RecordedMessagingService(messagingService);
+    }
+
+    /**
+     * @return bankingService, with every call recorded
+     */
+    public static BankingService record(BankingService bankingService) {
+        return new RecordedBankingService(bankingService);
+    }
+
+    /*
+     * Each of these begins an event, or returns null if it is not enabled.
+     * The AuctionHouseImp operation fills in its fan-out, if any, and
+     * passes it to end.
+     */
+
+    static RegisterBuyer registerBuyer(String buyerName) {
+        if (!REGISTER_BUYER.isEnabled()) {
+            return null;
+        }
+        RegisterBuyer event = new RegisterBuyer();
+        event.buyerName = buyerName;
+        event.begin();
+        return event;
+    }
+
+    static AddLot addLot() {
+        return ADD_LOT.isEnabled() ? begin(new AddLot()) : null;
+    }
+
+    static NoteInterest noteInterest() {
+        return NOTE_INTEREST.isEnabled() ? begin(new NoteInterest()) : null;
+    }
+
+    static OpenAuction openAuction() {
+        return OPEN_AUCTION.isEnabled() ? begin(new OpenAuction()) : null;
+    }
+
+    static MakeBid makeBid(Money bid) {
+        if (!MAKE_BID.isEnabled()) {
+            return null;
+        }
+        MakeBid event = new MakeBid();
+        event.bidPence = bid.getPence();
+        event.begin();
+        return event;
+    }
+
+    static CloseAuction closeAuction() {
+        return CLOSE_AUCTION.isEnabled() ? begin(new CloseAuction()) : null;
+    }
+
+    private static <E extends Event> E begin(E event) {
+        event.begin();
+        return event;
+    }
+
+    static Status end(Operation event, Status status) {
+        if (event != null) {
+            event.outcome = status.kind.name();
+            event.commit();
+        }
+        return status;
+    }
+
+    static Status end(LotOperation event, int lotNumber, Status status) {
+        if (event != null) {
+            event.lotNumber = lotNumber;
+            end((Operation) event, status);
+        }
+        return status;
+    }
+
+}
@@ -0,0 +1,146 @@
+package auctionhouse;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for the flight recorder events of a house.
+ */
+public class HouseEventsTest {
+
+    @BeforeClass
+    public static void quietLogger() {
+        Logger.getLogger("auctionhouse").setLevel(Level.SEVERE);
+    }
+
+    private static final String[] NAMES = {
+        "auctionhouse.RegisterBuyer", "auctionhouse.AddLot", "auctionhouse.NoteInterest",
+        "auctionhouse.OpenAuction", "auctionhouse.MakeBid", "auctionhouse.CloseAuction",
+        "auctionhouse.BankTransfer", "auctionhouse.Notification"
+    };
+
+    /*
+     * Sells lot 1 to BuyerB as in HouseMetricsTest, with every event enabled
+     * if record is true and disabled otherwise.
+     *
+     * @return the events recorded, in the order they were committed
+     */
+    private static List<RecordedEvent> runStory(boolean record) throws Exception {
+        AuctionHouse house = new AuctionHouseImp(
+                new Parameters(10.0, 15.0, new Money("10.00"), "AH A/C", "AH-auth",
+                        HouseEvents.record(new CountingMessagingService()),
+                        HouseEvents.record(new CountingBankingService())));
+        Path file = Files.createTempFile("house", ".jfr");
+        try (Recording recording = new Recording()) {
+            for (String name : NAMES) {
+                if (record) {
+                    recording.enable(name).withoutThreshold();
+                } else {
+                    recording.disable(name);
+                }
+            }
+            recording.start();
+            house.registerSeller("SellerY", "@SellerY", "SY A/C");
+            house.registerBuyer("BuyerA", "@BuyerA", "BA A/C", "BA-auth");
+            house.registerBuyer("BuyerB", "@BuyerB", "BB A/C", "BB-auth");
+            house.addLot("SellerY", 1, "Bicycle", new Money("80.00"));
+            house.addLot("SellerY", 1, "Bicycle", new Money("80.00"));
+            house.noteInterest("BuyerA", 1);
+            house.noteInterest("BuyerB", 1);
+            house.openAuction("Auctioneer", "@Auctioneer", 1);
+            house.makeBid("BuyerA", 1, new Money("90.00"));
+            house.makeBid("BuyerB", 1, new Money("90.00"));
+            house.makeBid("BuyerB", 1, new Money("100.00"));
+            house.closeAuction("Auctioneer", 1);
+            recording.stop();
+            recording.dump(file);
+            List<RecordedEvent> events = new ArrayList<RecordedEvent>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                if (event.getEventType().getName().startsWith("auctionhouse.")) {
+                    events.add(event);
+                }
+            }
+            events.sort((a, b) -> a.getEndTime().compareTo(b.getEndTime()));
+            return events;
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static List<RecordedEvent> named(List<RecordedEvent> events, String name) {
+        List<RecordedEvent> found = new ArrayList<RecordedEvent>();
+        for (RecordedEvent event : events) {
+            if (event.getEventType().getName().equals(name)) {
+                found.add(event);
+            }
+        }
+        return found;
+    }
+
+    @Test
+    public void testRecordsOperationsWithOutcomeAndFanOut() throws Exception {
+        List<RecordedEvent> events = runStory(true);
+
+        List<RecordedEvent> buyers = named(events, "auctionhouse.RegisterBuyer");
+        assertEquals(2, buyers.size());
+        assertEquals("BuyerA", buyers.get(0).getString("buyerName"));
+        assertEquals("OK", buyers.get(0).getString("outcome"));
+
+        List<RecordedEvent> lots = named(events, "auctionhouse.AddLot");
+        assertEquals(2, lots.size());
+        assertEquals(1, lots.get(1).getInt("lotNumber"));
+        assertEquals("ERROR", lots.get(1).getString("outcome"));
+        assertEquals(2, named(events, "auctionhouse.NoteInterest").size());
+
+        // the seller and both watchers are told of the opening
+        List<RecordedEvent> opened = named(events, "auctionhouse.OpenAuction");
+        assertEquals(1, opened.size());
+        assertEquals(3, opened.get(0).getInt("fanOut"));
+
+        // each accepted bid goes to the seller, the other watcher and the auctioneer
+        List<RecordedEvent> bids = named(events, "auctionhouse.MakeBid");
+        assertEquals(3, bids.size());
+        assertEquals(9000, bids.get(1).getLong("bidPence"));
+        assertEquals("ERROR", bids.get(1).getString("outcome"));
+        assertEquals(0, bids.get(1).getInt("fanOut"));
+        assertEquals("OK", bids.get(2).getString("outcome"));
+        assertEquals(3, bids.get(2).getInt("fanOut"));
+
+        List<RecordedEvent> closed = named(events, "auctionhouse.CloseAuction");
+        assertEquals(1, closed.size());
+        assertEquals("SALE", closed.get(0).getString("outcome"));
+        assertEquals(3, closed.get(0).getInt("fanOut"));
+
+        List<RecordedEvent> transfers = named(events, "auctionhouse.BankTransfer");
+        assertEquals(2, transfers.size());
+        assertEquals("BB A/C", transfers.get(0).getString("senderAccount"));
+        assertEquals(11000, transfers.get(0).getLong("amountPence"));
+        assertEquals("OK", transfers.get(0).getString("outcome"));
+
+        // opened, two bids accepted and sold
+        List<RecordedEvent> notifications = named(events, "auctionhouse.Notification");
+        assertEquals(4, notifications.size());
+        assertEquals("auctionOpened", notifications.get(0).getString("notification"));
+        assertEquals("lotSold", notifications.get(3).getString("notification"));
+        assertEquals(3, notifications.get(3).getInt("fanOut"));
+    }
+
+    @Test
+    public void testRecordsNothingWhenDisabled() throws Exception {
+        assertEquals(0, runStory(false).size());
+    }
+
+}
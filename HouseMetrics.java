@@ -0,0 +1,178 @@
+package auctionhouse;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of a house in production: for each AuctionHouse operation, the
+ * number of calls by the Status kind returned and a histogram of their
+ * latency; for bank calls, the same; and for each kind of notification, a
+ * histogram of how many addresses it was sent to.
+ *
+ * A house is metered by wrapping its services before it is built, and the
+ * house itself afterwards:
+ *
+ *     HouseMetrics metrics = new HouseMetrics();
+ *     AuctionHouse house = metrics.meter(new AuctionHouseImp(new Parameters(...,
+ *             metrics.meter(messagingService), metrics.meter(bankingService))));
+ *     metrics.register("auctionhouse");
+ *
+ * Every Metric is then an MXBean named domain:type=Operation,name=makeBid,
+ * domain:type=Bank,name=transfer or domain:type=FanOut,name=lotSold, and
+ * can be read with any JMX client. Recording takes no lock and allocates
+ * nothing (see Metric). Latencies are in nanoseconds.
+ */
+public class HouseMetrics {
+
+    /**
+     * The AuctionHouse operations, each metered together with its id-based
+     * overload. Calls that throw are not counted.
+     */
+    public static enum Operation {
+        REGISTER_BUYER("registerBuyer"),
+        REGISTER_SELLER("registerSeller"),
+        ADD_LOT("addLot"),
+        VIEW_CATALOGUE("viewCatalogue"),
+        // the time to start the stream, not to read it
+        STREAM_CATALOGUE("streamCatalogue"),
+        COUNT_LOTS("countLots"),
+        SEARCH_CATALOGUE("searchCatalogue"),
+        NOTE_INTEREST("noteInterest"),
+        OPEN_AUCTION("openAuction"),
+        MAKE_BID("makeBid"),
+        CLOSE_AUCTION("closeAuction"),
+        // counted OK, whatever the outcome for each lot
+        CLOSE_AUCTIONS("closeAuctions"),
+        // counted as errors when there is no such user
+        BUYER_ID("buyerId"),
+        SELLER_ID("sellerId");
+
+        final String methodName;
+
+        Operation(String methodName) {
+            this.methodName = methodName;
+        }
+    }
+
+    /**
+     * The BankingService calls. A batch counts as an error if any of its
+     * transfers failed.
+     */
+    public static enum BankCall {
+        TRANSFER("transfer"),
+        TRANSFER_BATCH("transferBatch");
+
+        final String methodName;
+
+        BankCall(String methodName) {
+            this.methodName = methodName;
+        }
+    }
+
+    /**
+     * The notifications, whose fan-out, the addresses each is sent to, is
+     * recorded. All are counted OK.
+     */
+    public static enum Event {
+        AUCTION_OPENED("auctionOpened"),
+        BID_ACCEPTED("bidAccepted"),
+        LOT_SOLD("lotSold"),
+        LOT_UNSOLD("lotUnsold");
+
+        final String methodName;
+
+        Event(String methodName) {
+            this.methodName = methodName;
+        }
+    }
+
+    private final Metric[] operations = new Metric[Operation.values().length];
+    private final Metric[] bankCalls = new Metric[BankCall.values().length];
+    private final Metric[] fanOuts = new Metric[Event.values().length];
+
+    public HouseMetrics() {
+        for (int i = 0; i < operations.length; i++) {
+            operations[i] = new Metric("ns");
+        }
+        for (int i = 0; i < bankCalls.length; i++) {
+            bankCalls[i] = new Metric("ns");
+        }
+        for (int i = 0; i < fanOuts.length; i++) {
+            fanOuts[i] = new Metric("addresses");
+        }
+    }
+
+    public Metric get(Operation operation) {
+        return operations[operation.ordinal()];
+    }
+
+    public Metric get(BankCall call) {
+        return bankCalls[call.ordinal()];
+    }
+
+    public Metric get(Event event) {
+        return fanOuts[event.ordinal()];
+    }
+
+    /**
+     * @return house, with every call metered
+     */
+    public AuctionHouse meter(AuctionHouse house) {
+        return new MeteredAuctionHouse(house, this);
+    }
+
+    /**
+     * @return messagingService, with the fan-out of every notification
+     *         metered
+     */
+    public MessagingService meter(MessagingService messagingService) {
+        return new MeteredMessagingService(messagingService, this);
+    }
+
+    /**
+     * @return bankingService, with every call metered
+     */
+    public BankingService meter(BankingService bankingService) {
+        return new MeteredBankingService(bankingService, this);
+    }
+
+    /**
+     * Registers every metric with the platform MBean server under domain.
+     */
+    public void register(String domain) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (Operation operation : Operation.values()) {
+            server.registerMBean(get(operation), name(domain, "Operation", operation.methodName));
+        }
+        for (BankCall call : BankCall.values()) {
+            server.registerMBean(get(call), name(domain, "Bank", call.methodName));
+        }
+        for (Event event : Event.values()) {
+            server.registerMBean(get(event), name(domain, "FanOut", event.methodName));
+        }
+    }
+
+    /**
+     * Removes the metrics registered under domain.
+     */
+    public void unregister(String domain) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (Operation operation : Operation.values()) {
+            server.unregisterMBean(name(domain, "Operation", operation.methodName));
+        }
+        for (BankCall call : BankCall.values()) {
+            server.unregisterMBean(name(domain, "Bank", call.methodName));
+        }
+        for (Event event : Event.values()) {
+            server.unregisterMBean(name(domain, "FanOut", event.methodName));
+        }
+    }
+
+    static ObjectName name(String domain, String type, String name) throws JMException {
+        return new ObjectName(domain + ":type=" + type + ",name=" + name);
+    }
+
+}
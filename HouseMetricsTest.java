@@ -0,0 +1,123 @@
+package auctionhouse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for metering a house and reading its metrics over JMX.
+ */
+public class HouseMetricsTest {
+
+    @BeforeClass
+    public static void quietLogger() {
+        Logger.getLogger("auctionhouse").setLevel(Level.SEVERE);
+    }
+
+    /*
+     * Sells lot 1 to BuyerB, with a duplicate lot and a losing bid along
+     * the way, through a metered house.
+     */
+    private static void runStory(AuctionHouse house) {
+        house.registerSeller("SellerY", "@SellerY", "SY A/C");
+        house.registerBuyer("BuyerA", "@BuyerA", "BA A/C", "BA-auth");
+        house.registerBuyer("BuyerB", "@BuyerB", "BB A/C", "BB-auth");
+        house.addLot("SellerY", 1, "Bicycle", new Money("80.00"));
+        house.addLot("SellerY", 1, "Bicycle", new Money("80.00"));
+        house.noteInterest("BuyerA", 1);
+        house.noteInterest("BuyerB", 1);
+        house.openAuction("Auctioneer", "@Auctioneer", 1);
+        house.makeBid("BuyerA", 1, new Money("90.00"));
+        house.makeBid("BuyerB", 1, new Money("90.00"));
+        house.makeBid("BuyerB", 1, new Money("100.00"));
+        house.closeAuction("Auctioneer", 1);
+    }
+
+    private static AuctionHouse meteredHouse(HouseMetrics metrics) {
+        return metrics.meter(new AuctionHouseImp(
+                new Parameters(10.0, 15.0, new Money("10.00"), "AH A/C", "AH-auth",
+                        metrics.meter(new CountingMessagingService()),
+                        metrics.meter(new CountingBankingService()))));
+    }
+
+    @Test
+    public void testCountsCallsByKind() {
+        HouseMetrics metrics = new HouseMetrics();
+        runStory(meteredHouse(metrics));
+
+        Metric addLot = metrics.get(HouseMetrics.Operation.ADD_LOT);
+        assertEquals(2, addLot.getCount());
+        assertEquals(1, addLot.getCount(Status.Kind.ERROR));
+        Metric makeBid = metrics.get(HouseMetrics.Operation.MAKE_BID);
+        assertEquals(3, makeBid.getCount());
+        assertEquals(2, makeBid.getCount(Status.Kind.OK));
+        assertEquals(1, makeBid.getCount(Status.Kind.ERROR));
+        assertTrue(makeBid.getMax() >= makeBid.getP50());
+        assertEquals(1, metrics.get(HouseMetrics.Operation.CLOSE_AUCTION).getCount(Status.Kind.SALE));
+
+        Metric transfers = metrics.get(HouseMetrics.BankCall.TRANSFER);
+        assertEquals(2, transfers.getCount(Status.Kind.OK));
+        assertEquals("ns", transfers.getUnit());
+
+        // the seller and both watchers are told of the opening and the sale
+        Metric opened = metrics.get(HouseMetrics.Event.AUCTION_OPENED);
+        assertEquals(1, opened.getCount());
+        assertEquals(3, opened.getMax());
+        assertEquals(1, metrics.get(HouseMetrics.Event.LOT_SOLD).getCount());
+        assertEquals(3, metrics.get(HouseMetrics.Event.LOT_SOLD).getMax());
+        assertEquals(2, metrics.get(HouseMetrics.Event.BID_ACCEPTED).getCount());
+    }
+
+    @Test
+    public void testExposesMetricsOverJmx() throws Exception {
+        HouseMetrics metrics = new HouseMetrics();
+        runStory(meteredHouse(metrics));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        metrics.register("auctionhouse.test");
+        try {
+            ObjectName makeBid = new ObjectName("auctionhouse.test:type=Operation,name=makeBid");
+            assertEquals(3L, server.getAttribute(makeBid, "Count"));
+            TabularData byKind = (TabularData) server.getAttribute(makeBid, "CountsByKind");
+            CompositeData errors = byKind.get(new Object[] { "ERROR" });
+            assertEquals(1L, errors.get("value"));
+            ObjectName lotSold = new ObjectName("auctionhouse.test:type=FanOut,name=lotSold");
+            assertEquals("addresses", server.getAttribute(lotSold, "Unit"));
+            assertEquals(3L, server.getAttribute(lotSold, "P50"));
+        } finally {
+            metrics.unregister("auctionhouse.test");
+        }
+        assertTrue(server.queryNames(new ObjectName("auctionhouse.test:*"), null).isEmpty());
+    }
+
+    @Test
+    public void testRecordingAllocatesNothing() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        Metric metric = new HouseMetrics().get(HouseMetrics.Operation.MAKE_BID);
+        for (int i = 0; i < 100000; i++) {
+            metric.record(i, Status.Kind.OK);
+        }
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 100000; i++) {
+            metric.record(i, Status.Kind.ERROR);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        // reading the counter itself may allocate a little
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+        assertEquals(200000, metric.getCount());
+        assertEquals(99999, metric.getMax());
+    }
+
+}
@@ -0,0 +1,126 @@
+package auctionhouse;
+
+import java.util.Arrays;
+
+/**
+ * The buyers who have noted interest in one lot, held by buyer id.
+ * 
+ * Membership is an open-addressed hash table of ints, kept at most half
+ * full, so the check made on every bid is constant time and adding a buyer
+ * twice has no effect. Members are also appended to flat arrays of ids and
+ * addresses, which fan-out loops copy from.
+ * 
+ * Only add takes a lock. Slots below size are never changed once written
+ * and arrays are only ever replaced by larger copies, so a reader that
+ * reads size first sees every member added before it without locking.
+ * A member being added concurrently may or may not be seen.
+ */
+public class InterestSet {
+    
+    private static final int EMPTY = -1;
+    private static final int[] NO_IDS = new int[0];
+    private static final String[] NO_ADDRESSES = new String[0];
+    
+    // most lots attract few buyers or none, so nothing is allocated until the first
+    private volatile int[] table = NO_IDS;
+    private volatile int[] ids = NO_IDS;
+    private volatile String[] addresses = NO_ADDRESSES;
+    private volatile int size;
+    
+    private static int[] newTable(int capacity) {
+        int[] t = new int[capacity];
+        Arrays.fill(t, EMPTY);
+        return t;
+    }
+    
+    private static int slot(int id, int mask) {
+        // spread sequential ids across the table
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+    
+    private static void insert(int[] t, int id) {
+        int mask = t.length - 1;
+        int i = slot(id, mask);
+        while (t[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        t[i] = id;
+    }
+    
+    /**
+     * @return true if the buyer was not already a member
+     */
+    public synchronized boolean add(int buyerId, String address) {
+        if (contains(buyerId)) {
+            return false;
+        }
+        int n = size;
+        if (2 * (n + 1) > table.length) {
+            int[] larger = newTable(Math.max(8, 2 * table.length));
+            for (int i = 0; i < n; i++) {
+                insert(larger, ids[i]);
+            }
+            table = larger;
+        }
+        insert(table, buyerId);
+        if (n == ids.length) {
+            ids = Arrays.copyOf(ids, Math.max(4, 2 * n));
+            addresses = Arrays.copyOf(addresses, Math.max(4, 2 * n));
+        }
+        ids[n] = buyerId;
+        addresses[n] = address;
+        // publishes the new entries to readers of size
+        size = n + 1;
+        return true;
+    }
+    
+    public boolean contains(int buyerId) {
+        if (size == 0) {
+            return false;
+        }
+        int[] t = table;
+        int mask = t.length - 1;
+        int i = slot(buyerId, mask);
+        for (int probe = t[i]; probe != EMPTY; probe = t[i]) {
+            if (probe == buyerId) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+    
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the ids of the members, in the order they were added
+     */
+    public int[] copyIds() {
+        int n = size;
+        return Arrays.copyOf(ids, n);
+    }
+
+    /**
+     * Copies the addresses of members, other than excludedId, into dest
+     * starting at index from and stopping before index to.
+     * 
+     * @param excludedId the id of a buyer to leave out, or UserTable.NO_ID
+     * @return the number of addresses copied
+     */
+    public int copyAddresses(String[] dest, int from, int to, int excludedId) {
+        int n = size;
+        int[] memberIds = ids;
+        String[] a = addresses;
+        int next = from;
+        for (int i = 0; i < n && next < to; i++) {
+            if (memberIds[i] != excludedId) {
+                dest[next++] = a[i];
+            }
+        }
+        return next - from;
+    }
+    
+}
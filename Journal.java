@@ -0,0 +1,634 @@
+package auctionhouse;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of binary records, written ahead of the changes they
+ * describe so that the changes can be replayed after a restart.
+ *
+ * Each record is framed by its length and a CRC32 of its bytes. A record
+ * cut short by a crash, or corrupted, ends the journal: replay stops there
+ * and the file is truncated to the last whole record.
+ *
+ * Appends copy the record into an in-memory buffer under a short lock and
+ * return the journal position just past it. How the caller then waits for
+ * that position to reach the disk depends on the Durability. In
+ * GROUP_COMMIT mode a background writer forces everything appended so far
+ * with one fsync, so concurrent callers share the cost of syncing.
+ *
+ * The journal is a directory of segment files, each named after the
+ * position of its first record. roll starts a new segment, so that the
+ * segments before it can be deleted once the state they record has been
+ * saved elsewhere (see SnapshotStore).
+ *
+ * replay must be called once, before the first append.
+ */
+public class Journal implements AutoCloseable {
+    private static Logger logger = Logger.getLogger("auctionhouse");
+
+    public static enum Durability {
+        SYNC,         // each append writes and forces its own record before returning
+        GROUP_COMMIT, // callers wait for the writer, which forces every record appended while it was busy
+        ASYNC         // callers do not wait; the writer forces records at most a window after they are appended
+    }
+
+    // length and CRC32 of the record that follows
+    private static final int HEADER = 8;
+    // longer than any record this house writes, so a larger length can only be damage
+    private static final int MAX_RECORD = 16 << 20;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+    private final Durability durability;
+    private final long windowNanos;
+    private final Thread writer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // signalled when records are appended, and when the journal is closed
+    private final Condition appendedRecords = lock.newCondition();
+    // signalled when the writer has forced more of the journal, or finished a batch
+    private final Condition synced = lock.newCondition();
+    private final CRC32 crc = new CRC32();
+
+    // guarded by lock
+    private FileChannel channel;
+    private long segmentStart;
+    private ByteBuffer pending = ByteBuffer.allocate(64 << 10);
+    private ByteBuffer spare = ByteBuffer.allocate(64 << 10);
+    private long appended;
+    private long durable;
+    private boolean writing;
+    private boolean replayed;
+    private boolean closed;
+    private IOException failure;
+    private long records;
+    private long syncs;
+
+    /**
+     * Opens the journal in directory, creating it if it does not exist.
+     *
+     * @param windowMicros in GROUP_COMMIT mode, how long the writer waits
+     *        after the first record of a batch for others to join it; in
+     *        ASYNC mode, how long it waits between syncs. Ignored in SYNC
+     *        mode
+     */
+    public Journal(Path directory, Durability durability, long windowMicros) throws IOException {
+        if (windowMicros < 0) {
+            throw new IllegalArgumentException("Group commit window must not be negative");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.durability = durability;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        if (durability == Durability.SYNC) {
+            writer = null;
+        } else {
+            writer = new Thread(this::write, "journal-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    private Path segment(long start) {
+        return directory.resolve(String.format("%s%016x%s", SEGMENT_PREFIX, start, SEGMENT_SUFFIX));
+    }
+
+    /*
+     * The start positions of the segments in the directory, in order.
+     */
+    private List<Long> segmentStarts() throws IOException {
+        List<Long> starts = new ArrayList<Long>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                starts.add(Long.parseLong(
+                        name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()), 16));
+            }
+        }
+        Collections.sort(starts);
+        return starts;
+    }
+
+    /**
+     * As replay(0, handler): replays the whole journal.
+     */
+    public long replay(Consumer<ByteBuffer> handler) throws IOException {
+        return replay(0, handler);
+    }
+
+    /**
+     * Passes every whole record from position from onwards to handler, in
+     * the order they were appended, then truncates anything after the last
+     * of them. Each record is passed as a read-only buffer that is only
+     * valid during the call.
+     *
+     * @return the number of records replayed
+     */
+    public long replay(long from, Consumer<ByteBuffer> handler) throws IOException {
+        lock.lock();
+        try {
+            if (replayed) {
+                throw new IllegalStateException("The journal has already been replayed");
+            }
+            List<Long> starts = segmentStarts();
+            long count = 0;
+            long end = from;
+            for (int i = 0; i < starts.size(); i++) {
+                long start = starts.get(i);
+                boolean last = i == starts.size() - 1;
+                if (!last && starts.get(i + 1) <= from) {
+                    // every record of this segment is older than from
+                    continue;
+                }
+                FileChannel segmentChannel = FileChannel.open(segment(start),
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                long[] replayedCount = new long[1];
+                long valid = replaySegment(segmentChannel, start, from, handler, replayedCount);
+                count += replayedCount[0];
+                if (valid < segmentChannel.size()) {
+                    if (!last) {
+                        segmentChannel.close();
+                        throw new IOException("Journal segment " + segment(start) + " is damaged");
+                    }
+                    logger.warning("Discarding " + (segmentChannel.size() - valid) + " bytes after the last whole journal record");
+                    segmentChannel.truncate(valid);
+                    segmentChannel.force(false);
+                }
+                if (last && start + valid >= from) {
+                    segmentChannel.position(valid);
+                    channel = segmentChannel;
+                    segmentStart = start;
+                    end = start + valid;
+                } else {
+                    segmentChannel.close();
+                }
+            }
+            if (channel == null) {
+                // no journal, or none reaching from: start afresh there
+                channel = FileChannel.open(segment(from),
+                        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                segmentStart = from;
+                end = from;
+            }
+            appended = end;
+            durable = end;
+            records = count;
+            replayed = true;
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Replays the records of one segment, skipping those before from, and
+     * returns the length of its whole records.
+     */
+    private long replaySegment(
+            FileChannel segmentChannel,
+            long start,
+            long from,
+            Consumer<ByteBuffer> handler,
+            long[] count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        buffer.flip();
+        long valid = 0;
+        while (true) {
+            if (!fill(segmentChannel, buffer, HEADER)) {
+                break;
+            }
+            int length = buffer.getInt(buffer.position());
+            int checksum = buffer.getInt(buffer.position() + 4);
+            if (length < 0 || length > MAX_RECORD) {
+                break;
+            }
+            if (buffer.capacity() < HEADER + length) {
+                ByteBuffer larger = ByteBuffer.allocate(HEADER + length);
+                larger.put(buffer);
+                larger.flip();
+                buffer = larger;
+            }
+            if (!fill(segmentChannel, buffer, HEADER + length)) {
+                break;
+            }
+            ByteBuffer record = buffer.duplicate();
+            record.position(buffer.position() + HEADER);
+            record.limit(buffer.position() + HEADER + length);
+            crc.reset();
+            crc.update(record.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            if (start + valid >= from) {
+                handler.accept(record.asReadOnlyBuffer());
+                count[0]++;
+            }
+            buffer.position(buffer.position() + HEADER + length);
+            valid += HEADER + length;
+        }
+        return valid;
+    }
+
+    /*
+     * Reads from segmentChannel until buffer holds at least needed bytes,
+     * which must fit in it. Returns false at the end of the file.
+     */
+    private static boolean fill(FileChannel segmentChannel, ByteBuffer buffer, int needed) throws IOException {
+        if (buffer.remaining() >= needed) {
+            return true;
+        }
+        buffer.compact();
+        try {
+            while (buffer.position() < needed) {
+                if (segmentChannel.read(buffer) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    /**
+     * Appends record.
+     *
+     * @return the journal position just past the record
+     */
+    public long append(byte[] record) {
+        return append(record, null);
+    }
+
+    /**
+     * Makes a change and appends the record of it in one step, so that the
+     * journal holds records in the order their changes were made. change
+     * runs under the journal's lock and must be quick. It returns false if
+     * it made no change, and then nothing is appended.
+     *
+     * @return the journal position just past the record, or -1 if change
+     *         returned false
+     */
+    public long append(byte[] record, BooleanSupplier change) {
+        lock.lock();
+        try {
+            checkWritable();
+            if (change != null && !change.getAsBoolean()) {
+                return -1;
+            }
+            put(record);
+            return publish();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes several changes and appends their records in one step, as
+     * append(records.get(i), () -> change.test(i)) would each, but in SYNC
+     * mode writes and forces them together. change runs under the
+     * journal's lock for every record, so the batch must be short.
+     *
+     * @return the journal position just past the last record appended, or
+     *         -1 if every change returned false
+     */
+    public long appendAll(List<byte[]> records, IntPredicate change) {
+        lock.lock();
+        try {
+            checkWritable();
+            boolean any = false;
+            for (int i = 0; i < records.size(); i++) {
+                if (change.test(i)) {
+                    put(records.get(i));
+                    any = true;
+                }
+            }
+            return any ? publish() : -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // caller holds lock
+    private void put(byte[] record) {
+        if (pending.remaining() < HEADER + record.length) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * pending.capacity(), pending.position() + HEADER + record.length));
+            pending.flip();
+            larger.put(pending);
+            pending = larger;
+        }
+        crc.reset();
+        crc.update(record, 0, record.length);
+        pending.putInt(record.length);
+        pending.putInt((int) crc.getValue());
+        pending.put(record);
+        appended += HEADER + record.length;
+        records++;
+    }
+
+    /*
+     * Writes the records put, in SYNC mode, or wakes the writer. The caller
+     * holds lock.
+     *
+     * @return the journal position just past them
+     */
+    private long publish() {
+        if (durability == Durability.SYNC) {
+            writePending();
+        } else {
+            appendedRecords.signal();
+        }
+        return appended;
+    }
+
+    // caller holds lock
+    private void checkWritable() {
+        if (!replayed) {
+            throw new IllegalStateException("The journal must be replayed before it is appended to");
+        }
+        if (closed) {
+            throw new IllegalStateException("The journal is closed");
+        }
+        checkFailure();
+    }
+
+    /*
+     * Writes and forces the pending records in the calling thread. The
+     * caller holds lock, and the writer must not be writing.
+     */
+    private void writePending() {
+        try {
+            pending.flip();
+            writeFully(channel, pending);
+            channel.force(false);
+            syncs++;
+            durable = appended;
+            synced.signalAll();
+        } catch (IOException e) {
+            failure = e;
+            throw new UncheckedIOException(e);
+        } finally {
+            pending.clear();
+        }
+    }
+
+    /**
+     * Starts a new segment, after making everything appended so far
+     * durable. Appends wait while this happens, which takes one fsync.
+     *
+     * @return the position of the new segment, before which every record
+     *         is in older segments
+     */
+    public long roll() throws IOException {
+        lock.lock();
+        try {
+            checkWritable();
+            // the writer may have taken a batch that belongs in the old segment
+            while (writing) {
+                synced.awaitUninterruptibly();
+            }
+            checkFailure();
+            if (appended == segmentStart) {
+                return segmentStart;
+            }
+            if (pending.position() > 0) {
+                writePending();
+            }
+            FileChannel next = FileChannel.open(segment(appended),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.close();
+            channel = next;
+            segmentStart = appended;
+            return segmentStart;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the segments holding only records before position.
+     */
+    public void deleteBefore(long position) throws IOException {
+        lock.lock();
+        try {
+            List<Long> starts = segmentStarts();
+            for (int i = 0; i + 1 < starts.size() && starts.get(i + 1) <= position; i++) {
+                if (starts.get(i) != segmentStart) {
+                    Files.delete(segment(starts.get(i)));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the journal is on disk up to position, as the Durability
+     * requires: in ASYNC mode this returns at once.
+     *
+     * @throws UncheckedIOException if the journal could not be written
+     */
+    public void awaitDurable(long position) {
+        if (durability == Durability.GROUP_COMMIT) {
+            awaitSynced(position);
+        }
+    }
+
+    /**
+     * Waits until everything appended so far is on disk, whatever the
+     * Durability.
+     */
+    public void flush() {
+        long position;
+        lock.lock();
+        try {
+            position = appended;
+        } finally {
+            lock.unlock();
+        }
+        awaitSynced(position);
+    }
+
+    private void awaitSynced(long position) {
+        lock.lock();
+        try {
+            while (durable < position) {
+                checkFailure();
+                appendedRecords.signal();
+                synced.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // caller holds lock
+    private void checkFailure() {
+        if (failure != null) {
+            throw new UncheckedIOException("The journal could not be written", failure);
+        }
+    }
+
+    /*
+     * Writer loop for GROUP_COMMIT and ASYNC: wait for records, give others
+     * the window to join them, then write and force the whole batch.
+     */
+    private void write() {
+        while (true) {
+            lock.lock();
+            try {
+                while (pending.position() == 0 && !closed) {
+                    appendedRecords.awaitUninterruptibly();
+                }
+                if (pending.position() == 0) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (windowNanos > 0 && !closed) {
+                long deadline = System.nanoTime() + windowNanos;
+                for (long left = windowNanos; left > 0; left = deadline - System.nanoTime()) {
+                    LockSupport.parkNanos(left);
+                }
+            }
+            ByteBuffer batch;
+            FileChannel target;
+            long end;
+            lock.lock();
+            try {
+                if (pending.position() == 0) {
+                    // roll wrote it while we waited
+                    continue;
+                }
+                batch = pending;
+                pending = spare;
+                target = channel;
+                end = appended;
+                writing = true;
+            } finally {
+                lock.unlock();
+            }
+            IOException error = null;
+            try {
+                batch.flip();
+                writeFully(target, batch);
+                target.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+            batch.clear();
+            lock.lock();
+            try {
+                spare = batch;
+                writing = false;
+                if (error == null) {
+                    durable = end;
+                    syncs++;
+                } else if (failure == null) {
+                    failure = error;
+                }
+                synced.signalAll();
+                if (failure != null) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel target, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    /**
+     * Forces every record appended so far to disk, stops the writer and
+     * closes the file.
+     */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            appendedRecords.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (writer != null) {
+            boolean interrupted = false;
+            while (writer.isAlive()) {
+                try {
+                    writer.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (channel != null) {
+            channel.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /*
+     * Statistics
+     */
+
+    /**
+     * @return the number of records replayed or appended since the journal
+     *         was opened
+     */
+    public long getRecordCount() {
+        lock.lock();
+        try {
+            return records;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of fsyncs made since the journal was opened
+     */
+    public long getSyncCount() {
+        lock.lock();
+        try {
+            return syncs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
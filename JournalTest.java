@@ -0,0 +1,441 @@
+package auctionhouse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for journaling, snapshotting, archiving and replaying AuctionHouse
+ * changes.
+ */
+public class JournalTest {
+
+    private Path directory;
+
+    @BeforeClass
+    public static void quietLogger() {
+        Logger.getLogger("auctionhouse").setLevel(Level.SEVERE);
+    }
+
+    private static AuctionHouseImp newHouse(
+            Journal journal,
+            MessagingService messagingService,
+            BankingService bankingService) throws IOException {
+        return new AuctionHouseImp(
+                new Parameters(10.0, 15.0, new Money("10.00"), "AH A/C", "AH-auth",
+                        messagingService, bankingService),
+                journal);
+    }
+
+    private static AuctionHouseImp newHouse(
+            Journal journal,
+            SnapshotStore snapshots) throws IOException {
+        return new AuctionHouseImp(
+                new Parameters(10.0, 15.0, new Money("10.00"), "AH A/C", "AH-auth",
+                        new CountingMessagingService(), new CountingBankingService()),
+                journal,
+                snapshots);
+    }
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("auctionhouse");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    private Path journalDirectory() {
+        return directory.resolve("journal");
+    }
+
+    private SnapshotStore snapshotStore() throws IOException {
+        return new SnapshotStore(directory.resolve("snapshots"));
+    }
+
+    private SnapshotStore mappedSnapshotStore() throws IOException {
+        return new SnapshotStore(directory.resolve("snapshots"), SnapshotStore.Loading.MAPPED);
+    }
+
+    private static List<String> catalogueOf(AuctionHouse house) {
+        return house.viewCatalogue().stream()
+                .map(entry -> entry.lotNumber + " " + entry.description + " " + entry.status)
+                .collect(Collectors.toList());
+    }
+
+    private List<Path> filesIn(Path subdirectory) throws IOException {
+        try (Stream<Path> files = Files.list(subdirectory)) {
+            return files.collect(Collectors.toList());
+        }
+    }
+
+    /*
+     * Registers two buyers and a seller, sells lot 1 to BuyerB for 100.00
+     * and leaves lot 2 in auction with a highest bid of 30.00 from BuyerA.
+     */
+    private static void runStory(AuctionHouse house) {
+        house.registerBuyer("BuyerA", "@BuyerA", "BA A/C", "BA-auth");
+        house.registerSeller("SellerY", "@SellerY", "SY A/C");
+        house.registerBuyer("BuyerB", "@BuyerB", "BB A/C", "BB-auth");
+        house.addLot("SellerY", 1, "Bicycle", new Money("80.00"));
+        house.addLot("SellerY", 2, "Tricycle", new Money("20.00"));
+        house.noteInterest("BuyerA", 1);
+        house.noteInterest("BuyerB", 1);
+        house.noteInterest("BuyerA", 2);
+        house.openAuction("Auctioneer1", "@Auctioneer1", 1);
+        house.openAuction("Auctioneer2", "@Auctioneer2", 2);
+        house.makeBid("BuyerA", 1, new Money("90.00"));
+        house.makeBid("BuyerB", 1, new Money("100.00"));
+        house.makeBid("BuyerA", 2, new Money("30.00"));
+        house.closeAuction("Auctioneer1", 1);
+    }
+
+    private void checkRestored(Journal.Durability durability) throws Exception {
+        try (Journal journal = new Journal(journalDirectory(), durability, 100)) {
+            runStory(newHouse(journal, new CountingMessagingService(), new MockBankingService()));
+        }
+
+        CountingMessagingService messagingService = new CountingMessagingService();
+        CountingBankingService bankingService = new CountingBankingService();
+        try (Journal journal = new Journal(journalDirectory(), durability, 100)) {
+            AuctionHouseImp house = newHouse(journal, messagingService, bankingService);
+
+            // nobody is notified or paid again
+            assertEquals(0, messagingService.getRequests());
+            assertEquals(0, bankingService.getTransfers());
+
+            assertEquals(0, house.buyerId("BuyerA"));
+            assertEquals(1, house.buyerId("BuyerB"));
+            List<CatalogueEntry> expectedCatalogue = new ArrayList<CatalogueEntry>();
+            expectedCatalogue.add(new CatalogueEntry(1, "Bicycle", LotStatus.SOLD));
+            expectedCatalogue.add(new CatalogueEntry(2, "Tricycle", LotStatus.IN_AUCTION));
+            assertEquals(expectedCatalogue, house.viewCatalogue());
+
+            // the highest bid, the interest and the auctioneer survive
+            assertEquals(Status.Kind.ERROR, house.makeBid("BuyerA", 2, new Money("30.00")).kind);
+            assertEquals(Status.Kind.ERROR, house.makeBid("BuyerB", 2, new Money("40.00")).kind);
+            assertEquals(Status.Kind.OK, house.makeBid("BuyerA", 2, new Money("40.00")).kind);
+            assertEquals(Status.Kind.ERROR, house.closeAuction("Auctioneer1", 2).kind);
+            assertEquals(Status.Kind.SALE, house.closeAuction("Auctioneer2", 2).kind);
+        }
+
+        // changes made after a restart are journaled too
+        try (Journal journal = new Journal(journalDirectory(), durability, 100)) {
+            AuctionHouseImp house = newHouse(journal, new CountingMessagingService(), new CountingBankingService());
+            assertEquals(LotStatus.SOLD, house.viewCatalogue().get(1).status);
+        }
+    }
+
+    @Test
+    public void testRestoresStateWithSync() throws Exception {
+        checkRestored(Journal.Durability.SYNC);
+    }
+
+    @Test
+    public void testRestoresStateWithGroupCommit() throws Exception {
+        checkRestored(Journal.Durability.GROUP_COMMIT);
+    }
+
+    @Test
+    public void testRestoresStateWithAsync() throws Exception {
+        checkRestored(Journal.Durability.ASYNC);
+    }
+
+    @Test
+    public void testKeepsPendingPayment() throws Exception {
+        try (Journal journal = new Journal(journalDirectory(), Journal.Durability.SYNC, 0)) {
+            MockBankingService bankingService = new MockBankingService();
+            bankingService.setBadAccount("BB A/C");
+            runStory(newHouse(journal, new CountingMessagingService(), bankingService));
+        }
+        try (Journal journal = new Journal(journalDirectory(), Journal.Durability.SYNC, 0)) {
+            AuctionHouseImp house = newHouse(journal, new CountingMessagingService(), new CountingBankingService());
+            assertEquals(LotStatus.SOLD_PENDING_PAYMENT, house.viewCatalogue().get(0).status);
+        }
+    }
+
+    @Test
+    public void testDiscardsTornRecord() throws Exception {
+        try (Journal journal = new Journal(journalDirectory(), Journal.Durability.SYNC, 0)) {
+            runStory(newHouse(journal, new CountingMessagingService(), new MockBankingService()));
+        }
+        Path file = filesIn(journalDirectory()).get(0);
+        long whole = Files.size(file);
+
+        // a crash part way through writing a record leaves a length with too few bytes after it
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[] { 0, 0, 0, 40, 1, 2, 3 }));
+        }
+
+        try (Journal journal = new Journal(journalDirectory(), Journal.Durability.SYNC, 0)) {
+            AuctionHouseImp house = newHouse(journal, new CountingMessagingService(), new MockBankingService());
+            assertEquals(whole, Files.size(file));
+            assertEquals(LotStatus.SOLD, house.viewCatalogue().get(0).status);
+            assertEquals(Status.Kind.OK, house.registerBuyer("BuyerC", "@BuyerC", "BC A/C", "BC-auth").kind);
+        }
+        try (Journal journal = new Journal(journalDirectory(), Journal.Durability.SYNC, 0)) {
+            AuctionHouseImp house = newHouse(journal, new CountingMessagingService(), new MockBankingService());
+            assertEquals(2, house.buyerId("BuyerC"));
+        }
+    }
+
+    @Test
+    public void testImportsLotsWithOneSyncABatch() throws Exception {
+        final int lots = 1000;
+        final int batchSize = 100;
+        StringBuilder file = new StringBuilder();
+        for (int n = 0; n < lots; n++) {
+            file.append("SellerY\t").append(n).append("\t1.00\tLot ").append(n).append('\n');
+        }
+        try (Journal journal = new Journal(journalDirectory(), Journal.Durability.SYNC, 0)) {
+            AuctionHouseImp house = newHouse(journal, new CountingMessagingService(), new CountingBankingService());
+            house.registerSeller("SellerY", "@SellerY", "SY A/C");
+            long syncsBefore = journal.getSyncCount();
+            LotImporter importer = new LotImporter(house, '\t', batchSize);
+            assertEquals(lots, importer.importLots(new StringReader(file.toString()), rejection -> {
+                throw new AssertionError(rejection.toString());
+            }));
+            assertEquals(lots / batchSize, journal.getSyncCount() - syncsBefore);
+        }
+        try (Journal journal = new Journal(journalDirectory(), Journal.Durability.SYNC, 0)) {
+            AuctionHouseImp house = newHouse(journal, new CountingMessagingService(), new CountingBankingService());
+            assertEquals(lots, house.countLots(LotStatus.UNSOLD));
+            assertEquals("Lot 999", house.viewCatalogue().get(lots - 1).description);
+        }
+    }
+
+    @Test
+    public void testGroupCommitSharesSyncs() throws Exception {
+        final int threads = 8;
+        final int bidsPerThread = 200;
+        try (Journal journal = new Journal(journalDirectory(), Journal.Durability.GROUP_COMMIT, 0)) {
+            final AuctionHouseImp house = newHouse(journal, new CountingMessagingService(), new CountingBankingService());
+            house.registerSeller("Seller", "@Seller", "S A/C");
+            for (int t = 0; t < threads; t++) {
+                house.registerBuyer("Buyer" + t, "@Buyer" + t, "B" + t + " A/C", "B" + t + "-auth");
+                house.addLot("Seller", t, "Lot " + t, new Money("1.00"));
+                house.noteInterest(t, t);
+                house.openAuction("Auctioneer", "@Auctioneer", t);
+            }
+            long syncsBefore = journal.getSyncCount();
+            long recordsBefore = journal.getRecordCount();
+            Thread[] bidders = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                bidders[t] = new Thread(() -> {
+                    for (int b = 1; b <= bidsPerThread; b++) {
+                        house.makeBid(thread, thread, Money.ofPence(b));
+                    }
+                });
+                bidders[t].start();
+            }
+            for (Thread bidder : bidders) {
+                bidder.join();
+            }
+            assertEquals(threads * bidsPerThread, journal.getRecordCount() - recordsBefore);
+            assertTrue(journal.getSyncCount() - syncsBefore < threads * bidsPerThread);
+        }
+        try (Journal journal = new Journal(journalDirectory(), Journal.Durability.GROUP_COMMIT, 0)) {
+            AuctionHouseImp house = newHouse(journal, new CountingMessagingService(), new CountingBankingService());
+            for (int t = 0; t < threads; t++) {
+                assertEquals(Status.Kind.ERROR, house.makeBid(t, t, Money.ofPence(bidsPerThread)).kind);
+            }
+        }
+    }
+
+    @Test
+    public void testRestoresFromSnapshotAndJournalTail() throws Exception {
+        try (Journal journal = new Journal(journalDirectory(), Journal.Durability.SYNC, 0)) {
+            AuctionHouseImp house = newHouse(journal, snapshotStore());
+            runStory(house);
+            house.takeSnapshot();
+            house.registerBuyer("BuyerC", "@BuyerC", "BC A/C", "BC-auth");
+            house.noteInterest("BuyerC", 2);
+            house.makeBid("BuyerC", 2, new Money("50.00"));
+            house.takeSnapshot();
+            house.makeBid("BuyerA", 2, new Money("60.00"));
+        }
+
+        // only the newest snapshot, and the journal since it, are kept
+        assertEquals(1, filesIn(directory.resolve("snapshots")).size());
+        assertEquals(1, filesIn(journalDirectory()).size());
+
+        try (Journal journal = new Journal(journalDirectory(), Journal.Durability.SYNC, 0)) {
+            AuctionHouseImp house = newHouse(journal, snapshotStore());
+            assertEquals(1, journal.getRecordCount());
+            assertEquals(2, house.buyerId("BuyerC"));
+            assertEquals(LotStatus.SOLD, house.viewCatalogue().get(0).status);
+            assertEquals(Status.Kind.ERROR, house.makeBid("BuyerC", 2, new Money("60.00")).kind);
+            assertEquals(Status.Kind.OK, house.makeBid("BuyerC", 2, new Money("70.00")).kind);
+            assertEquals(Status.Kind.SALE, house.closeAuction("Auctioneer2", 2).kind);
+        }
+    }
+
+    @Test
+    public void testSnapshotsWhileBidding() throws Exception {
+        final int threads = 4;
+        final int bidsPerThread = 500;
+        try (Journal journal = new Journal(journalDirectory(), Journal.Durability.GROUP_COMMIT, 0)) {
+            final AuctionHouseImp house = newHouse(journal, snapshotStore());
+            house.registerSeller("Seller", "@Seller", "S A/C");
+            for (int t = 0; t < threads; t++) {
+                house.registerBuyer("Buyer" + t, "@Buyer" + t, "B" + t + " A/C", "B" + t + "-auth");
+                house.addLot("Seller", t, "Lot " + t, new Money("1.00"));
+                house.noteInterest(t, t);
+                house.openAuction("Auctioneer", "@Auctioneer", t);
+            }
+            Thread[] bidders = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                bidders[t] = new Thread(() -> {
+                    for (int b = 1; b <= bidsPerThread; b++) {
+                        house.makeBid(thread, thread, Money.ofPence(b));
+                    }
+                });
+                bidders[t].start();
+            }
+            for (int s = 0; s < 5; s++) {
+                house.takeSnapshot();
+            }
+            for (Thread bidder : bidders) {
+                bidder.join();
+            }
+        }
+        try (Journal journal = new Journal(journalDirectory(), Journal.Durability.GROUP_COMMIT, 0)) {
+            AuctionHouseImp house = newHouse(journal, snapshotStore());
+            for (int t = 0; t < threads; t++) {
+                assertEquals(Status.Kind.ERROR, house.makeBid(t, t, Money.ofPence(bidsPerThread)).kind);
+                assertEquals(Status.Kind.OK, house.makeBid(t, t, Money.ofPence(bidsPerThread + 1)).kind);
+            }
+        }
+    }
+
+    @Test
+    public void testMapsSnapshotAndReadsLotsOnUse() throws Exception {
+        String[] objects = { "oak table", "brass lamp", "walnut desk" };
+        List<String> catalogue;
+        try (Journal journal = new Journal(journalDirectory(), Journal.Durability.SYNC, 0)) {
+            AuctionHouseImp house = newHouse(journal, snapshotStore());
+            house.registerSeller("Seller", "@Seller", "S A/C");
+            house.registerBuyer("BuyerA", "@BuyerA", "BA A/C", "BA-auth");
+            house.registerBuyer("BuyerB", "@BuyerB", "BB A/C", "BB-auth");
+            for (int n = 0; n < 30; n++) {
+                house.addLot("Seller", n, objects[n % objects.length] + " " + n, new Money("10.00"));
+            }
+            house.noteInterest("BuyerA", 4);
+            house.noteInterest("BuyerB", 4);
+            house.openAuction("Auctioneer", "@Auctioneer", 4);
+            house.makeBid("BuyerA", 4, new Money("20.00"));
+            house.openAuction("Auctioneer", "@Auctioneer", 7);
+            house.takeSnapshot();
+            house.makeBid("BuyerB", 4, new Money("30.00"));
+            catalogue = catalogueOf(house);
+        }
+
+        try (Journal journal = new Journal(journalDirectory(), Journal.Durability.SYNC, 0)) {
+            AuctionHouseImp house = newHouse(journal, mappedSnapshotStore());
+            assertEquals(28, house.countLots(LotStatus.UNSOLD));
+            assertEquals(2, house.countLots(LotStatus.IN_AUCTION));
+            CataloguePage page = house.viewCatalogue(4, 10, LotStatus.IN_AUCTION);
+            assertEquals(1, page.entries.size());
+            assertEquals(7, page.entries.get(0).lotNumber);
+            assertEquals(5, house.searchCatalogue("lamp", LotStatus.UNSOLD, 5).size());
+            assertEquals(Status.Kind.ERROR, house.makeBid("BuyerA", 4, new Money("30.00")).kind);
+            assertEquals(Status.Kind.OK, house.makeBid("BuyerA", 4, new Money("40.00")).kind);
+            assertEquals(Status.Kind.SALE, house.closeAuction("Auctioneer", 4).kind);
+            assertEquals(Status.Kind.OK, house.openAuction("Auctioneer", "@Auctioneer", 10).kind);
+            assertEquals(Status.Kind.ERROR, house.addLot("Seller", 12, "duplicate", new Money("1.00")).kind);
+            // lots never used are copied from the mapped snapshot into the next
+            house.takeSnapshot();
+            catalogue.set(4, "4 brass lamp 4 SOLD");
+            catalogue.set(10, "10 brass lamp 10 IN_AUCTION");
+            assertEquals(catalogue, catalogueOf(house));
+        }
+
+        try (Journal journal = new Journal(journalDirectory(), Journal.Durability.SYNC, 0)) {
+            AuctionHouseImp house = newHouse(journal, snapshotStore());
+            assertEquals(catalogue, catalogueOf(house));
+            assertEquals(Status.Kind.ERROR, house.makeBid("BuyerB", 7, new Money("0.00")).kind);
+            assertEquals(Status.Kind.OK, house.noteInterest("BuyerB", 10).kind);
+            assertEquals(Status.Kind.OK, house.makeBid("BuyerB", 10, new Money("5.00")).kind);
+        }
+    }
+
+    @Test
+    public void testArchivesSettledAndIdleLotsAndBringsThemBack() throws Exception {
+        String[] objects = { "oak table", "brass lamp", "walnut desk" };
+        List<String> catalogue;
+        try (Journal journal = new Journal(journalDirectory(), Journal.Durability.SYNC, 0);
+                LotArchive archive = new LotArchive(directory.resolve("archive"), 4, 2)) {
+            AuctionHouseImp house = newHouse(journal, snapshotStore());
+            house.archiveLots(archive);
+            house.registerSeller("Seller", "@Seller", "S A/C");
+            house.registerBuyer("BuyerA", "@BuyerA", "BA A/C", "BA-auth");
+            house.registerBuyer("BuyerB", "@BuyerB", "BB A/C", "BB-auth");
+            for (int n = 0; n < 30; n++) {
+                house.addLot("Seller", n, objects[n % objects.length] + " " + n, new Money("10.00"));
+            }
+            house.noteInterest("BuyerA", 4);
+            house.openAuction("Auctioneer", "@Auctioneer", 4);
+            house.makeBid("BuyerA", 4, new Money("20.00"));
+            house.closeAuction("Auctioneer", 4);
+            house.noteInterest("BuyerB", 5);
+            house.openAuction("Auctioneer", "@Auctioneer", 7);
+            catalogue = catalogueOf(house);
+
+            // every lot was used in the first pass; then the sold lot goes, then the unsold ones
+            assertEquals(0, house.evictLots());
+            assertEquals(1, house.evictLots());
+            assertEquals(28, house.evictLots());
+            assertEquals(29, archive.size());
+            assertEquals(28, house.countLots(LotStatus.UNSOLD));
+            assertEquals(1, house.countLots(LotStatus.SOLD));
+            assertEquals(catalogue, catalogueOf(house));
+            assertEquals(5, house.searchCatalogue("lamp", LotStatus.UNSOLD, 5).size());
+            assertEquals(29, archive.size());
+
+            assertEquals(Status.Kind.ERROR, house.openAuction("Auctioneer", "@Auctioneer", 4).kind);
+            assertEquals(Status.Kind.OK, house.openAuction("Auctioneer", "@Auctioneer", 5).kind);
+            assertEquals(Status.Kind.OK, house.makeBid("BuyerB", 5, new Money("15.00")).kind);
+            assertEquals(Status.Kind.OK, house.noteInterest("BuyerA", 10).kind);
+            assertEquals(Status.Kind.ERROR, house.addLot("Seller", 12, "duplicate", new Money("1.00")).kind);
+            assertEquals(26, archive.size());
+            assertEquals(2, house.countLots(LotStatus.IN_AUCTION));
+            assertEquals(30, house.viewCatalogue().size());
+            house.takeSnapshot();
+            catalogue = catalogueOf(house);
+        }
+
+        try (Journal journal = new Journal(journalDirectory(), Journal.Durability.SYNC, 0)) {
+            AuctionHouseImp house = newHouse(journal, snapshotStore());
+            assertEquals(catalogue, catalogueOf(house));
+            assertEquals(Status.Kind.SALE, house.closeAuction("Auctioneer", 5).kind);
+            assertEquals(Status.Kind.OK, house.openAuction("Auctioneer", "@Auctioneer", 10).kind);
+            assertEquals(Status.Kind.ERROR, house.makeBid("BuyerA", 10, new Money("0.00")).kind);
+        }
+    }
+
+}
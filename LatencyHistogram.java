@@ -0,0 +1,113 @@
+package auctionhouse;
+
+/**
+ * A histogram of latencies in nanoseconds, with buckets growing in width
+ * with the values they hold so that any latency, from nanoseconds to
+ * minutes, is kept to within about 3% in a fixed 15 KB. Other positive
+ * values, such as counts, are kept the same way.
+ *
+ * Values below 64 have a bucket each. Above that, each power of two is
+ * split into 32 buckets, so a bucket is at most 1/32 of its values wide.
+ * Percentiles are reported as the highest value of their bucket, so they
+ * are never understated.
+ *
+ * Not thread-safe: each thread records into its own histogram, and the
+ * histograms are added together afterwards.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BITS = 6;
+    private static final int HALF = 1 << (SUB_BITS - 1);
+    static final int BUCKETS = (64 - SUB_BITS + 1) * HALF + HALF;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long total;
+    private long max;
+
+    LatencyHistogram() {
+    }
+
+    /*
+     * A histogram of values counted elsewhere by bucket (see Metric).
+     */
+    LatencyHistogram(long[] counts, long total, long max) {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.counts[i] = counts[i];
+            this.count += counts[i];
+        }
+        this.total = total;
+        this.max = max;
+    }
+
+    static int bucket(long value) {
+        if (value < 2 * HALF) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    // the highest value that falls in bucket
+    private static long highest(int bucket) {
+        if (bucket < 2 * HALF) {
+            return bucket;
+        }
+        int shift = bucket / HALF - 1;
+        long top = bucket % HALF + HALF;
+        return ((top + 1) << shift) - 1;
+    }
+
+    /**
+     * @param nanos negative values are counted as zero
+     */
+    void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts[bucket(value)]++;
+        count++;
+        total += value;
+        max = Math.max(max, value);
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getMeanNanos() {
+        return count == 0 ? 0 : total / count;
+    }
+
+    long getMaxNanos() {
+        return max;
+    }
+
+    /**
+     * @param percentile from 0 to 100
+     * @return the latency that percentile of the values recorded are no
+     *         greater than, or 0 if none were
+     */
+    long getNanosAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highest(i), max);
+            }
+        }
+        return max;
+    }
+
+}
@@ -0,0 +1,326 @@
+package auctionhouse;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Replays a synthetic day of trading against an AuctionHouseImp and
+ * reports the throughput and latency percentiles of each operation, run
+ * from the command line:
+ *
+ *     java auctionhouse.LoadGenerator
+ *
+ * The day runs in phases: sellers and buyers register, lots are added,
+ * buyers note interest, every lot is opened, a trading period of bidding
+ * storms and catalogue browsing runs for a set time, and every lot is
+ * closed. Each phase is spread over the threads. Interest and bids follow
+ * a Zipf distribution over the lots, so a few hot lots draw most of the
+ * watchers and bids, and bids on them race each other. In the trading
+ * period 90% of operations are bids, by a buyer watching the lot, 6% view
+ * a page of the lots in auction and 4% search descriptions. The messaging
+ * and banking services only count calls.
+ *
+ * The load is a closed loop: each thread makes its next call as soon as
+ * the last returns, so latencies are those seen by a caller that is never
+ * kept waiting to start.
+ *
+ * The day is set with system properties, the defaults in brackets:
+ *
+ *     auctionhouse.sellers [1000]      auctionhouse.buyers [100000]
+ *     auctionhouse.lots [100000]       auctionhouse.interests [20] per buyer
+ *     auctionhouse.zipf [1.0] skew     auctionhouse.seconds [10] of trading
+ *     auctionhouse.threads [1,4,16]    a day is run for each thread count
+ *     auctionhouse.out [load.csv]      results, one line per operation a day
+ *
+ * Operations the house refuses, such as bids beaten by a racing bid, are
+ * timed like the others and counted as refused.
+ */
+public class LoadGenerator {
+
+    // held so that its level stays off for the whole run
+    private static final Logger LOGGER = Logger.getLogger("auctionhouse");
+
+    static enum Operation {
+        REGISTER_SELLER, REGISTER_BUYER, ADD_LOT, NOTE_INTEREST, OPEN_AUCTION,
+        MAKE_BID, VIEW_CATALOGUE, SEARCH_CATALOGUE, CLOSE_AUCTION
+    }
+
+    private static final String[] WORDS = {
+            "oak", "chair", "table", "painting", "clock", "vase", "lamp", "rug" };
+    private static final long INCREMENT_PENCE = 1000;
+
+    private final int sellers;
+    private final int buyers;
+    private final int lots;
+    private final int interests;
+    private final long tradingNanos;
+    private final int threads;
+    // the cumulative probability of each lot, by Zipf rank; lot n has rank n
+    private final double[] zipf;
+
+    private AuctionHouseImp house;
+    private int[] sellerIds;
+    private int[] buyerIds;
+    // the ids of the buyers watching each lot
+    private int[][] watchers;
+    // the last amount offered on each lot, raised by every bid
+    private AtomicLongArray offered;
+
+    private final LatencyHistogram[][] histograms;
+    private final long[][] refused;
+    private final long[] phaseNanos = new long[Operation.values().length];
+
+    LoadGenerator(int sellers, int buyers, int lots, int interests, double skew, long tradingNanos, int threads) {
+        this.sellers = sellers;
+        this.buyers = buyers;
+        this.lots = lots;
+        this.interests = interests;
+        this.tradingNanos = tradingNanos;
+        this.threads = threads;
+        this.zipf = new double[lots];
+        double sum = 0;
+        for (int n = 0; n < lots; n++) {
+            sum += 1 / Math.pow(n + 1, skew);
+            zipf[n] = sum;
+        }
+        for (int n = 0; n < lots; n++) {
+            zipf[n] /= sum;
+        }
+        this.histograms = new LatencyHistogram[threads][Operation.values().length];
+        this.refused = new long[threads][Operation.values().length];
+        for (int t = 0; t < threads; t++) {
+            for (Operation operation : Operation.values()) {
+                histograms[t][operation.ordinal()] = new LatencyHistogram();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0) {
+            System.err.println("Unrecognised arguments");
+            return;
+        }
+        LOGGER.setLevel(Level.OFF);
+
+        int sellers = Integer.getInteger("auctionhouse.sellers", 1000);
+        int buyers = Integer.getInteger("auctionhouse.buyers", 100000);
+        int lots = Integer.getInteger("auctionhouse.lots", 100000);
+        int interests = Integer.getInteger("auctionhouse.interests", 20);
+        double skew = Double.parseDouble(System.getProperty("auctionhouse.zipf", "1.0"));
+        long seconds = Long.getLong("auctionhouse.seconds", 10);
+        Path out = Paths.get(System.getProperty("auctionhouse.out", "load.csv"));
+
+        try (PrintWriter results = new PrintWriter(Files.newBufferedWriter(out, StandardCharsets.UTF_8))) {
+            results.println("threads,operation,count,refused,seconds,ops_per_s,mean_us,p50_us,p99_us,p99_9_us,max_us");
+            for (String threadCount : System.getProperty("auctionhouse.threads", "1,4,16").split(",")) {
+                int threads = Integer.parseInt(threadCount.trim());
+                System.out.println("LoadGenerator: " + sellers + " sellers, " + buyers + " buyers, " + lots
+                        + " lots, " + interests + " interests a buyer, zipf " + skew + ", "
+                        + seconds + " s trading, " + threads + " threads");
+                LoadGenerator day = new LoadGenerator(
+                        sellers, buyers, lots, interests, skew, seconds * 1000000000L, threads);
+                day.run();
+                day.report(results);
+            }
+        }
+        System.out.println("Results written to " + out);
+    }
+
+    interface ThreadPhase {
+        void run(int thread, SplittableRandom random);
+    }
+
+    /*
+     * Runs phase on every thread, each with a random generator of its own,
+     * and records its wall-clock time under operation.
+     */
+    private void phase(Operation operation, ThreadPhase phase) {
+        phaseNanos[operation.ordinal()] = AuctionHouseBenchmark.timeThreads(threads,
+                thread -> phase.run(thread, new SplittableRandom(31L * thread + operation.ordinal())));
+    }
+
+    /*
+     * Runs call, times it and counts it as refused if the house refused it.
+     */
+    private void time(int thread, Operation operation, StatusCall call) {
+        long begin = System.nanoTime();
+        Status status = call.call();
+        histograms[thread][operation.ordinal()].record(System.nanoTime() - begin);
+        if (status.kind == Status.Kind.ERROR) {
+            refused[thread][operation.ordinal()]++;
+        }
+    }
+
+    interface StatusCall {
+        Status call();
+    }
+
+    // a lot number drawn from the Zipf distribution
+    private int zipfLot(SplittableRandom random) {
+        int found = Arrays.binarySearch(zipf, random.nextDouble());
+        return Math.min(found >= 0 ? found : -found - 1, lots - 1);
+    }
+
+    void run() {
+        house = AuctionHouseBenchmark.newHouse(new CountingMessagingService(), new CountingBankingService());
+
+        phase(Operation.REGISTER_SELLER, (thread, random) -> {
+            for (int s = thread; s < sellers; s += threads) {
+                String name = "Seller" + s;
+                time(thread, Operation.REGISTER_SELLER,
+                        () -> house.registerSeller(name, "@" + name, name + " A/C"));
+            }
+        });
+        phase(Operation.REGISTER_BUYER, (thread, random) -> {
+            for (int b = thread; b < buyers; b += threads) {
+                String name = "Buyer" + b;
+                time(thread, Operation.REGISTER_BUYER,
+                        () -> house.registerBuyer(name, "@" + name, name + " A/C", name + "-auth"));
+            }
+        });
+        // ids are given out in the order the threads happened to register
+        sellerIds = new int[sellers];
+        for (int s = 0; s < sellers; s++) {
+            sellerIds[s] = house.sellerId("Seller" + s);
+        }
+        buyerIds = new int[buyers];
+        for (int b = 0; b < buyers; b++) {
+            buyerIds[b] = house.buyerId("Buyer" + b);
+        }
+
+        phase(Operation.ADD_LOT, (thread, random) -> {
+            for (int n = thread; n < lots; n += threads) {
+                int lot = n;
+                String description = WORDS[n % WORDS.length] + " " + WORDS[n / WORDS.length % WORDS.length] + " " + n;
+                Money reserve = Money.ofPence(5000 + random.nextInt(10000));
+                time(thread, Operation.ADD_LOT,
+                        () -> house.addLot(sellerIds[lot % sellers], lot, description, reserve));
+            }
+        });
+
+        // each thread's buyers pick their lots, each pick the lot above the
+        // buyer id, then the picks are gathered per lot
+        final long[][] picks = new long[threads][];
+        for (int t = 0; t < threads; t++) {
+            picks[t] = new long[(buyers - t + threads - 1) / threads * interests];
+        }
+        phase(Operation.NOTE_INTEREST, (thread, random) -> {
+            int picked = 0;
+            for (int b = thread; b < buyers; b += threads) {
+                int buyerId = buyerIds[b];
+                for (int i = 0; i < interests; i++) {
+                    int lot = zipfLot(random);
+                    time(thread, Operation.NOTE_INTEREST, () -> house.noteInterest(buyerId, lot));
+                    picks[thread][picked++] = (long) lot << 32 | buyerId;
+                }
+            }
+        });
+        int[] watcherCounts = new int[lots];
+        for (long[] threadPicks : picks) {
+            for (long pick : threadPicks) {
+                watcherCounts[(int) (pick >>> 32)]++;
+            }
+        }
+        watchers = new int[lots][];
+        for (int n = 0; n < lots; n++) {
+            watchers[n] = new int[watcherCounts[n]];
+        }
+        for (long[] threadPicks : picks) {
+            for (long pick : threadPicks) {
+                int lot = (int) (pick >>> 32);
+                watchers[lot][--watcherCounts[lot]] = (int) pick;
+            }
+        }
+
+        phase(Operation.OPEN_AUCTION, (thread, random) -> {
+            for (int n = thread; n < lots; n += threads) {
+                int lot = n;
+                time(thread, Operation.OPEN_AUCTION, () -> house.openAuction("Auctioneer", "@Auctioneer", lot));
+            }
+        });
+
+        offered = new AtomicLongArray(lots);
+        phase(Operation.MAKE_BID, (thread, random) -> {
+            long end = System.nanoTime() + tradingNanos;
+            while (System.nanoTime() < end) {
+                int lot = zipfLot(random);
+                int choice = random.nextInt(100);
+                if (choice < 90) {
+                    int[] watching = watchers[lot];
+                    if (watching.length == 0) {
+                        continue;
+                    }
+                    int buyerId = watching[random.nextInt(watching.length)];
+                    Money bid = Money.ofPence(offered.addAndGet(lot, INCREMENT_PENCE + random.nextInt((int) INCREMENT_PENCE)));
+                    time(thread, Operation.MAKE_BID, () -> house.makeBid(buyerId, lot, bid));
+                } else if (choice < 96) {
+                    int after = random.nextInt(lots) - 1;
+                    time(thread, Operation.VIEW_CATALOGUE, () -> {
+                        house.viewCatalogue(after, 50, LotStatus.IN_AUCTION);
+                        return Status.OK();
+                    });
+                } else {
+                    String word = WORDS[random.nextInt(WORDS.length)];
+                    time(thread, Operation.SEARCH_CATALOGUE, () -> {
+                        house.searchCatalogue(word, LotStatus.IN_AUCTION, 20);
+                        return Status.OK();
+                    });
+                }
+            }
+        });
+
+        phase(Operation.CLOSE_AUCTION, (thread, random) -> {
+            for (int n = thread; n < lots; n += threads) {
+                int lot = n;
+                time(thread, Operation.CLOSE_AUCTION, () -> house.closeAuction("Auctioneer", lot));
+            }
+        });
+    }
+
+    /*
+     * Prints a table of the day's operations, and writes a line for each to
+     * results. Throughput is over the phase an operation ran in, so the
+     * operations of the trading period share its time.
+     */
+    void report(PrintWriter results) {
+        System.out.printf("%-17s %10s %9s %10s %9s %9s %9s %9s%n",
+                "operation", "count", "refused", "ops/s", "p50 us", "p99 us", "p99.9 us", "max us");
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            long refusals = 0;
+            for (int t = 0; t < threads; t++) {
+                histogram.add(histograms[t][operation.ordinal()]);
+                refusals += refused[t][operation.ordinal()];
+            }
+            long count = histogram.getCount();
+            Operation phase = isTrading(operation) ? Operation.MAKE_BID : operation;
+            double seconds = phaseNanos[phase.ordinal()] / 1e9;
+            double opsPerSecond = seconds == 0 ? 0 : count / seconds;
+            System.out.printf("%-17s %10d %9d %10.0f %9.1f %9.1f %9.1f %9.1f%n",
+                    operation, count, refusals, opsPerSecond,
+                    histogram.getNanosAtPercentile(50) / 1e3, histogram.getNanosAtPercentile(99) / 1e3,
+                    histogram.getNanosAtPercentile(99.9) / 1e3, histogram.getMaxNanos() / 1e3);
+            results.printf("%d,%s,%d,%d,%.3f,%.1f,%.3f,%.3f,%.3f,%.3f,%.3f%n",
+                    threads, operation, count, refusals, seconds, opsPerSecond,
+                    histogram.getMeanNanos() / 1e3,
+                    histogram.getNanosAtPercentile(50) / 1e3, histogram.getNanosAtPercentile(99) / 1e3,
+                    histogram.getNanosAtPercentile(99.9) / 1e3, histogram.getMaxNanos() / 1e3);
+        }
+        results.flush();
+    }
+
+    private static boolean isTrading(Operation operation) {
+        return operation == Operation.MAKE_BID || operation == Operation.VIEW_CATALOGUE
+                || operation == Operation.SEARCH_CATALOGUE;
+    }
+
+}
@@ -1,27 +1,70 @@
 package auctionhouse;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
-public class Lot extends CatalogueEntry {
+public class Lot {
     
-    private String sellerName;
+    /**
+     * Immutable snapshot of the parts of a lot that change while it is
+     * auctioned. Bids and status transitions replace the whole snapshot
+     * with compare-and-set, so a reader never sees a bid paired with the
+     * wrong bidder or a bid accepted after the auction was closed.
+     */
+    public static final class BidState {
+        // the state of every new lot, shared since it is immutable
+        static final BidState UNSOLD = new BidState(LotStatus.UNSOLD, Money.ZERO, UserTable.NO_ID);
+        
+        public final LotStatus status;
+        public final Money highestBid;
+        // UserTable.NO_ID until the first bid
+        public final int highestBidderId;
+        
+        BidState(LotStatus status, Money highestBid, int highestBidderId) {
+            this.status = status;
+            this.highestBid = highestBid;
+            this.highestBidderId = highestBidderId;
+        }
+        
+        BidState withStatus(LotStatus newStatus) {
+            return new BidState(newStatus, highestBid, highestBidderId);
+        }
+        
+        BidState withBid(Money bid, int bidderId) {
+            return new BidState(status, bid, bidderId);
+        }
+    }
+    
+    // updated in place rather than through an AtomicReference, saving an object per lot
+    private static final AtomicReferenceFieldUpdater<Lot, BidState> BID_STATE =
+            AtomicReferenceFieldUpdater.newUpdater(Lot.class, BidState.class, "bidState");
+    
+    public final int lotNumber;
+    public final String description;
+    private final int sellerId;
     private Money reservePrice;
-    private List<Buyer> interestedBuyers;
-    private Buyer highestBidder;
-    private Money highestBid;
-    private Auctioneer auctioneer;
-    
-    public Lot(String sellerName, int lotNumber, String description, Money reservePrice, LotStatus status) {
-        super(lotNumber, description, status);
-        this.sellerName = sellerName;
+    private InterestSet interestedBuyers;
+    private volatile BidState bidState;
+    private volatile Auctioneer auctioneer;
+    // set by the LotStore that holds this lot, under the lot's monitor
+    private LotStatusIndex statusIndex;
+    // the LotStore eviction pass in which the lot was last used; races are harmless
+    private int lastUsed;
+    // set under the lot's monitor once the store has moved the lot to its archive
+    private boolean evicted;
+    
+    public Lot(int sellerId, int lotNumber, String description, Money reservePrice, LotStatus status) {
+        this.lotNumber = lotNumber;
+        this.description = description;
+        this.sellerId = sellerId;
         this.reservePrice = reservePrice;
-        this.interestedBuyers = new ArrayList<Buyer>();
-        this.highestBid = new Money("0");
+        this.interestedBuyers = new InterestSet();
+        this.bidState = status == LotStatus.UNSOLD
+                ? BidState.UNSOLD
+                : new BidState(status, Money.ZERO, UserTable.NO_ID);
     }
     
-    public String getSellerName() {
-        return sellerName;
+    public int getSellerId() {
+        return sellerId;
     }
     
     public int getLotNumber() {
@@ -29,51 +72,186 @@ public class Lot extends CatalogueEntry {
     }
     
     public LotStatus getLotStatus() {
-        return status;
+        return bidState.status;
+    }
+    
+    /**
+     * @return the lot's catalogue entry, as it stands now
+     */
+    public CatalogueEntry entry() {
+        return new CatalogueEntry(lotNumber, description, bidState.status);
+    }
+    
+    public BidState getBidState() {
+        return bidState;
+    }
+    
+    /**
+     * Replaces the bid state if it is still expected.
+     * 
+     * Bids never change the status, and status changes are made while
+     * holding the lot's monitor, so updates of the bid state and of the
+     * status index cannot overtake each other. The lot is entered under its
+     * new status before the change and removed from the old one after it,
+     * so it is never missing from the index.
+     * 
+     * @return true if the state was replaced
+     */
+    public boolean compareAndSetBidState(BidState expected, BidState update) {
+        if (update.status == expected.status) {
+            return BID_STATE.compareAndSet(this, expected, update);
+        }
+        LotStatusIndex index = statusIndex;
+        if (index != null) {
+            index.enter(this, update.status);
+        }
+        if (!BID_STATE.compareAndSet(this, expected, update)) {
+            // a bid got in first; the caller retries
+            if (index != null) {
+                index.leave(this, update.status);
+            }
+            return false;
+        }
+        if (index != null) {
+            index.leave(this, expected.status);
+        }
+        return true;
+    }
+    
+    // caller holds the lot's monitor
+    void indexIn(LotStatusIndex index) {
+        statusIndex = index;
+        index.enter(this, bidState.status);
+    }
+
+    /*
+     * Leaves the status index for good, as the lot has been archived and
+     * this object is no longer the lot's state. The caller holds the lot's
+     * monitor.
+     */
+    void evict() {
+        if (statusIndex != null) {
+            statusIndex.leave(this, bidState.status);
+            statusIndex = null;
+        }
+        evicted = true;
+    }
+
+    /**
+     * Changes made through an evicted lot would be lost, so a caller about
+     * to change a lot checks this under the lot's monitor, and if it is
+     * set, fetches the lot again from its store.
+     */
+    public boolean isEvicted() {
+        return evicted;
+    }
+
+    void used(int pass) {
+        if (lastUsed != pass) {
+            lastUsed = pass;
+        }
+    }
+
+    int lastUsed() {
+        return lastUsed;
+    }
+    
+    /**
+     * Moves the lot from one status to another, leaving the bid untouched.
+     * Like the setters below, the caller must hold the lot's monitor.
+     * 
+     * @return true if the lot was in status from
+     */
+    public boolean transition(LotStatus from, LotStatus to) {
+        BidState current;
+        do {
+            current = bidState;
+            if (current.status != from) {
+                return false;
+            }
+        } while (!compareAndSetBidState(current, current.withStatus(to)));
+        return true;
+    }
+    
+    /**
+     * Accepts bid as the new highest bid if the lot is in auction and bid
+     * beats the current highest bid. Never blocks: a losing bid fails on
+     * its first comparison, and a retry only happens when another bid was
+     * accepted in between, which can only raise the bar.
+     * 
+     * @return null if the bid was accepted, otherwise the state that
+     *         refused it
+     */
+    public BidState placeBid(int bidderId, Money bid) {
+        for (;;) {
+            BidState current = bidState;
+            if (current.status != LotStatus.IN_AUCTION
+                    || Money.compare(bid.getPence(), current.highestBid.getPence()) <= 0) {
+                return current;
+            }
+            if (compareAndSetBidState(current, current.withBid(bid, bidderId))) {
+                return null;
+            }
+        }
     }
     
     public void setInAuction() {
-        status = LotStatus.IN_AUCTION;
+        setStatus(LotStatus.IN_AUCTION);
     }
     
     public void setSold() {
-        status = LotStatus.SOLD;
+        setStatus(LotStatus.SOLD);
     }
     
     public void setUnsold() {
-        status = LotStatus.UNSOLD;
+        setStatus(LotStatus.UNSOLD);
     }
     
     public void setPendingPayment() {
-        status = LotStatus.SOLD_PENDING_PAYMENT;
+        setStatus(LotStatus.SOLD_PENDING_PAYMENT);
     }
     
-    public Money getReservePrice() {
-        return reservePrice;
+    private void setStatus(LotStatus newStatus) {
+        BidState current;
+        do {
+            current = bidState;
+        } while (!compareAndSetBidState(current, current.withStatus(newStatus)));
     }
-    
-    public void addBuyer(Buyer interestedBuyer) {
-        interestedBuyers.add(interestedBuyer);
+
+    /*
+     * Replaces the status, highest bid and highest bidder together, as
+     * recorded when the lot was last changed. Used to restore lots after
+     * a restart; the caller must hold the lot's monitor.
+     */
+    void restore(LotStatus newStatus, Money highestBid, int highestBidderId) {
+        BidState restored = new BidState(newStatus, highestBid, highestBidderId);
+        BidState current;
+        do {
+            current = bidState;
+        } while (!compareAndSetBidState(current, restored));
     }
     
-    public void setHighestBidder(Buyer highestBidder) {
-        this.highestBidder = highestBidder;
+    public Money getReservePrice() {
+        return reservePrice;
     }
     
-    public List<Buyer> getInterestedBuyers(){
-        return interestedBuyers;
+    /**
+     * @return true if the buyer had not already noted interest
+     */
+    public boolean addBuyer(int buyerId, String address) {
+        return interestedBuyers.add(buyerId, address);
     }
     
-    public void setHighestBid(Money highestBid) {
-        this.highestBid = highestBid;
+    public InterestSet getInterestedBuyers(){
+        return interestedBuyers;
     }
     
     public Money getHighestBid() {
-        return highestBid;
+        return bidState.highestBid;
     }
 
-    public Buyer getHighestBidder() {
-        return highestBidder;
+    public int getHighestBidderId() {
+        return bidState.highestBidderId;
     }
 
     public Auctioneer getAuctioneer() {
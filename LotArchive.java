@@ -0,0 +1,432 @@
+package auctionhouse;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Lots moved out of the heap once they are settled or idle (see
+ * LotStore.evict), so that the heap holds the live lots rather than the
+ * whole history of the house.
+ *
+ * Lots are appended to segment files as LotRecords, gathered into blocks
+ * of about BLOCK_SIZE bytes that are each deflated on their own. Only the
+ * index is kept in the heap: the number, location and status of each lot,
+ * in lot number order, in flat arrays of about 13 bytes a lot. Recently
+ * read blocks are kept in an LRU cache, so reading the lots near one just
+ * read, which were archived together, costs no further disk reads.
+ *
+ * A lot brought back into the heap is marked removed in the index, and its
+ * record becomes garbage; segments are never rewritten. The archive only
+ * relieves the heap: the state of the house is made durable by its journal
+ * and snapshots, so segments left by an earlier run are deleted when an
+ * archive is opened, and all of them when it is closed.
+ *
+ * Appends are serialized. Reads take no lock other than the cache's, and
+ * use whichever index was current when they started.
+ */
+public class LotArchive implements Closeable {
+    private static Logger logger = Logger.getLogger("auctionhouse");
+
+    private static final String PREFIX = "archive-";
+    private static final String SUFFIX = ".seg";
+    // raw bytes after which a block is closed, so a record never starts past 64K
+    private static final int BLOCK_SIZE = 32 * 1024;
+    // bytes after which a new segment is started
+    private static final long SEGMENT_SIZE = 1L << 30;
+    // each block starts with the lengths of its deflated and raw bytes
+    private static final int BLOCK_HEADER = 8;
+
+    /*
+     * A location packs the segment number into the top 16 bits, the offset
+     * of the block in the segment into the next 32, and the offset of the
+     * record in the raw block into the bottom 16.
+     */
+    private static long location(int segment, long blockOffset, int recordOffset) {
+        return (long) segment << 48 | blockOffset << 16 | recordOffset;
+    }
+
+    /**
+     * The lots in the archive at one time, in lot number order. Immutable
+     * apart from the removed marks.
+     */
+    static final class Index {
+        static final Index EMPTY = new Index(0, new int[0], new long[0], new byte[0]);
+
+        final int size;
+        private final int[] numbers;
+        private final long[] locations;
+        private final byte[] statuses;
+        private final AtomicLongArray removed;
+
+        Index(int size, int[] numbers, long[] locations, byte[] statuses) {
+            this.size = size;
+            this.numbers = numbers;
+            this.locations = locations;
+            this.statuses = statuses;
+            this.removed = new AtomicLongArray((size + 63) >>> 6);
+        }
+
+        int lotNumber(int position) {
+            return numbers[position];
+        }
+
+        /**
+         * @return the status the lot was archived in
+         */
+        LotStatus status(int position) {
+            return LotStatus.values()[statuses[position]];
+        }
+
+        /**
+         * @return the position of the lot with this number, or a negative
+         *         number if there is none
+         */
+        int find(int lotNumber) {
+            return Arrays.binarySearch(numbers, 0, size, lotNumber);
+        }
+
+        /**
+         * @return the position of the first lot numbered above
+         *         afterLotNumber, or size if there is none
+         */
+        int firstAfter(long afterLotNumber) {
+            if (afterLotNumber < Integer.MIN_VALUE) {
+                return 0;
+            }
+            int at = find((int) afterLotNumber);
+            return at >= 0 ? at + 1 : -at - 1;
+        }
+
+        /**
+         * @return true if the lot has been brought back into the heap, or
+         *         archived again at another position
+         */
+        boolean isRemoved(int position) {
+            return (removed.get(position >>> 6) & (1L << position)) != 0;
+        }
+
+        // caller holds the archive's monitor
+        private boolean remove(int position) {
+            if (isRemoved(position)) {
+                return false;
+            }
+            long word;
+            do {
+                word = removed.get(position >>> 6);
+            } while (!removed.compareAndSet(position >>> 6, word, word | 1L << position));
+            return true;
+        }
+    }
+
+    private final Path directory;
+    private final int idlePasses;
+    private final List<FileChannel> segments = new CopyOnWriteArrayList<FileChannel>();
+    // the end of the last segment, where the next block is written
+    private long segmentEnd;
+    private volatile Index index = Index.EMPTY;
+    // indexed by LotStatus.ordinal(), not counting removed lots
+    private final AtomicIntegerArray counts = new AtomicIntegerArray(LotStatus.values().length);
+    // raw blocks by their location, with a record offset of 0
+    private final Map<Long, ByteBuffer> cache;
+    // guarded by cache
+    private long blockReads;
+
+    /**
+     * @param directory where segments are written
+     * @param cachedBlocks how many recently read blocks to keep
+     * @param idlePasses how many eviction passes an UNSOLD lot must go
+     *        unused before it is archived
+     */
+    public LotArchive(Path directory, final int cachedBlocks, int idlePasses) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.idlePasses = idlePasses;
+        this.cache = new LinkedHashMap<Long, ByteBuffer>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, ByteBuffer> eldest) {
+                return size() > cachedBlocks;
+            }
+        };
+        deleteSegments();
+    }
+
+    private void deleteSegments() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    int idlePasses() {
+        return idlePasses;
+    }
+
+    Index index() {
+        return index;
+    }
+
+    /**
+     * @return the number of lots in the archive
+     */
+    public int size() {
+        int total = 0;
+        for (int s = 0; s < counts.length(); s++) {
+            total += counts.get(s);
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of lots in the archive with this status
+     */
+    public int count(LotStatus status) {
+        return counts.get(status.ordinal());
+    }
+
+    /**
+     * @return the number of blocks read from disk, rather than the cache
+     */
+    public long getBlockReads() {
+        synchronized (cache) {
+            return blockReads;
+        }
+    }
+
+    /*
+     * Appends the records of count lots, in ascending lot number order,
+     * then publishes them in a new index. A lot already in the archive is
+     * replaced.
+     */
+    synchronized void append(int count, int[] lotNumbers, byte[][] records) throws IOException {
+        long[] locations = new long[count];
+        byte[] statuses = new byte[count];
+        ByteBuffer block = ByteBuffer.allocate(2 * BLOCK_SIZE);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            for (int i = 0; i < count; i++) {
+                byte[] record = records[i];
+                if (block.position() >= BLOCK_SIZE) {
+                    writeBlock(block, deflater);
+                }
+                if (block.remaining() < 4 + record.length) {
+                    block = ByteBuffer.allocate(block.position() + 4 + record.length).put(block.flip());
+                }
+                // a block is never split between segments
+                if (block.position() == 0 && (segments.isEmpty() || segmentEnd >= SEGMENT_SIZE)) {
+                    newSegment();
+                }
+                locations[i] = location(segments.size() - 1, segmentEnd, block.position());
+                statuses[i] = (byte) LotRecord.status(ByteBuffer.wrap(record), 0).ordinal();
+                block.putInt(record.length).put(record);
+            }
+            if (block.position() > 0) {
+                writeBlock(block, deflater);
+            }
+        } finally {
+            deflater.end();
+        }
+        publish(count, lotNumbers, locations, statuses);
+    }
+
+    private void newSegment() throws IOException {
+        Path file = directory.resolve(String.format("%s%08d%s", PREFIX, segments.size(), SUFFIX));
+        segments.add(FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE));
+        segmentEnd = 0;
+    }
+
+    private void writeBlock(ByteBuffer block, Deflater deflater) throws IOException {
+        block.flip();
+        int rawLength = block.remaining();
+        deflater.reset();
+        deflater.setInput(block.array(), 0, rawLength);
+        deflater.finish();
+        byte[] deflated = new byte[BLOCK_HEADER + rawLength + rawLength / 100 + 64];
+        int length = BLOCK_HEADER;
+        while (!deflater.finished()) {
+            if (length == deflated.length) {
+                deflated = Arrays.copyOf(deflated, 2 * deflated.length);
+            }
+            length += deflater.deflate(deflated, length, deflated.length - length);
+        }
+        ByteBuffer out = ByteBuffer.wrap(deflated, 0, length);
+        out.putInt(0, length - BLOCK_HEADER).putInt(4, rawLength);
+        FileChannel segment = segments.get(segments.size() - 1);
+        while (out.hasRemaining()) {
+            segmentEnd += segment.write(out, segmentEnd);
+        }
+        block.clear();
+    }
+
+    // caller holds this archive's monitor
+    private void publish(int count, int[] lotNumbers, long[] locations, byte[] statuses) {
+        Index current = index;
+        int capacity = current.size + count;
+        int[] mergedNumbers = new int[capacity];
+        long[] mergedLocations = new long[capacity];
+        byte[] mergedStatuses = new byte[capacity];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < current.size || j < count) {
+            if (i < current.size && current.isRemoved(i)) {
+                i++;
+            } else if (j == count || (i < current.size && current.numbers[i] < lotNumbers[j])) {
+                mergedNumbers[size] = current.numbers[i];
+                mergedLocations[size] = current.locations[i];
+                mergedStatuses[size++] = current.statuses[i++];
+            } else {
+                if (i < current.size && current.numbers[i] == lotNumbers[j]) {
+                    // archived again, so the older record is garbage
+                    i++;
+                }
+                mergedNumbers[size] = lotNumbers[j];
+                mergedLocations[size] = locations[j];
+                mergedStatuses[size++] = statuses[j++];
+            }
+        }
+        int[] statusCounts = new int[counts.length()];
+        for (int k = 0; k < size; k++) {
+            statusCounts[mergedStatuses[k]]++;
+        }
+        index = new Index(size, mergedNumbers, mergedLocations, mergedStatuses);
+        for (int s = 0; s < statusCounts.length; s++) {
+            counts.set(s, statusCounts[s]);
+        }
+    }
+
+    /*
+     * Marks the lot with this number removed, as it is back in the heap.
+     */
+    synchronized void remove(int lotNumber) {
+        Index current = index;
+        int position = current.find(lotNumber);
+        if (position >= 0 && current.remove(position)) {
+            counts.decrementAndGet(current.statuses[position]);
+        }
+    }
+
+    /**
+     * @return true if the archive holds a lot with this number, even one
+     *         since brought back into the heap
+     */
+    boolean contains(int lotNumber) {
+        return index.find(lotNumber) >= 0;
+    }
+
+    /**
+     * @return the lot at position in index as it was archived, from its
+     *         leading marker byte to its end
+     * @throws UncheckedIOException if the archive could not be read
+     */
+    ByteBuffer record(Index in, int position) {
+        long location = in.locations[position];
+        ByteBuffer block = block(location & ~0xFFFFL);
+        ByteBuffer record = block.duplicate();
+        int offset = (int) (location & 0xFFFF);
+        record.position(offset + 4);
+        record.limit(offset + 4 + block.getInt(offset));
+        return record;
+    }
+
+    /**
+     * Reads the lot with this number, unless it is not archived or has
+     * been removed, into a new Lot that is not in any store.
+     *
+     * @throws UncheckedIOException if the archive could not be read
+     */
+    Lot read(int lotNumber, UserTable<Buyer> buyers) {
+        Index current = index;
+        int position = current.find(lotNumber);
+        if (position < 0 || current.isRemoved(position)) {
+            return null;
+        }
+        return LotRecord.decode(record(current, position), buyers);
+    }
+
+    private ByteBuffer block(long blockLocation) {
+        synchronized (cache) {
+            ByteBuffer cached = cache.get(blockLocation);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        ByteBuffer block;
+        try {
+            block = readBlock(blockLocation);
+        } catch (IOException e) {
+            throw new UncheckedIOException("The lot archive could not be read", e);
+        }
+        synchronized (cache) {
+            blockReads++;
+            cache.put(blockLocation, block);
+        }
+        return block;
+    }
+
+    private ByteBuffer readBlock(long blockLocation) throws IOException {
+        FileChannel segment = segments.get((int) (blockLocation >>> 48));
+        long offset = (blockLocation >>> 16) & 0xFFFFFFFFL;
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER);
+        readFully(segment, header, offset);
+        byte[] deflated = new byte[header.getInt(0)];
+        readFully(segment, ByteBuffer.wrap(deflated), offset + BLOCK_HEADER);
+        byte[] raw = new byte[header.getInt(4)];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            int length = 0;
+            while (length < raw.length && !inflater.finished()) {
+                length += inflater.inflate(raw, length, raw.length - length);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Lot archive block at " + offset + " is damaged", e);
+        } finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(raw).asReadOnlyBuffer();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Lot archive ends unexpectedly");
+            }
+        }
+    }
+
+    /**
+     * Closes and deletes the segments. The lots in the archive can no
+     * longer be read.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        for (FileChannel segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+        deleteSegments();
+        logger.info("Closed lot archive");
+    }
+
+}
@@ -0,0 +1,183 @@
+package auctionhouse;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Adds a consignment of lots to a house from a delimited text file, one
+ * lot a line:
+ *
+ *     sellerName,lotNumber,reservePrice,description
+ *
+ * The description is the rest of the line, so it may hold the delimiter.
+ * Blank lines are skipped.
+ *
+ * The file is read a line at a time and lots are added a batch at a time,
+ * so memory stays bounded by the batch size however long the file is.
+ * Each seller is looked up once per import, and a batch waits once for
+ * the journal rather than once a lot (see AuctionHouseImp.addLots). Each
+ * lot is added as addLot would add it, and a line that addLot would refuse
+ * is passed to the caller with the reason, in the words of addLot's error.
+ */
+public class LotImporter {
+    private static Logger logger = Logger.getLogger("auctionhouse");
+
+    /**
+     * A line that was not imported, and why.
+     */
+    public static final class Rejection {
+        /** numbered from 1 */
+        public final long lineNumber;
+        public final String line;
+        public final String reason;
+
+        Rejection(long lineNumber, String line, String reason) {
+            this.lineNumber = lineNumber;
+            this.line = line;
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return "line " + lineNumber + ": " + reason;
+        }
+    }
+
+    private final AuctionHouseImp house;
+    private final char delimiter;
+    private final int batchSize;
+
+    public LotImporter(AuctionHouseImp house, char delimiter, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        this.house = house;
+        this.delimiter = delimiter;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Imports the lots of a UTF-8 file.
+     *
+     * @see #importLots(Reader, Consumer)
+     */
+    public long importLots(Path file, Consumer<Rejection> rejected) throws IOException {
+        try (Reader source = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return importLots(source, rejected);
+        }
+    }
+
+    /**
+     * Imports the lots read from source, up to its end. Lots in batches
+     * already added stay added if reading fails.
+     *
+     * @param rejected given each line that is not imported
+     * @return the number of lots added
+     */
+    public long importLots(Reader source, Consumer<Rejection> rejected) throws IOException {
+        BufferedReader in = source instanceof BufferedReader
+                ? (BufferedReader) source : new BufferedReader(source);
+        // registered sellers only, so that one registered during the import is found
+        Map<String, Integer> sellerIds = new HashMap<String, Integer>();
+        List<Lot> batch = new ArrayList<Lot>(batchSize);
+        long[] lineNumbers = new long[batchSize];
+        String[] lines = new String[batchSize];
+        long lineNumber = 0;
+        long imported = 0;
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            Lot lot = parse(line, lineNumber, sellerIds, rejected);
+            if (lot == null) {
+                continue;
+            }
+            lineNumbers[batch.size()] = lineNumber;
+            lines[batch.size()] = line;
+            batch.add(lot);
+            if (batch.size() == batchSize) {
+                imported += add(batch, lineNumbers, lines, rejected);
+            }
+        }
+        imported += add(batch, lineNumbers, lines, rejected);
+        logger.info("Imported " + imported + " lots from " + lineNumber + " lines");
+        return imported;
+    }
+
+    /*
+     * @return the lot a line describes, or null if addLot would refuse it,
+     *         when it has been rejected
+     */
+    private Lot parse(String line, long lineNumber, Map<String, Integer> sellerIds, Consumer<Rejection> rejected) {
+        int numberAt = line.indexOf(delimiter);
+        int reserveAt = numberAt < 0 ? -1 : line.indexOf(delimiter, numberAt + 1);
+        int descriptionAt = reserveAt < 0 ? -1 : line.indexOf(delimiter, reserveAt + 1);
+        if (descriptionAt < 0) {
+            rejected.accept(new Rejection(lineNumber, line,
+                    "This line does not have a seller, lot number, reserve price and description"));
+            return null;
+        }
+        String sellerName = line.substring(0, numberAt).trim();
+        Integer sellerId = sellerIds.get(sellerName);
+        if (sellerId == null) {
+            int id = house.sellerId(sellerName);
+            if (id < 0) {
+                rejected.accept(new Rejection(lineNumber, line, "This seller has not been registered"));
+                return null;
+            }
+            sellerId = id;
+            sellerIds.put(sellerName, sellerId);
+        }
+        int lotNumber;
+        try {
+            lotNumber = Integer.parseInt(line.substring(numberAt + 1, reserveAt).trim());
+        } catch (NumberFormatException e) {
+            rejected.accept(new Rejection(lineNumber, line, "This lot number is not a number"));
+            return null;
+        }
+        Money reservePrice;
+        try {
+            reservePrice = new Money(line.substring(reserveAt + 1, descriptionAt).trim());
+        } catch (NumberFormatException e) {
+            rejected.accept(new Rejection(lineNumber, line, "This reserve price is not an amount of money"));
+            return null;
+        }
+        return new Lot(sellerId, lotNumber, line.substring(descriptionAt + 1), reservePrice, LotStatus.UNSOLD);
+    }
+
+    /*
+     * Adds a batch and clears it, rejecting the lines of lots whose numbers
+     * were already taken.
+     *
+     * @return the number of lots added
+     */
+    private int add(List<Lot> batch, long[] lineNumbers, String[] lines, Consumer<Rejection> rejected) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        boolean[] added = house.addLots(batch);
+        int count = 0;
+        for (int i = 0; i < added.length; i++) {
+            if (added[i]) {
+                count++;
+            } else {
+                rejected.accept(new Rejection(lineNumbers[i], lines[i], "This lot has already been registered"));
+            }
+            lines[i] = null;
+        }
+        batch.clear();
+        return count;
+    }
+
+}
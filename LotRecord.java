@@ -0,0 +1,111 @@
+package auctionhouse;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary form of a lot, as held in snapshots (see SnapshotStore) and
+ * in the lot archive (see LotArchive).
+ *
+ * A record is a marker byte of 1, the lot number, seller id, description
+ * and reserve price in pence, then the bid state: status ordinal, highest
+ * bid in pence and highest bidder id. A flag byte follows, with the
+ * auctioneer's name and address if it is 1, then the count and ids of the
+ * interested buyers. Ints and longs are big-endian and strings are an int
+ * length followed by UTF-8 bytes.
+ */
+final class LotRecord {
+
+    // from the marker to the description
+    private static final int DESCRIPTION_OFFSET = 1 + 4 + 4;
+
+    private LotRecord() {
+    }
+
+    /**
+     * Encodes lot as it is now. The status is read before the auctioneer,
+     * which is set before a lot opens, so an open lot is never written
+     * without one.
+     */
+    static byte[] encode(Lot lot) {
+        Lot.BidState state = lot.getBidState();
+        Auctioneer auctioneer = lot.getAuctioneer();
+        int[] interested = lot.getInterestedBuyers().copyIds();
+        byte[] description = lot.description.getBytes(StandardCharsets.UTF_8);
+        byte[] name = auctioneer == null ? null : auctioneer.getName().getBytes(StandardCharsets.UTF_8);
+        byte[] address = auctioneer == null ? null : auctioneer.getAddress().getBytes(StandardCharsets.UTF_8);
+        int size = DESCRIPTION_OFFSET + 4 + description.length + 8 + 1 + 8 + 4 + 1
+                + (auctioneer == null ? 0 : 4 + name.length + 4 + address.length)
+                + 4 + 4 * interested.length;
+        ByteBuffer record = ByteBuffer.allocate(size);
+        record.put((byte) 1).putInt(lot.getLotNumber()).putInt(lot.getSellerId());
+        record.putInt(description.length).put(description);
+        record.putLong(lot.getReservePrice().getPence())
+                .put((byte) state.status.ordinal())
+                .putLong(state.highestBid.getPence())
+                .putInt(state.highestBidderId)
+                .put((byte) (auctioneer == null ? 0 : 1));
+        if (auctioneer != null) {
+            record.putInt(name.length).put(name);
+            record.putInt(address.length).put(address);
+        }
+        record.putInt(interested.length);
+        for (int buyerId : interested) {
+            record.putInt(buyerId);
+        }
+        return record.array();
+    }
+
+    /**
+     * Decodes the record at in's position into a new Lot, not yet in any
+     * store, leaving in after the record.
+     *
+     * @param buyers the buyers the interested buyer ids refer to
+     */
+    static Lot decode(ByteBuffer in, UserTable<Buyer> buyers) {
+        in.get();
+        int number = in.getInt();
+        int sellerId = in.getInt();
+        String description = CommandCodec.getString(in);
+        Money reservePrice = Money.ofPence(in.getLong());
+        LotStatus status = CommandCodec.getStatus(in);
+        long highestBid = in.getLong();
+        int highestBidderId = in.getInt();
+        boolean opened = in.get() != 0;
+        Lot lot = new Lot(sellerId, number, description, reservePrice, LotStatus.UNSOLD);
+        synchronized (lot) {
+            if (opened) {
+                String name = CommandCodec.getString(in);
+                lot.setAuctioneer(new Auctioneer(name, CommandCodec.getString(in)));
+            }
+            // most lots have never been opened, and keep the shared initial state
+            if (status != LotStatus.UNSOLD || highestBidderId != UserTable.NO_ID) {
+                lot.restore(status, Money.ofPence(highestBid), highestBidderId);
+            }
+        }
+        int interested = in.getInt();
+        for (int i = 0; i < interested; i++) {
+            int buyerId = in.getInt();
+            lot.addBuyer(buyerId, buyers.get(buyerId).getAddress());
+        }
+        return lot;
+    }
+
+    /**
+     * @return the status in the record starting at offset in buffer
+     */
+    static LotStatus status(ByteBuffer buffer, int offset) {
+        int description = offset + DESCRIPTION_OFFSET;
+        return LotStatus.values()[buffer.get(description + 4 + buffer.getInt(description) + 8)];
+    }
+
+    /**
+     * @return the description in the record starting at offset in buffer
+     */
+    static String description(ByteBuffer buffer, int offset) {
+        ByteBuffer in = buffer.duplicate();
+        in.position(offset + DESCRIPTION_OFFSET);
+        return CommandCodec.getString(in);
+    }
+
+}
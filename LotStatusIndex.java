@@ -0,0 +1,71 @@
+package auctionhouse;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Secondary index of lots by status, so that the lots in one status can be
+ * counted in constant time and listed in time proportional to how many
+ * there are, without scanning the catalogue.
+ *
+ * Lots move between statuses as they change (see
+ * Lot.compareAndSetBidState). A lot enters its new status before the
+ * change becomes visible and leaves its old one afterwards, so a lot is
+ * always listed under its current status, but while it moves it may also
+ * be listed, and counted, under the status it is leaving. Readers that need
+ * an exact answer check each lot's status as they go.
+ */
+public class LotStatusIndex {
+
+    // indexed by LotStatus.ordinal()
+    private final List<ConcurrentNavigableMap<Integer, Lot>> lots;
+    private final AtomicIntegerArray counts;
+
+    public LotStatusIndex() {
+        int statuses = LotStatus.values().length;
+        lots = new ArrayList<ConcurrentNavigableMap<Integer, Lot>>(statuses);
+        for (int i = 0; i < statuses; i++) {
+            lots.add(new ConcurrentSkipListMap<Integer, Lot>());
+        }
+        counts = new AtomicIntegerArray(statuses);
+    }
+
+    void enter(Lot lot, LotStatus status) {
+        if (lots.get(status.ordinal()).put(lot.lotNumber, lot) == null) {
+            counts.incrementAndGet(status.ordinal());
+        }
+    }
+
+    void leave(Lot lot, LotStatus status) {
+        if (lots.get(status.ordinal()).remove(lot.lotNumber) != null) {
+            counts.decrementAndGet(status.ordinal());
+        }
+    }
+
+    /**
+     * @return the number of lots with this status
+     */
+    public int count(LotStatus status) {
+        return counts.get(status.ordinal());
+    }
+
+    /**
+     * @return the lots with this status, in lot number order
+     */
+    public Collection<Lot> lots(LotStatus status) {
+        return lots.get(status.ordinal()).values();
+    }
+
+    /**
+     * @return the lots with this status numbered above afterLotNumber, in
+     *         lot number order
+     */
+    public Collection<Lot> lotsAfter(LotStatus status, int afterLotNumber) {
+        return lots.get(status.ordinal()).tailMap(afterLotNumber, false).values();
+    }
+
+}
@@ -0,0 +1,827 @@
+package auctionhouse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractCollection;
+import java.util.AbstractSequentialList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The single store of lots, ordered by lot number.
+ *
+ * The catalogue is served straight from the store as a read-only view
+ * that makes each lot's CatalogueEntry as it is reached, rather than from
+ * a second map of entries. Iteration is weakly consistent and never blocks
+ * lots being added or auctioned.
+ *
+ * Stored lots are also indexed by status (see LotStatusIndex) and by the
+ * words of their descriptions (see DescriptionIndex).
+ *
+ * After a restart from a mapped snapshot, the store also holds the lots of
+ * the snapshot (see MappedLots), and materializes each of them the first
+ * time it is read, by number or by iterating over it. Until then a lot is
+ * counted and listed under its status from the snapshot, and its
+ * description is only indexed when the description index is first used.
+ *
+ * A store given a LotArchive moves settled and idle lots there when evict
+ * is called, and brings an archived lot back when it is fetched with get,
+ * which is how every change starts. Iterating over the store, or peeking
+ * at a lot, reads archived lots without bringing them back. Descriptions
+ * stay indexed while lots are archived.
+ */
+public class LotStore {
+
+    private final ConcurrentNavigableMap<Integer, Lot> lots = new ConcurrentSkipListMap<Integer, Lot>();
+    private final LotStatusIndex statusIndex = new LotStatusIndex();
+    private final DescriptionIndex descriptionIndex = new DescriptionIndex();
+    // the lots of a mapped snapshot, or null
+    private MappedLots mapped;
+    // mapped lots at positions below this have had their descriptions indexed
+    private volatile int describedUpTo;
+    // where settled and idle lots are moved, or null
+    private volatile LotArchive archive;
+    // the buyers that archived lots' interested buyer ids refer to
+    private volatile UserTable<Buyer> buyers;
+    // the number of eviction passes so far; lots are stamped with it when used
+    private volatile int pass;
+
+    /*
+     * Adds the lots of a mapped snapshot to an empty store, before it is
+     * shared.
+     */
+    void attach(MappedLots mappedLots) {
+        this.mapped = mappedLots;
+    }
+
+    /**
+     * Has later calls of evict move lots to archive.
+     *
+     * @param buyers the buyers that lots' interested buyer ids refer to
+     */
+    public synchronized void archiveTo(LotArchive archive, UserTable<Buyer> buyers) {
+        this.buyers = buyers;
+        this.archive = archive;
+    }
+
+    /**
+     * Fetches a lot to use, and perhaps change: a lot still in a mapped
+     * snapshot or in the archive is brought into the store.
+     *
+     * @return the lot with this number, or null if there is none
+     */
+    public Lot get(int lotNumber) {
+        Lot lot = lots.get(lotNumber);
+        if (lot == null && (mapped != null || archive != null)) {
+            lot = fetch(lotNumber);
+        }
+        if (lot != null) {
+            lot.used(pass);
+        }
+        return lot;
+    }
+
+    /*
+     * Brings a lot into the store from wherever it is. A lot that is found
+     * nowhere may have been moving, so it is looked for again.
+     */
+    private Lot fetch(int lotNumber) {
+        int position = mapped == null ? -1 : mapped.find(lotNumber);
+        LotArchive lotArchive = archive;
+        if (position < 0 && (lotArchive == null || !lotArchive.contains(lotNumber))) {
+            return lots.get(lotNumber);
+        }
+        for (int attempt = 0; attempt < 3; attempt++) {
+            Lot lot = null;
+            if (position >= 0 && !mapped.isMaterialized(position)) {
+                lot = materialize(position);
+            }
+            if (lot == null && lotArchive != null) {
+                lot = restore(lotArchive, lotNumber);
+            }
+            if (lot == null) {
+                lot = lots.get(lotNumber);
+            }
+            if (lot != null) {
+                return lot;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Like get, but for reading only: an archived lot is read into a copy
+     * rather than brought back into the store.
+     *
+     * @return the lot with this number, or null if there is none
+     */
+    public Lot peek(int lotNumber) {
+        Lot lot = lots.get(lotNumber);
+        LotArchive lotArchive = archive;
+        if (lot == null && lotArchive != null) {
+            lot = lotArchive.read(lotNumber, buyers);
+        }
+        if (lot != null) {
+            return lot;
+        }
+        // a lot restored meanwhile is in the map by now
+        return mapped != null ? get(lotNumber) : lots.get(lotNumber);
+    }
+
+    /*
+     * Reads a mapped lot into the store, unless that has been done already.
+     *
+     * @return the lot, or null if it has since been archived
+     */
+    private Lot materialize(int position) {
+        if (mapped.isMaterialized(position)) {
+            return lots.get(mapped.lotNumber(position));
+        }
+        Lot lot = mapped.read(position);
+        Lot existing = store(lot);
+        if (existing != null) {
+            return existing;
+        }
+        // the description is indexed here or by describeMapped, never by both
+        synchronized (descriptionIndex) {
+            if (position >= describedUpTo) {
+                descriptionIndex.add(lot.lotNumber, lot.description);
+            }
+            mapped.markMaterialized(position);
+        }
+        return lot;
+    }
+
+    /*
+     * Brings an archived lot back into the store. Its description is still
+     * indexed.
+     *
+     * @return the lot, or null if it is not in the archive
+     */
+    private Lot restore(LotArchive lotArchive, int lotNumber) {
+        Lot lot = lotArchive.read(lotNumber, buyers);
+        if (lot == null) {
+            return null;
+        }
+        lot.used(pass);
+        Lot existing = store(lot);
+        if (existing != null) {
+            return existing;
+        }
+        lotArchive.remove(lotNumber);
+        return lot;
+    }
+
+    /**
+     * Adds lot unless its number is already taken.
+     *
+     * @return null if lot was added, otherwise the lot already stored, or
+     *         a copy of it if it is archived
+     */
+    public Lot putIfAbsent(Lot lot) {
+        LotArchive lotArchive = archive;
+        if ((mapped != null && mapped.find(lot.lotNumber) >= 0)
+                || (lotArchive != null && lotArchive.contains(lot.lotNumber))) {
+            return peek(lot.lotNumber);
+        }
+        lot.used(pass);
+        Lot existing = store(lot);
+        if (existing != null) {
+            return existing;
+        }
+        if (lotArchive != null && lotArchive.contains(lot.lotNumber)) {
+            // the lot that was stored before was archived after the check above
+            synchronized (lot) {
+                lots.remove(lot.lotNumber, lot);
+                lot.evict();
+            }
+            return peek(lot.lotNumber);
+        }
+        descriptionIndex.add(lot.lotNumber, lot.description);
+        return null;
+    }
+
+    private Lot store(Lot lot) {
+        // holding the monitor keeps the lot's first transition waiting until it is indexed
+        synchronized (lot) {
+            Lot existing = lots.putIfAbsent(lot.lotNumber, lot);
+            if (existing != null) {
+                return existing;
+            }
+            lot.indexIn(statusIndex);
+        }
+        return null;
+    }
+
+    /*
+     * @return true if lot may be archived in pass now
+     */
+    private static boolean isIdle(Lot lot, int now, int idlePasses) {
+        int unusedPasses = now - 1 - lot.lastUsed();
+        LotStatus status = lot.getLotStatus();
+        return (status == LotStatus.SOLD && unusedPasses >= 1)
+                || (status == LotStatus.UNSOLD && unusedPasses >= idlePasses);
+    }
+
+    /**
+     * Moves to the archive the SOLD lots not used since the last pass, and
+     * the UNSOLD lots not used for the archive's idle passes. Lots in
+     * auction or awaiting payment stay. Lots are moved a chunk at a time:
+     * each is encoded under its monitor, the chunk is appended to the
+     * archive, then each lot leaves the store unless it has changed
+     * meanwhile, in which case its archived copy is removed instead.
+     *
+     * @return the number of lots moved
+     */
+    public synchronized int evict() throws IOException {
+        LotArchive lotArchive = archive;
+        if (lotArchive == null) {
+            throw new IllegalStateException("This store has no archive");
+        }
+        int now = ++pass;
+        int idlePasses = lotArchive.idlePasses();
+        Eviction eviction = new Eviction(1 << 16);
+        int moved = 0;
+        for (Lot lot : lots.values()) {
+            if (!isIdle(lot, now, idlePasses)) {
+                continue;
+            }
+            synchronized (lot) {
+                if (lot.isEvicted() || !isIdle(lot, now, idlePasses)) {
+                    continue;
+                }
+                eviction.add(lot);
+            }
+            if (eviction.isFull()) {
+                moved += eviction.finish(lotArchive);
+            }
+        }
+        return moved + eviction.finish(lotArchive);
+    }
+
+    /*
+     * A chunk of lots being moved to the archive, with what each was like
+     * when it was encoded.
+     */
+    private final class Eviction {
+        private final Lot[] chunk;
+        private final Lot.BidState[] states;
+        private final Auctioneer[] auctioneers;
+        private final int[] interested;
+        private final int[] lotNumbers;
+        private final byte[][] records;
+        private int count;
+
+        Eviction(int capacity) {
+            chunk = new Lot[capacity];
+            states = new Lot.BidState[capacity];
+            auctioneers = new Auctioneer[capacity];
+            interested = new int[capacity];
+            lotNumbers = new int[capacity];
+            records = new byte[capacity][];
+        }
+
+        // caller holds the lot's monitor
+        void add(Lot lot) {
+            chunk[count] = lot;
+            states[count] = lot.getBidState();
+            auctioneers[count] = lot.getAuctioneer();
+            interested[count] = lot.getInterestedBuyers().size();
+            lotNumbers[count] = lot.lotNumber;
+            records[count] = LotRecord.encode(lot);
+            count++;
+        }
+
+        boolean isFull() {
+            return count == chunk.length;
+        }
+
+        int finish(LotArchive lotArchive) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            lotArchive.append(count, lotNumbers, records);
+            int moved = 0;
+            for (int i = 0; i < count; i++) {
+                Lot lot = chunk[i];
+                synchronized (lot) {
+                    // a lot can only change by a transition, an opening or new interest
+                    if (lot.getBidState() == states[i]
+                            && lot.getAuctioneer() == auctioneers[i]
+                            && lot.getInterestedBuyers().size() == interested[i]) {
+                        lots.remove(lot.lotNumber, lot);
+                        lot.evict();
+                        moved++;
+                    } else {
+                        lotArchive.remove(lot.lotNumber);
+                    }
+                }
+                chunk[i] = null;
+                states[i] = null;
+                auctioneers[i] = null;
+                records[i] = null;
+            }
+            count = 0;
+            return moved;
+        }
+    }
+
+    /**
+     * @return every lot, in lot number order
+     */
+    public Collection<Lot> lots() {
+        return isHeapOnly() ? lots.values() : new View(null, Long.MIN_VALUE);
+    }
+
+    /**
+     * A read-only view of the catalogue entries of every lot, in lot number
+     * order. Nothing is copied: each entry is made from its lot when
+     * reached. The view is a sequential list, to be iterated over; get,
+     * size and the other positional methods walk the lots from the first.
+     */
+    public List<CatalogueEntry> entries() {
+        return new Entries();
+    }
+
+    /**
+     * @return the lots numbered above afterLotNumber, in lot number order
+     */
+    public Collection<Lot> lotsAfter(int afterLotNumber) {
+        return isHeapOnly()
+                ? lots.tailMap(afterLotNumber, false).values()
+                : new View(null, afterLotNumber);
+    }
+
+    /**
+     * Like LotStatusIndex.lots, may also list a lot that is moving to
+     * another status.
+     *
+     * @return the lots with this status, in lot number order
+     */
+    public Collection<Lot> lots(LotStatus status) {
+        return isHeapOnly() ? statusIndex.lots(status) : new View(status, Long.MIN_VALUE);
+    }
+
+    /**
+     * @return the lots with this status numbered above afterLotNumber, in
+     *         lot number order
+     */
+    public Collection<Lot> lotsAfter(LotStatus status, int afterLotNumber) {
+        return isHeapOnly()
+                ? statusIndex.lotsAfter(status, afterLotNumber)
+                : new View(status, afterLotNumber);
+    }
+
+    private boolean isHeapOnly() {
+        return mapped == null && archive == null;
+    }
+
+    /**
+     * @return the number of lots with this status
+     */
+    public int count(LotStatus status) {
+        LotArchive lotArchive = archive;
+        return statusIndex.count(status)
+                + (mapped == null ? 0 : mapped.remaining(status))
+                + (lotArchive == null ? 0 : lotArchive.count(status));
+    }
+
+    /**
+     * Finds the status of a lot without materializing or restoring it.
+     *
+     * @return the status of the lot with this number, or null if there is
+     *         none
+     */
+    public LotStatus statusOf(int lotNumber) {
+        Lot lot = lots.get(lotNumber);
+        if (lot != null || isHeapOnly()) {
+            return lot == null ? null : lot.getLotStatus();
+        }
+        Cursor cursor = new Cursor(null, (long) lotNumber - 1);
+        return cursor.next() && cursor.lotNumber() == lotNumber ? cursor.status() : null;
+    }
+
+    public DescriptionIndex byDescription() {
+        if (mapped != null && describedUpTo < mapped.size()) {
+            describeMapped();
+        }
+        return descriptionIndex;
+    }
+
+    /*
+     * Indexes the descriptions of the mapped lots not yet materialized, a
+     * block at a time so that materializing other lots is only briefly
+     * held up.
+     */
+    private void describeMapped() {
+        final int block = 4096;
+        int size = mapped.size();
+        while (describedUpTo < size) {
+            synchronized (descriptionIndex) {
+                int from = describedUpTo;
+                int to = (int) Math.min(size, (long) from + block);
+                for (int position = from; position < to; position++) {
+                    if (!mapped.isMaterialized(position)) {
+                        descriptionIndex.add(mapped.lotNumber(position), mapped.description(position));
+                    }
+                }
+                describedUpTo = to;
+            }
+        }
+    }
+
+    public int size() {
+        LotArchive lotArchive = archive;
+        return lots.size()
+                + (mapped == null ? 0 : mapped.remaining())
+                + (lotArchive == null ? 0 : lotArchive.size());
+    }
+
+    /*
+     * @param status the status of the lots to visit, or null for every lot
+     */
+    Cursor cursor(LotStatus status, long afterLotNumber) {
+        return new Cursor(status, afterLotNumber);
+    }
+
+    /*
+     * Visits lots in lot number order, wherever they are, without
+     * materializing mapped lots or restoring archived ones: for those, only
+     * the lot number, status and record are at hand. Weakly consistent,
+     * like iterating over the map.
+     *
+     * The map, the mapped snapshot and the archive each propose their next
+     * lot number, and the lowest is visited. A number proposed by the
+     * snapshot or the archive is looked for in the map first, then in the
+     * snapshot, then in the archive, since a lot is always added where it
+     * moves to before it leaves where it was.
+     */
+    final class Cursor {
+        private final LotStatus status;
+        private final Iterator<Lot> stored;
+        private Lot nextStored;
+        // the next and end indexes into the mapped lots, or their positions in status
+        private int nextMapped;
+        private final int endMapped;
+        private final LotArchive lotArchive;
+        private LotArchive.Index archived = LotArchive.Index.EMPTY;
+        private int nextArchived;
+        private long last;
+        // the current lot if it is in the map; otherwise it is at position
+        // in the mapped lots, or in archivedIn if that is set
+        private Lot lot;
+        private int position;
+        private LotArchive.Index archivedIn;
+
+        Cursor(LotStatus status, long afterLotNumber) {
+            this.status = status;
+            this.last = afterLotNumber;
+            Collection<Lot> from;
+            if (afterLotNumber < Integer.MIN_VALUE) {
+                from = status == null ? lots.values() : statusIndex.lots(status);
+            } else if (status == null) {
+                from = lots.tailMap((int) afterLotNumber, false).values();
+            } else {
+                from = statusIndex.lotsAfter(status, (int) afterLotNumber);
+            }
+            this.stored = from.iterator();
+            this.nextStored = stored.hasNext() ? stored.next() : null;
+            if (mapped == null) {
+                endMapped = 0;
+            } else if (status == null) {
+                nextMapped = mapped.firstAfter(afterLotNumber);
+                endMapped = mapped.size();
+            } else {
+                nextMapped = mapped.firstAfter(status, afterLotNumber);
+                endMapped = mapped.size(status);
+            }
+            this.lotArchive = archive;
+        }
+
+        /**
+         * Moves to the next lot.
+         *
+         * @return false if there is none
+         */
+        boolean next() {
+            for (;;) {
+                // a lot listed in more than one place is visited once
+                while (nextStored != null && nextStored.lotNumber <= last) {
+                    nextStored = stored.hasNext() ? stored.next() : null;
+                }
+                long storedNumber = nextStored == null ? Long.MAX_VALUE : nextStored.lotNumber;
+                int mappedPosition = -1;
+                long mappedNumber = Long.MAX_VALUE;
+                for (; nextMapped < endMapped; nextMapped++) {
+                    int p = status == null ? nextMapped : mapped.position(status, nextMapped);
+                    if (mapped.lotNumber(p) > last) {
+                        mappedPosition = p;
+                        mappedNumber = mapped.lotNumber(p);
+                        break;
+                    }
+                }
+                long archivedNumber = nextArchived();
+                long number = Math.min(storedNumber, Math.min(mappedNumber, archivedNumber));
+                if (number == Long.MAX_VALUE) {
+                    return false;
+                }
+                last = number;
+                boolean found;
+                if (number == storedNumber) {
+                    lot = nextStored;
+                    found = true;
+                } else {
+                    found = find((int) number, number == mappedNumber ? mappedPosition : -1);
+                }
+                if (found && (status == null || status() == status)) {
+                    return true;
+                }
+            }
+        }
+
+        /*
+         * @return the number of the next archived lot above last, or
+         *         Long.MAX_VALUE if there is none
+         */
+        private long nextArchived() {
+            if (lotArchive == null) {
+                return Long.MAX_VALUE;
+            }
+            LotArchive.Index current = lotArchive.index();
+            if (current != archived) {
+                archived = current;
+                nextArchived = current.firstAfter(last);
+            }
+            for (; nextArchived < archived.size; nextArchived++) {
+                // a removed lot is back in the map, perhaps in another status
+                if (archived.lotNumber(nextArchived) > last && (status == null
+                        || archived.isRemoved(nextArchived) || archived.status(nextArchived) == status)) {
+                    return archived.lotNumber(nextArchived);
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        /*
+         * Finds where the lot with this number is now.
+         *
+         * @return false if it was moving each time it was looked for
+         */
+        private boolean find(int lotNumber, int mappedPosition) {
+            for (int attempt = 0; attempt < 3; attempt++) {
+                lot = lots.get(lotNumber);
+                if (lot != null) {
+                    return true;
+                }
+                if (mappedPosition >= 0 && !mapped.isMaterialized(mappedPosition)) {
+                    position = mappedPosition;
+                    archivedIn = null;
+                    return true;
+                }
+                if (lotArchive != null) {
+                    LotArchive.Index current = lotArchive.index();
+                    int p = current.find(lotNumber);
+                    if (p >= 0 && !current.isRemoved(p)) {
+                        position = p;
+                        archivedIn = current;
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the current lot if it is in the map, otherwise null
+         */
+        Lot lot() {
+            return lot;
+        }
+
+        /**
+         * @return the current lot, materializing it if it is mapped, or
+         *         reading a copy of it if it is archived
+         */
+        Lot load() {
+            if (lot != null) {
+                return lot;
+            }
+            if (archivedIn != null) {
+                return LotRecord.decode(lotArchive.record(archivedIn, position), buyers);
+            }
+            Lot materialized = materialize(position);
+            return materialized != null ? materialized : peek(lotNumber());
+        }
+
+        int lotNumber() {
+            if (lot != null) {
+                return lot.lotNumber;
+            }
+            return archivedIn == null ? mapped.lotNumber(position) : archivedIn.lotNumber(position);
+        }
+
+        LotStatus status() {
+            if (lot != null) {
+                return lot.getLotStatus();
+            }
+            return archivedIn == null ? mapped.status(position) : archivedIn.status(position);
+        }
+
+        /**
+         * @return the current lot's record, if it is not in the map
+         */
+        ByteBuffer record() {
+            return archivedIn == null ? mapped.record(position) : lotArchive.record(archivedIn, position);
+        }
+    }
+
+    /*
+     * The lots of a store that are not all in the map, read as they are
+     * iterated over.
+     */
+    private final class View extends AbstractCollection<Lot> {
+        private final LotStatus status;
+        private final long afterLotNumber;
+
+        View(LotStatus status, long afterLotNumber) {
+            this.status = status;
+            this.afterLotNumber = afterLotNumber;
+        }
+
+        @Override
+        public Iterator<Lot> iterator() {
+            final Cursor cursor = cursor(status, afterLotNumber);
+            return new Iterator<Lot>() {
+                private Boolean hasNext;
+
+                @Override
+                public boolean hasNext() {
+                    if (hasNext == null) {
+                        hasNext = cursor.next();
+                    }
+                    return hasNext;
+                }
+
+                @Override
+                public Lot next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    hasNext = null;
+                    return cursor.load();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            // counted without reading any lot
+            Cursor cursor = cursor(status, afterLotNumber);
+            int size = 0;
+            while (cursor.next()) {
+                size++;
+            }
+            return size;
+        }
+    }
+
+
+    /*
+     * Sequential, like a LinkedList: every position is reached by walking
+     * the lots from the first, and size counts them the same way, so the
+     * size is that of one iteration made at the time.
+     */
+    private final class Entries extends AbstractSequentialList<CatalogueEntry> {
+
+        @Override
+        public Iterator<CatalogueEntry> iterator() {
+            final Iterator<Lot> lots = lots().iterator();
+            return new Iterator<CatalogueEntry>() {
+                @Override
+                public boolean hasNext() {
+                    return lots.hasNext();
+                }
+
+                @Override
+                public CatalogueEntry next() {
+                    return lots.next().entry();
+                }
+            };
+        }
+
+        @Override
+        public ListIterator<CatalogueEntry> listIterator(int index) {
+            if (index < 0) {
+                throw new IndexOutOfBoundsException("Index: " + index);
+            }
+            return new EntryIterator(index);
+        }
+
+        // one pass forwards rather than the inherited walk back from the end
+        @Override
+        public int lastIndexOf(Object o) {
+            int last = -1;
+            int i = 0;
+            for (CatalogueEntry entry : this) {
+                if (entry.equals(o)) {
+                    last = i;
+                }
+                i++;
+            }
+            return last;
+        }
+
+        @Override
+        public int size() {
+            return lots().size();
+        }
+    }
+
+    /*
+     * Read-only list iterator over the entries. Stepping back walks the
+     * lots again from the first, so it is only meant for occasional use.
+     */
+    private final class EntryIterator implements ListIterator<CatalogueEntry> {
+        private Iterator<Lot> lots;
+        // the lot at index next when it has been taken from lots already
+        private Lot pending;
+        private int next;
+
+        EntryIterator(int index) {
+            moveTo(index);
+        }
+
+        private void moveTo(int index) {
+            lots = lots().iterator();
+            pending = null;
+            for (next = 0; next < index; next++) {
+                if (!lots.hasNext()) {
+                    throw new IndexOutOfBoundsException("Index: " + index);
+                }
+                lots.next();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return pending != null || lots.hasNext();
+        }
+
+        @Override
+        public CatalogueEntry next() {
+            Lot lot = pending != null ? pending : lots.next();
+            pending = null;
+            next++;
+            return lot.entry();
+        }
+
+        @Override
+        public boolean hasPrevious() {
+            return next > 0;
+        }
+
+        @Override
+        public CatalogueEntry previous() {
+            if (next == 0) {
+                throw new NoSuchElementException();
+            }
+            moveTo(next - 1);
+            if (!lots.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            pending = lots.next();
+            return pending.entry();
+        }
+
+        @Override
+        public int nextIndex() {
+            return next;
+        }
+
+        @Override
+        public int previousIndex() {
+            return next - 1;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void set(CatalogueEntry entry) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void add(CatalogueEntry entry) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
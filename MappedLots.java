@@ -0,0 +1,228 @@
+package auctionhouse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The lots of a memory-mapped snapshot (see SnapshotStore), read one at a
+ * time as they are first used, so that a restart costs the same however
+ * many lots there are, and a lot never used since costs only its mapped
+ * bytes.
+ *
+ * Lots are found through the index at the end of the snapshot: an entry of
+ * lot number and file offset per lot, in lot number order, so a lot is
+ * found by binary search, then for each status the positions in the index
+ * of the lots in it. The statuses are those at the time of the snapshot,
+ * which stay true for as long as a lot is not materialized.
+ *
+ * Each lot is materialized once, by the LotStore it is attached to, which
+ * marks it here afterwards. A marked lot is no longer counted under its
+ * status here, and is found in the store instead.
+ */
+final class MappedLots {
+
+    // the size of an index entry: lot number and file offset
+    static final int ENTRY = 4 + 8;
+
+    private final ByteBuffer file;
+    private final int size;
+    // the file offset of the first index entry
+    private final int entries;
+    // the file offset of the byte that ends the lots
+    private final int endOfLots;
+    // indexed by LotStatus.ordinal()
+    private final int[] statusEntries;
+    private final int[] statusSizes;
+    private final AtomicIntegerArray remaining;
+    // one bit per index position, set once the lot is materialized
+    private final AtomicLongArray materialized;
+    private final UserTable<Buyer> buyers;
+
+    /**
+     * @param file the whole snapshot
+     * @param lotsOffset the file offset of the first lot
+     * @param indexOffset the file offset of the index
+     * @param buyers the buyers, as loaded from the same snapshot
+     */
+    MappedLots(ByteBuffer file, int lotsOffset, int indexOffset, UserTable<Buyer> buyers) throws IOException {
+        this.file = file;
+        this.buyers = buyers;
+        if (indexOffset <= lotsOffset || indexOffset + 4 > file.limit() || file.get(indexOffset - 1) != 0) {
+            throw new IOException("Snapshot index is damaged");
+        }
+        this.endOfLots = indexOffset - 1;
+        this.size = file.getInt(indexOffset);
+        this.entries = indexOffset + 4;
+        int statuses = LotStatus.values().length;
+        this.statusEntries = new int[statuses];
+        this.statusSizes = new int[statuses];
+        this.remaining = new AtomicIntegerArray(statuses);
+        long offset = entries + (long) ENTRY * size;
+        for (int s = 0; s < statuses && size >= 0 && offset + 4 <= file.limit(); s++) {
+            statusSizes[s] = file.getInt((int) offset);
+            statusEntries[s] = (int) offset + 4;
+            remaining.set(s, statusSizes[s]);
+            offset += 4 + 4L * Math.max(0, statusSizes[s]);
+        }
+        long statusTotal = 0;
+        for (int count : statusSizes) {
+            statusTotal += count < 0 ? Integer.MIN_VALUE : count;
+        }
+        if (size < 0 || statusTotal != size || offset > file.limit()
+                || (size > 0 && offset(0) != lotsOffset)) {
+            throw new IOException("Snapshot index is damaged");
+        }
+        this.materialized = new AtomicLongArray((size + 63) >>> 6);
+    }
+
+    /**
+     * @return the number of lots in the snapshot
+     */
+    int size() {
+        return size;
+    }
+
+    int lotNumber(int position) {
+        return file.getInt(entries + ENTRY * position);
+    }
+
+    private int offset(int position) {
+        return (int) file.getLong(entries + ENTRY * position + 4);
+    }
+
+    /**
+     * @return the index position of the lot with this number, or, if there
+     *         is none, (-(the position it would have) - 1)
+     */
+    int find(int lotNumber) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int number = lotNumber(mid);
+            if (number < lotNumber) {
+                low = mid + 1;
+            } else if (number > lotNumber) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * @return the index position of the first lot numbered above
+     *         afterLotNumber, or size() if there is none
+     */
+    int firstAfter(long afterLotNumber) {
+        if (afterLotNumber < Integer.MIN_VALUE) {
+            return 0;
+        }
+        int at = find((int) afterLotNumber);
+        return at >= 0 ? at + 1 : -at - 1;
+    }
+
+    /**
+     * @return the number of lots that were in status at the time of the
+     *         snapshot
+     */
+    int size(LotStatus status) {
+        return statusSizes[status.ordinal()];
+    }
+
+    /**
+     * @return the index position of the i'th lot in status, in lot number
+     *         order
+     */
+    int position(LotStatus status, int i) {
+        return file.getInt(statusEntries[status.ordinal()] + 4 * i);
+    }
+
+    /**
+     * @return the first i for which position(status, i) is numbered above
+     *         afterLotNumber, or size(status) if there is none
+     */
+    int firstAfter(LotStatus status, long afterLotNumber) {
+        int low = 0;
+        int high = size(status);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (lotNumber(position(status, mid)) <= afterLotNumber) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    boolean isMaterialized(int position) {
+        return (materialized.get(position >>> 6) & (1L << position)) != 0;
+    }
+
+    /*
+     * Records that the lot at position is now held by the store.
+     */
+    void markMaterialized(int position) {
+        long bit = 1L << position;
+        long word;
+        do {
+            word = materialized.get(position >>> 6);
+            if ((word & bit) != 0) {
+                return;
+            }
+        } while (!materialized.compareAndSet(position >>> 6, word, word | bit));
+        remaining.decrementAndGet(status(position).ordinal());
+    }
+
+    /**
+     * @return the number of lots not yet materialized
+     */
+    int remaining() {
+        int total = 0;
+        for (int s = 0; s < remaining.length(); s++) {
+            total += remaining.get(s);
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of lots in status not yet materialized
+     */
+    int remaining(LotStatus status) {
+        return remaining.get(status.ordinal());
+    }
+
+    /**
+     * @return the lot at position as written, from its leading marker byte
+     *         up to the next lot
+     */
+    ByteBuffer record(int position) {
+        ByteBuffer record = file.duplicate();
+        record.limit(position + 1 < size ? offset(position + 1) : endOfLots);
+        record.position(offset(position));
+        return record;
+    }
+
+    String description(int position) {
+        return LotRecord.description(file, offset(position));
+    }
+
+    /**
+     * @return the status of the lot at position at the time of the snapshot
+     */
+    LotStatus status(int position) {
+        return LotRecord.status(file, offset(position));
+    }
+
+    /**
+     * Reads the lot at position into a new Lot, not yet in any store.
+     */
+    Lot read(int position) {
+        return LotRecord.decode(record(position), buyers);
+    }
+
+}
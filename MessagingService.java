@@ -9,5 +9,35 @@ public interface MessagingService {
     void lotSold(String address, int lotNumber);
     
     void lotUnsold(String address, int lotNumber);
+    
+    /*
+     * Multicast variants, sending one event to many addresses in one call.
+     * The defaults fall back to one call per address; a gateway that can
+     * batch deliveries should override them.
+     */
+    
+    default void auctionOpened(String[] addresses, int lotNumber) {
+        for (String address : addresses) {
+            auctionOpened(address, lotNumber);
+        }
+    }
+    
+    default void bidAccepted(String[] addresses, int lotNumber, Money amount) {
+        for (String address : addresses) {
+            bidAccepted(address, lotNumber, amount);
+        }
+    }
+    
+    default void lotSold(String[] addresses, int lotNumber) {
+        for (String address : addresses) {
+            lotSold(address, lotNumber);
+        }
+    }
+    
+    default void lotUnsold(String[] addresses, int lotNumber) {
+        for (String address : addresses) {
+            lotUnsold(address, lotNumber);
+        }
+    }
 
 }
@@ -0,0 +1,142 @@
+package auctionhouse;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * An AuctionHouse that records the latency and Status of each call before
+ * returning it (see HouseMetrics).
+ */
+final class MeteredAuctionHouse implements AuctionHouse {
+
+    private final AuctionHouse delegate;
+    private final Metric[] metrics = new Metric[HouseMetrics.Operation.values().length];
+
+    MeteredAuctionHouse(AuctionHouse delegate, HouseMetrics houseMetrics) {
+        this.delegate = delegate;
+        for (HouseMetrics.Operation operation : HouseMetrics.Operation.values()) {
+            metrics[operation.ordinal()] = houseMetrics.get(operation);
+        }
+    }
+
+    private Status record(HouseMetrics.Operation operation, long begin, Status status) {
+        metrics[operation.ordinal()].record(System.nanoTime() - begin, status.kind);
+        return status;
+    }
+
+    private void record(HouseMetrics.Operation operation, long begin, boolean ok) {
+        metrics[operation.ordinal()].record(System.nanoTime() - begin, ok ? Status.Kind.OK : Status.Kind.ERROR);
+    }
+
+    public Status registerBuyer(String name, String address, String bankAccount, String bankAuthCode) {
+        long begin = System.nanoTime();
+        return record(HouseMetrics.Operation.REGISTER_BUYER, begin,
+                delegate.registerBuyer(name, address, bankAccount, bankAuthCode));
+    }
+
+    public Status registerSeller(String name, String address, String bankAccount) {
+        long begin = System.nanoTime();
+        return record(HouseMetrics.Operation.REGISTER_SELLER, begin,
+                delegate.registerSeller(name, address, bankAccount));
+    }
+
+    public Status addLot(String sellerName, int number, String description, Money reservePrice) {
+        long begin = System.nanoTime();
+        return record(HouseMetrics.Operation.ADD_LOT, begin,
+                delegate.addLot(sellerName, number, description, reservePrice));
+    }
+
+    public List<CatalogueEntry> viewCatalogue() {
+        long begin = System.nanoTime();
+        List<CatalogueEntry> entries = delegate.viewCatalogue();
+        record(HouseMetrics.Operation.VIEW_CATALOGUE, begin, true);
+        return entries;
+    }
+
+    public CataloguePage viewCatalogue(int afterLotNumber, int pageSize, LotStatus status) {
+        long begin = System.nanoTime();
+        CataloguePage page = delegate.viewCatalogue(afterLotNumber, pageSize, status);
+        record(HouseMetrics.Operation.VIEW_CATALOGUE, begin, true);
+        return page;
+    }
+
+    public Stream<CatalogueEntry> streamCatalogue(LotStatus status) {
+        long begin = System.nanoTime();
+        Stream<CatalogueEntry> entries = delegate.streamCatalogue(status);
+        record(HouseMetrics.Operation.STREAM_CATALOGUE, begin, true);
+        return entries;
+    }
+
+    public int countLots(LotStatus status) {
+        long begin = System.nanoTime();
+        int count = delegate.countLots(status);
+        record(HouseMetrics.Operation.COUNT_LOTS, begin, true);
+        return count;
+    }
+
+    public List<CatalogueEntry> searchCatalogue(String query, LotStatus status, int limit) {
+        long begin = System.nanoTime();
+        List<CatalogueEntry> entries = delegate.searchCatalogue(query, status, limit);
+        record(HouseMetrics.Operation.SEARCH_CATALOGUE, begin, true);
+        return entries;
+    }
+
+    public Status noteInterest(String buyerName, int lotNumber) {
+        long begin = System.nanoTime();
+        return record(HouseMetrics.Operation.NOTE_INTEREST, begin, delegate.noteInterest(buyerName, lotNumber));
+    }
+
+    public Status openAuction(String auctioneerName, String auctioneerAddress, int lotNumber) {
+        long begin = System.nanoTime();
+        return record(HouseMetrics.Operation.OPEN_AUCTION, begin,
+                delegate.openAuction(auctioneerName, auctioneerAddress, lotNumber));
+    }
+
+    public Status makeBid(String buyerName, int lotNumber, Money bid) {
+        long begin = System.nanoTime();
+        return record(HouseMetrics.Operation.MAKE_BID, begin, delegate.makeBid(buyerName, lotNumber, bid));
+    }
+
+    public Status closeAuction(String auctioneerName, int lotNumber) {
+        long begin = System.nanoTime();
+        return record(HouseMetrics.Operation.CLOSE_AUCTION, begin, delegate.closeAuction(auctioneerName, lotNumber));
+    }
+
+    public List<Status> closeAuctions(String auctioneerName, List<Integer> lotNumbers) {
+        long begin = System.nanoTime();
+        List<Status> statuses = delegate.closeAuctions(auctioneerName, lotNumbers);
+        record(HouseMetrics.Operation.CLOSE_AUCTIONS, begin, true);
+        return statuses;
+    }
+
+    public int buyerId(String name) {
+        long begin = System.nanoTime();
+        int id = delegate.buyerId(name);
+        record(HouseMetrics.Operation.BUYER_ID, begin, id >= 0);
+        return id;
+    }
+
+    public int sellerId(String name) {
+        long begin = System.nanoTime();
+        int id = delegate.sellerId(name);
+        record(HouseMetrics.Operation.SELLER_ID, begin, id >= 0);
+        return id;
+    }
+
+    public Status addLot(int sellerId, int number, String description, Money reservePrice) {
+        long begin = System.nanoTime();
+        return record(HouseMetrics.Operation.ADD_LOT, begin,
+                delegate.addLot(sellerId, number, description, reservePrice));
+    }
+
+    public Status noteInterest(int buyerId, int lotNumber) {
+        long begin = System.nanoTime();
+        return record(HouseMetrics.Operation.NOTE_INTEREST, begin, delegate.noteInterest(buyerId, lotNumber));
+    }
+
+    public Status makeBid(int buyerId, int lotNumber, Money bid) {
+        long begin = System.nanoTime();
+        return record(HouseMetrics.Operation.MAKE_BID, begin, delegate.makeBid(buyerId, lotNumber, bid));
+    }
+
+}
@@ -0,0 +1,39 @@
+package auctionhouse;
+
+import java.util.List;
+
+/**
+ * A BankingService that records the latency and outcome of each call
+ * before returning it (see HouseMetrics).
+ */
+final class MeteredBankingService implements BankingService {
+
+    private final BankingService delegate;
+    private final Metric transfer;
+    private final Metric transferBatch;
+
+    MeteredBankingService(BankingService delegate, HouseMetrics metrics) {
+        this.delegate = delegate;
+        this.transfer = metrics.get(HouseMetrics.BankCall.TRANSFER);
+        this.transferBatch = metrics.get(HouseMetrics.BankCall.TRANSFER_BATCH);
+    }
+
+    public Status transfer(String senderAccount, String senderAuthCode, String receiverAccount, Money amount) {
+        long begin = System.nanoTime();
+        Status status = delegate.transfer(senderAccount, senderAuthCode, receiverAccount, amount);
+        transfer.record(System.nanoTime() - begin, status.kind);
+        return status;
+    }
+
+    public List<Status> transferBatch(List<Transfer> transfers) {
+        long begin = System.nanoTime();
+        List<Status> outcomes = delegate.transferBatch(transfers);
+        Status.Kind kind = outcomes.size() == transfers.size() ? Status.Kind.OK : Status.Kind.ERROR;
+        for (int i = 0; i < outcomes.size() && kind == Status.Kind.OK; i++) {
+            kind = outcomes.get(i).kind;
+        }
+        transferBatch.record(System.nanoTime() - begin, kind);
+        return outcomes;
+    }
+
+}
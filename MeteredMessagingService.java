@@ -0,0 +1,63 @@
+package auctionhouse;
+
+/**
+ * A MessagingService that records the fan-out of each notification before
+ * passing it on (see HouseMetrics).
+ */
+final class MeteredMessagingService implements MessagingService {
+
+    private final MessagingService delegate;
+    private final Metric opened;
+    private final Metric bid;
+    private final Metric sold;
+    private final Metric unsold;
+
+    MeteredMessagingService(MessagingService delegate, HouseMetrics metrics) {
+        this.delegate = delegate;
+        this.opened = metrics.get(HouseMetrics.Event.AUCTION_OPENED);
+        this.bid = metrics.get(HouseMetrics.Event.BID_ACCEPTED);
+        this.sold = metrics.get(HouseMetrics.Event.LOT_SOLD);
+        this.unsold = metrics.get(HouseMetrics.Event.LOT_UNSOLD);
+    }
+
+    public void auctionOpened(String address, int lotNumber) {
+        opened.record(1, Status.Kind.OK);
+        delegate.auctionOpened(address, lotNumber);
+    }
+
+    public void bidAccepted(String address, int lotNumber, Money amount) {
+        bid.record(1, Status.Kind.OK);
+        delegate.bidAccepted(address, lotNumber, amount);
+    }
+
+    public void lotSold(String address, int lotNumber) {
+        sold.record(1, Status.Kind.OK);
+        delegate.lotSold(address, lotNumber);
+    }
+
+    public void lotUnsold(String address, int lotNumber) {
+        unsold.record(1, Status.Kind.OK);
+        delegate.lotUnsold(address, lotNumber);
+    }
+
+    public void auctionOpened(String[] addresses, int lotNumber) {
+        opened.record(addresses.length, Status.Kind.OK);
+        delegate.auctionOpened(addresses, lotNumber);
+    }
+
+    public void bidAccepted(String[] addresses, int lotNumber, Money amount) {
+        bid.record(addresses.length, Status.Kind.OK);
+        delegate.bidAccepted(addresses, lotNumber, amount);
+    }
+
+    public void lotSold(String[] addresses, int lotNumber) {
+        sold.record(addresses.length, Status.Kind.OK);
+        delegate.lotSold(addresses, lotNumber);
+    }
+
+    public void lotUnsold(String[] addresses, int lotNumber) {
+        unsold.record(addresses.length, Status.Kind.OK);
+        delegate.lotUnsold(addresses, lotNumber);
+    }
+
+}
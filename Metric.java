@@ -0,0 +1,110 @@
+package auctionhouse;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the calls of one kind made to or by a house, by the Status kind
+ * they returned, and keeps a histogram of one value per call, such as its
+ * latency (see HouseMetrics).
+ *
+ * Recording takes no lock and allocates nothing, so a metric can stay on
+ * while bidding at full rate. The histogram has the buckets of
+ * LatencyHistogram, in a few stripes so that threads recording at once
+ * mostly increment different counters. Reading adds the stripes up, and
+ * may miss values recorded meanwhile.
+ */
+public class Metric implements MetricMXBean {
+
+    private static final Status.Kind[] KINDS = Status.Kind.values();
+    private static final int STRIPES = Math.min(16,
+            Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+    private final String unit;
+    private final AtomicLongArray buckets = new AtomicLongArray(STRIPES * LatencyHistogram.BUCKETS);
+    private final LongAdder[] counts = new LongAdder[KINDS.length];
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    Metric(String unit) {
+        this.unit = unit;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records value for a call that returned a Status of kind.
+     *
+     * @param value negative values are recorded as zero
+     */
+    public void record(long value, Status.Kind kind) {
+        long recorded = Math.max(value, 0);
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        buckets.getAndIncrement(stripe * LatencyHistogram.BUCKETS + LatencyHistogram.bucket(recorded));
+        counts[kind.ordinal()].increment();
+        total.add(recorded);
+        for (long seen = max.get(); recorded > seen && !max.compareAndSet(seen, recorded); seen = max.get()) {
+            // another thread raised the maximum; try again against its value
+        }
+    }
+
+    /*
+     * The values recorded so far, added up over the stripes.
+     */
+    LatencyHistogram snapshot() {
+        long[] merged = new long[LatencyHistogram.BUCKETS];
+        for (int i = 0; i < buckets.length(); i++) {
+            merged[i % LatencyHistogram.BUCKETS] += buckets.get(i);
+        }
+        return new LatencyHistogram(merged, total.sum(), max.get());
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder adder : counts) {
+            count += adder.sum();
+        }
+        return count;
+    }
+
+    public long getCount(Status.Kind kind) {
+        return counts[kind.ordinal()].sum();
+    }
+
+    public Map<String, Long> getCountsByKind() {
+        Map<String, Long> byKind = new LinkedHashMap<String, Long>();
+        for (Status.Kind kind : KINDS) {
+            byKind.put(kind.name(), getCount(kind));
+        }
+        return byKind;
+    }
+
+    public long getMean() {
+        return snapshot().getMeanNanos();
+    }
+
+    public long getP50() {
+        return snapshot().getNanosAtPercentile(50);
+    }
+
+    public long getP99() {
+        return snapshot().getNanosAtPercentile(99);
+    }
+
+    public long getP999() {
+        return snapshot().getNanosAtPercentile(99.9);
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+}
@@ -0,0 +1,31 @@
+package auctionhouse;
+
+import java.util.Map;
+
+/**
+ * The JMX view of a Metric: how many values it has recorded, by the Status
+ * kind of the call they came from, and their distribution. Values are in
+ * the Metric's unit.
+ */
+public interface MetricMXBean {
+
+    String getUnit();
+
+    long getCount();
+
+    /**
+     * @return the number of values recorded for each Status.Kind, by name
+     */
+    Map<String, Long> getCountsByKind();
+
+    long getMean();
+
+    long getP50();
+
+    long getP99();
+
+    long getP999();
+
+    long getMax();
+
+}
@@ -5,7 +5,10 @@ package auctionhouse;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.logging.Logger;
 
@@ -23,11 +26,17 @@ public class MockBankingService implements BankingService {
     
     private Set<String> badAccounts;
     
+    // the transfers of each call of transferBatch, in order
+    private List<List<String>> expectedBatches;
+    private List<List<String>> batches;
+    
     public MockBankingService() {
         expectedEvents = new HashSet<String>();
         actualEvents = new HashSet<String>();
         
         badAccounts = new HashSet<String>();
+        expectedBatches = new ArrayList<List<String>>();
+        batches = new ArrayList<List<String>>();
     }
   
     
@@ -70,10 +79,34 @@ public class MockBankingService implements BankingService {
         }
     }
 
+    /*
+     * Records the batch, then makes its transfers one at a time
+     */
+    public List<Status> transferBatch(List<Transfer> transfers) {
+        batches.add(makeBatchEventStrings(transfers));
+        return BankingService.super.transferBatch(transfers);
+    }
+    
+    private List<String> makeBatchEventStrings(List<Transfer> transfers) {
+        List<String> batch = new ArrayList<String>();
+        for (Transfer transfer : transfers) {
+            batch.add(makeTransferEventString(
+                    transfer.senderAccount,
+                    transfer.senderAuthCode,
+                    transfer.receiverAccount,
+                    transfer.amount));
+        }
+        return batch;
+    }
+
     /*
      * Test interface
      */
     
+    public void expectBatch(Transfer... transfers) {
+        expectedBatches.add(makeBatchEventStrings(Arrays.asList(transfers)));
+    }
+    
     public void setBadAccount(String badAccount) {
         badAccounts.add(badAccount);
     }
@@ -96,6 +129,7 @@ public class MockBankingService implements BankingService {
     public void verify() {
         
         assertEquals(expectedEvents, actualEvents);
+        assertEquals(expectedBatches, batches);
         return;
     }
 
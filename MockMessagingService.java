@@ -5,7 +5,9 @@ package auctionhouse;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.logging.Logger;
 
@@ -18,10 +20,13 @@ public class MockMessagingService implements MessagingService {
 
     private Set<String> expectedEvents;
     private Set<String> actualEvents;
+    // address count of each multicast call, in the order received
+    private List<Integer> multicasts;
 
     public MockMessagingService() {
         expectedEvents = new HashSet<String>();
         actualEvents = new HashSet<String>();
+        multicasts = new ArrayList<Integer>();
     }
 
     private String makeOpenedEventString(
@@ -78,6 +83,30 @@ public class MockMessagingService implements MessagingService {
         logger.finer(s);        
         actualEvents.add(s);
     }
+    /*
+     * Multicasts are recorded as one event per address, so that they meet
+     * the same expectations as single deliveries, and also counted.
+     */
+    
+    public void auctionOpened(String[] addresses, int lotNumber) {
+        multicasts.add(addresses.length);
+        MessagingService.super.auctionOpened(addresses, lotNumber);
+    }
+    
+    public void bidAccepted(String[] addresses, int lotNumber, Money amount) {
+        multicasts.add(addresses.length);
+        MessagingService.super.bidAccepted(addresses, lotNumber, amount);
+    }
+    
+    public void lotSold(String[] addresses, int lotNumber) {
+        multicasts.add(addresses.length);
+        MessagingService.super.lotSold(addresses, lotNumber);
+    }
+    
+    public void lotUnsold(String[] addresses, int lotNumber) {
+        multicasts.add(addresses.length);
+        MessagingService.super.lotUnsold(addresses, lotNumber);
+    }
     /*
      * Test methods
      */
@@ -94,11 +123,16 @@ public class MockMessagingService implements MessagingService {
         expectedEvents.add(makeUnsoldEventString(address, lotNumber));
     }
     
+    public List<Integer> getMulticasts() {
+        return multicasts;
+    }
+    
     public void verify() {
 
         assertEquals(expectedEvents, actualEvents);
         expectedEvents.clear();
         actualEvents.clear();
+        multicasts.clear();
         return;
     }
 
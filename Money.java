@@ -1,7 +1,11 @@
 /**
  * Money is a class that implements the Comparable interface. 
  * It contains simple methods for basic operations on Money
- * It contains one variable, double value, which stores the value of a monetary sum
+ * It contains one variable, long pence, which stores the value of a monetary sum
+ * exactly as a whole number of pence
+ * 
+ * The static methods on raw pence values (compare, add, addBasisPoints) give
+ * hot paths the same arithmetic without allocating Money objects
  * 
  * @author      Athiya Deviyani
  * @author      Vasilis Ntogramatzis
@@ -13,7 +17,14 @@ package auctionhouse;
  */
 public class Money implements Comparable<Money> {
  
-    private double value;
+    /**
+     * Zero pounds, shared as the opening highest bid of every lot
+     */
+    public static final Money ZERO = new Money(0L);
+    
+    private static final long BASIS_POINTS = 10000;
+    
+    private final long pence;
     
     /**
      * Returns the result of a double multiplied by 100 and rounded
@@ -28,34 +39,86 @@ public class Money implements Comparable<Money> {
     }
  
     /**
-     * Executes getNearestPence on the input double and divides the result by 100
+     * Parses the input String as an amount in pounds and rounds it to the nearest pence
      * 
      * @param  pounds the monetary amount
-     * @return the number multiplied by 100 and rounded to the nearest
-     *         whole number and then divided by 100
      */
-    private static double normalise(double pounds) {
-        return getNearestPence(pounds)/100.0;
-        
+    public Money(String pounds) {
+        pence = getNearestPence(Double.parseDouble(pounds));
     }
- 
+    
     /**
-     * Executes normalise on the input String which is first converted to a double
+     * Assigns an exact amount of pence to the pence field
      * 
-     * @param  pounds the monetary amount
-     * @return the normalised amount
+     * @param  pence the monetary amount in pence
      */
-    public Money(String pounds) {
-        value = normalise(Double.parseDouble(pounds));
+    private Money(long pence) {
+        this.pence = pence;
     }
     
     /**
-     * Assigns a double amount to the value field
+     * Returns an instance of the Money class for an exact amount of pence
      * 
-     * @param  pounds the monetary amount
+     * @param  pence the monetary amount in pence
+     * @return A new instance of the Money class, or ZERO for no pence
+     */
+    public static Money ofPence(long pence) {
+        return pence == 0 ? ZERO : new Money(pence);
+    }
+    
+    /**
+     * Returns this instance's value as a whole number of pence
+     * 
+     * @return the pence field
+     */
+    public long getPence() {
+        return pence;
+    }
+    
+    /**
+     * Converts a percentage into basis points (hundredths of a percent),
+     * rounded to the nearest basis point
+     * 
+     * @param  percent the percentage
+     * @return the percentage in basis points
+     */
+    public static long basisPoints(double percent) {
+        return Math.round(percent * 100.0);
+    }
+    
+    /**
+     * Compares two amounts of pence
+     * 
+     * @param  a an amount in pence
+     * @param  b an amount in pence
+     * @return greater than 0 if a is greater than b, less if otherwise and 0 if equal
+     */
+    public static int compare(long a, long b) {
+        return Long.compare(a, b);
+    }
+    
+    /**
+     * Adds two amounts of pence
+     * 
+     * @param  a an amount in pence
+     * @param  b an amount in pence
+     * @return the sum in pence
+     */
+    public static long add(long a, long b) {
+        return Math.addExact(a, b);
+    }
+    
+    /**
+     * Increments an amount of pence by a percentage of itself given in basis points,
+     * rounding halves up to the nearest pence as addPercent does
+     * 
+     * @param  pence an amount in pence
+     * @param  basisPoints the increment in hundredths of a percent, negative for a decrement
+     * @return the incremented amount in pence
      */
-    private Money(double pounds) {
-        value = pounds;
+    public static long addBasisPoints(long pence, long basisPoints) {
+        long scaled = Math.multiplyExact(pence, BASIS_POINTS + basisPoints);
+        return Math.floorDiv(scaled + BASIS_POINTS / 2, BASIS_POINTS);
     }
     
     /**
@@ -67,7 +130,7 @@ public class Money implements Comparable<Money> {
      *         to the previous object's value plus the value of the input object
      */
     public Money add(Money m) {
-        return new Money(value + m.value);
+        return new Money(add(pence, m.pence));
     }
     
     /**
@@ -79,7 +142,7 @@ public class Money implements Comparable<Money> {
      *         to the previous object's value minus the value of the input object
      */
     public Money subtract(Money m) {
-        return new Money(value - m.value);
+        return new Money(Math.subtractExact(pence, m.pence));
     }
  
     /**
@@ -91,18 +154,27 @@ public class Money implements Comparable<Money> {
      *         to the previous object's value incremented by a percentage of its value
      */
     public Money addPercent(double percent) {
-        return new Money(normalise(value * (1 + percent/100.0)));
+        return new Money(addBasisPoints(pence, basisPoints(percent)));
     }
      
     /**
-     * Returns this instance's value field converted to a string
+     * Returns this instance's value formatted as pounds with two decimal places
      * 
-     * @return the value field converted to a string
+     * @return the value converted to a string
      */
     @Override
     public String toString() {
-        return String.format("%.2f", value);
-        
+        long whole = Math.abs(pence / 100);
+        long fraction = Math.abs(pence % 100);
+        StringBuilder sb = new StringBuilder(24);
+        if (pence < 0) {
+            sb.append('-');
+        }
+        sb.append(whole).append('.');
+        if (fraction < 10) {
+            sb.append('0');
+        }
+        return sb.append(fraction).toString();
     }
     
     /**
@@ -113,17 +185,17 @@ public class Money implements Comparable<Money> {
      *                 less if otherwise and 0 if equal
      */
     public int compareTo(Money m) {
-        return Long.compare(getNearestPence(value),  getNearestPence(m.value)); 
+        return compare(pence, m.pence); 
     }
     
     /**
-     * Compares this instance's value field with another instance's value field using the compareTo() method
+     * Compares this instance's value field with another instance's value field
      * 
      * @param another instance of Money
-     * @return True if this instance's value field is less than the the input instance's value field
+     * @return True if this instance's value field is less than or equal to the input instance's value field
      */
-    public Boolean lessEqual(Money m) {
-        return compareTo(m) <= 0;
+    public boolean lessEqual(Money m) {
+        return pence <= m.pence;
     }
     
     
@@ -139,17 +211,17 @@ public class Money implements Comparable<Money> {
     public boolean equals(Object o) {
         if (!(o instanceof Money)) return false;
         Money oM = (Money) o;
-        return compareTo(oM) == 0;       
+        return pence == oM.pence;       
     }
     
     /**
-     * Returns the hash code value as this instance's value field for this instance 
+     * Returns the hash code value as this instance's value in pence
      * 
      * @return hash code value
      */
     @Override
     public int hashCode() {
-        return Long.hashCode(getNearestPence(value));
+        return Long.hashCode(pence);
     }
       
 
@@ -99,6 +99,37 @@ public class MoneyTest {
         int result = val.hashCode();
         assertEquals(3275, result);
 }
+    
+    @Test
+    public void testNegativeToString() {
+        Money val = new Money("1.00").subtract(new Money("1.05"));
+        assertEquals("-0.05", val.toString());
+    }
+    
+    @Test
+    public void testPence() {
+        Money val = new Money("12.345");
+        assertEquals(1235, val.getPence());
+        assertEquals(val, Money.ofPence(1235));
+        assertEquals("0.00", Money.ofPence(0).toString());
+    }
+    
+    @Test
+    public void testAddBasisPoints() {
+        // 10% of 25.00, as in testAddPercent
+        assertEquals(2750, Money.addBasisPoints(2500, Money.basisPoints(10.0)));
+        // 15% commission off 100.00
+        assertEquals(8500, Money.addBasisPoints(10000, -Money.basisPoints(15.0)));
+        // half a penny rounds up
+        assertEquals(106, Money.addBasisPoints(101, 500));
+    }
+    
+    @Test
+    public void testPrimitiveCompareAndAdd() {
+        assertTrue(Money.compare(1250, 1325) < 0);
+        assertEquals(0, Money.compare(750, 750));
+        assertEquals(1300, Money.add(1234, 66));
+    }
 
     /*
      * Put all class modifications above.
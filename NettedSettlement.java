@@ -0,0 +1,147 @@
+package auctionhouse;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One run of netted settlement: the payments still owed on a batch of
+ * sales, netted into at most one transfer per bank account.
+ *
+ * A sale owes two legs, the buyer's payment to the house and the house's
+ * payout to the seller. Every unpaid leg is added to the balance of its
+ * account, so a buyer who won many lots pays once and a seller who sold
+ * many is paid once, and an account that both buys and sells pays or is
+ * paid only the difference. When the transfers are made, each leg is
+ * marked paid if its account's transfer succeeded, and a sale is settled
+ * once both its legs are paid. Legs paid are not owed again if the sale
+ * has to wait for another run.
+ *
+ * Not thread-safe: a run is made by one thread at a time.
+ */
+final class NettedSettlement {
+
+    /**
+     * A lot sold pending payment, waiting to be settled.
+     */
+    static final class Sale {
+        final Lot lot;
+        final String buyerAccount;
+        final String buyerAuthCode;
+        final String sellerAccount;
+        final long buyerPence;
+        final long sellerPence;
+        boolean buyerPaid;
+        boolean sellerPaid;
+
+        Sale(Lot lot, String buyerAccount, String buyerAuthCode, String sellerAccount,
+                long buyerPence, long sellerPence) {
+            this.lot = lot;
+            this.buyerAccount = buyerAccount;
+            this.buyerAuthCode = buyerAuthCode;
+            this.sellerAccount = sellerAccount;
+            this.buyerPence = buyerPence;
+            this.sellerPence = sellerPence;
+        }
+
+        boolean isPaid() {
+            return buyerPaid && sellerPaid;
+        }
+    }
+
+    /*
+     * What one account owes the house and is owed by it, over the batch.
+     */
+    private static final class Balance {
+        long owes;
+        long owed;
+        // the buyer's, for when the account has to pay
+        String authCode;
+        boolean paid;
+    }
+
+    private final String houseAccount;
+    private final String houseAuthCode;
+    private final List<Sale> sales = new ArrayList<Sale>();
+    // in the order accounts were first seen, so batches are repeatable
+    private final Map<String, Balance> balances = new LinkedHashMap<String, Balance>();
+    private final List<Balance> transferred = new ArrayList<Balance>();
+
+    NettedSettlement(String houseAccount, String houseAuthCode) {
+        this.houseAccount = houseAccount;
+        this.houseAuthCode = houseAuthCode;
+    }
+
+    void add(Sale sale) {
+        sales.add(sale);
+        if (!sale.buyerPaid) {
+            Balance buyer = balance(sale.buyerAccount);
+            buyer.owes += sale.buyerPence;
+            buyer.authCode = sale.buyerAuthCode;
+        }
+        if (!sale.sellerPaid) {
+            balance(sale.sellerAccount).owed += sale.sellerPence;
+        }
+    }
+
+    private Balance balance(String account) {
+        Balance balance = balances.get(account);
+        if (balance == null) {
+            balance = new Balance();
+            balances.put(account, balance);
+        }
+        return balance;
+    }
+
+    boolean isEmpty() {
+        return sales.isEmpty();
+    }
+
+    /**
+     * @return the netted transfers, one per account whose balance is not
+     *         zero; an account whose balance is zero is paid without one
+     */
+    List<BankingService.Transfer> transfers() {
+        List<BankingService.Transfer> transfers = new ArrayList<BankingService.Transfer>();
+        for (Map.Entry<String, Balance> entry : balances.entrySet()) {
+            Balance balance = entry.getValue();
+            long net = balance.owes - balance.owed;
+            if (net > 0) {
+                transfers.add(new BankingService.Transfer(
+                        entry.getKey(), balance.authCode, houseAccount, Money.ofPence(net)));
+                transferred.add(balance);
+            } else if (net < 0) {
+                transfers.add(new BankingService.Transfer(
+                        houseAccount, houseAuthCode, entry.getKey(), Money.ofPence(-net)));
+                transferred.add(balance);
+            } else {
+                balance.paid = true;
+            }
+        }
+        return transfers;
+    }
+
+    /**
+     * Marks the legs paid by the transfers that succeeded. A missing
+     * outcome counts as a failure.
+     *
+     * @param outcomes the outcome of each of transfers(), in order
+     * @return the sales of the batch, each now paid or still owing
+     */
+    List<Sale> apply(List<Status> outcomes) {
+        for (int i = 0; i < transferred.size(); i++) {
+            transferred.get(i).paid = i < outcomes.size() && outcomes.get(i).kind == Status.Kind.OK;
+        }
+        for (Sale sale : sales) {
+            if (!sale.buyerPaid) {
+                sale.buyerPaid = balances.get(sale.buyerAccount).paid;
+            }
+            if (!sale.sellerPaid) {
+                sale.sellerPaid = balances.get(sale.sellerAccount).paid;
+            }
+        }
+        return sales;
+    }
+
+}
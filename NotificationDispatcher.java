@@ -0,0 +1,338 @@
+package auctionhouse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A MessagingService that queues notifications and delivers them to another
+ * MessagingService on background worker threads.
+ *
+ * Each call only places an event on a bounded queue, so an AuctionHouse
+ * using a dispatcher returns as soon as its state has changed rather than
+ * after every watcher has been contacted. Workers take events off the queue
+ * in batches of up to batchSize and pass them to the delegate one by one.
+ * When the queue is full the OverflowPolicy decides what happens to a new
+ * event.
+ *
+ * With more than one worker the delegate is called concurrently and events
+ * may be delivered out of order; use a single worker where the order of
+ * notifications to an address matters.
+ */
+public class NotificationDispatcher implements MessagingService, AutoCloseable {
+    private static Logger logger = Logger.getLogger("auctionhouse");
+
+    public static enum OverflowPolicy {
+        BLOCK,       // the caller waits for space on the queue
+        DROP_OLDEST, // the oldest queued event is discarded to make space
+        REJECT       // the new event is discarded
+    }
+
+    private static enum Kind {
+        OPENED, BID, SOLD, UNSOLD
+    }
+
+    // sent to address, or to all of addresses when address is null
+    private static final class Notification {
+        final Kind kind;
+        final String address;
+        final String[] addresses;
+        final int lotNumber;
+        final Money amount;
+        final long queuedAt;
+
+        Notification(Kind kind, String address, String[] addresses, int lotNumber, Money amount) {
+            this.kind = kind;
+            this.address = address;
+            this.addresses = addresses;
+            this.lotNumber = lotNumber;
+            this.amount = amount;
+            this.queuedAt = System.nanoTime();
+        }
+    }
+
+    private final MessagingService delegate;
+    private final BlockingQueue<Notification> queue;
+    private final int batchSize;
+    private final OverflowPolicy overflowPolicy;
+    private final Thread[] workers;
+    private volatile boolean closed;
+    // submitters part way through queueing an event, striped so that bidding threads do not contend
+    private final LongAdder submitting = new LongAdder();
+
+    // events accepted onto the queue, and events since delivered or dropped
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong finished = new AtomicLong();
+    private final Object progress = new Object();
+
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder drainLatencyNanos = new LongAdder();
+    private final AtomicLong maxDrainLatencyNanos = new AtomicLong();
+
+    public NotificationDispatcher(
+            MessagingService delegate,
+            int queueCapacity,
+            int batchSize,
+            int workerCount,
+            OverflowPolicy overflowPolicy) {
+        if (queueCapacity < 1 || batchSize < 1 || workerCount < 1) {
+            throw new IllegalArgumentException("Queue capacity, batch size and worker count must be positive");
+        }
+        this.delegate = delegate;
+        this.queue = new ArrayBlockingQueue<Notification>(queueCapacity);
+        this.batchSize = batchSize;
+        this.overflowPolicy = overflowPolicy;
+        this.workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(this::drain, "notification-dispatcher-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /*
+     * Implementation of MessagingService interface
+     */
+
+    public void auctionOpened(String address, int lotNumber) {
+        submit(new Notification(Kind.OPENED, address, null, lotNumber, null));
+    }
+
+    public void bidAccepted(String address, int lotNumber, Money amount) {
+        submit(new Notification(Kind.BID, address, null, lotNumber, amount));
+    }
+
+    public void lotSold(String address, int lotNumber) {
+        submit(new Notification(Kind.SOLD, address, null, lotNumber, null));
+    }
+
+    public void lotUnsold(String address, int lotNumber) {
+        submit(new Notification(Kind.UNSOLD, address, null, lotNumber, null));
+    }
+
+    // a multicast is queued as one event and passed on as one multicast
+
+    public void auctionOpened(String[] addresses, int lotNumber) {
+        submit(new Notification(Kind.OPENED, null, addresses, lotNumber, null));
+    }
+
+    public void bidAccepted(String[] addresses, int lotNumber, Money amount) {
+        submit(new Notification(Kind.BID, null, addresses, lotNumber, amount));
+    }
+
+    public void lotSold(String[] addresses, int lotNumber) {
+        submit(new Notification(Kind.SOLD, null, addresses, lotNumber, null));
+    }
+
+    public void lotUnsold(String[] addresses, int lotNumber) {
+        submit(new Notification(Kind.UNSOLD, null, addresses, lotNumber, null));
+    }
+
+    /*
+     * A submitter is counted before it checks closed, and the workers check
+     * closed before the count. So once a worker has seen closed with no
+     * submitter counted, any later submitter sees closed too and queues
+     * nothing, and a worker stops only when every accepted event has been
+     * delivered or dropped. A submitter blocked on a full queue keeps the
+     * workers going until they have made room for it.
+     */
+    private void submit(Notification n) {
+        submitting.increment();
+        try {
+            if (closed) {
+                rejected.increment();
+                return;
+            }
+            queue(n);
+        } finally {
+            submitting.decrement();
+        }
+    }
+
+    private void queue(Notification n) {
+        // counted before it is queued, so that flush() never overtakes it
+        accepted.incrementAndGet();
+        switch (overflowPolicy) {
+        case BLOCK:
+            try {
+                queue.put(n);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rejected.increment();
+                finish(1);
+            }
+            break;
+        case DROP_OLDEST:
+            while (!queue.offer(n)) {
+                if (queue.poll() != null) {
+                    dropped.increment();
+                    finish(1);
+                }
+            }
+            break;
+        case REJECT:
+            if (!queue.offer(n)) {
+                rejected.increment();
+                finish(1);
+            }
+            break;
+        }
+    }
+
+    /*
+     * Worker loop: wait for one event, then take whatever else is queued
+     * up to the batch size and deliver the lot.
+     */
+    private void drain() {
+        List<Notification> batch = new ArrayList<Notification>(batchSize);
+        while (true) {
+            Notification first;
+            try {
+                first = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                first = null;
+            }
+            if (first == null) {
+                if (closed && submitting.sum() == 0 && queue.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+            batch.add(first);
+            queue.drainTo(batch, batchSize - 1);
+            for (Notification n : batch) {
+                deliver(n);
+            }
+            finish(batch.size());
+            batch.clear();
+        }
+    }
+
+    private void deliver(Notification n) {
+        try {
+            if (n.address != null) {
+                deliverSingle(n);
+            } else {
+                deliverMulticast(n);
+            }
+            delivered.increment();
+            long latency = System.nanoTime() - n.queuedAt;
+            drainLatencyNanos.add(latency);
+            maxDrainLatencyNanos.accumulateAndGet(latency, Math::max);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Notification of lot " + n.lotNumber + " failed", e);
+        }
+    }
+
+    private void deliverSingle(Notification n) {
+        switch (n.kind) {
+        case OPENED:
+            delegate.auctionOpened(n.address, n.lotNumber);
+            break;
+        case BID:
+            delegate.bidAccepted(n.address, n.lotNumber, n.amount);
+            break;
+        case SOLD:
+            delegate.lotSold(n.address, n.lotNumber);
+            break;
+        case UNSOLD:
+            delegate.lotUnsold(n.address, n.lotNumber);
+            break;
+        }
+    }
+
+    private void deliverMulticast(Notification n) {
+        switch (n.kind) {
+        case OPENED:
+            delegate.auctionOpened(n.addresses, n.lotNumber);
+            break;
+        case BID:
+            delegate.bidAccepted(n.addresses, n.lotNumber, n.amount);
+            break;
+        case SOLD:
+            delegate.lotSold(n.addresses, n.lotNumber);
+            break;
+        case UNSOLD:
+            delegate.lotUnsold(n.addresses, n.lotNumber);
+            break;
+        }
+    }
+
+    private void finish(int count) {
+        finished.addAndGet(count);
+        synchronized (progress) {
+            progress.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until every event submitted before this call has been delivered
+     * or dropped.
+     */
+    public void flush() throws InterruptedException {
+        long target = accepted.get();
+        synchronized (progress) {
+            while (finished.get() < target) {
+                progress.wait();
+            }
+        }
+    }
+
+    /**
+     * Stops accepting events, delivers those already queued and stops the
+     * workers. If interrupted, returns without waiting for the workers,
+     * which go on to deliver what is queued, with the interrupt status set.
+     */
+    public void close() {
+        closed = true;
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Statistics
+     */
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return mean time from an event being queued to its delivery
+     *         completing, in nanoseconds
+     */
+    public long getMeanDrainLatencyNanos() {
+        long count = delivered.sum();
+        return count == 0 ? 0 : drainLatencyNanos.sum() / count;
+    }
+
+    public long getMaxDrainLatencyNanos() {
+        return maxDrainLatencyNanos.get();
+    }
+
+}
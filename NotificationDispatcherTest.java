@@ -0,0 +1,154 @@
+package auctionhouse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/**
+ * Tests for the asynchronous notification pipeline.
+ */
+public class NotificationDispatcherTest {
+
+    /*
+     * Records like MockMessagingService, but holds every delivery until
+     * release() is called, so that the queue can be filled up.
+     */
+    private static class GatedMessagingService extends MockMessagingService {
+        private final CountDownLatch gate = new CountDownLatch(1);
+
+        void release() {
+            gate.countDown();
+        }
+
+        private void await() {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void auctionOpened(String address, int lotNumber) {
+            await();
+            super.auctionOpened(address, lotNumber);
+        }
+    }
+
+    private static void waitForWorkerToTakeFirst(NotificationDispatcher dispatcher) throws InterruptedException {
+        while (dispatcher.getQueueDepth() > 0) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testDeliversThroughAuctionHouse() throws Exception {
+        MockMessagingService messagingService = new MockMessagingService();
+        NotificationDispatcher dispatcher = new NotificationDispatcher(
+                messagingService, 16, 4, 1, NotificationDispatcher.OverflowPolicy.BLOCK);
+        AuctionHouse house = new AuctionHouseImp(
+                new Parameters(10.0, 15.0, new Money("10.00"), "AH A/C", "AH-auth",
+                        dispatcher, new MockBankingService()));
+
+        house.registerSeller("SellerY", "@SellerY", "SY A/C");
+        house.addLot("SellerY", 1, "Bicycle", new Money("80.00"));
+        house.registerBuyer("BuyerA", "@BuyerA", "BA A/C", "BA-auth");
+        house.registerBuyer("BuyerB", "@BuyerB", "BB A/C", "BB-auth");
+        house.noteInterest("BuyerA", 1);
+        house.noteInterest("BuyerB", 1);
+        house.openAuction("Auctioneer1", "@Auctioneer1", 1);
+        Money m70 = new Money("70.00");
+        house.makeBid("BuyerA", 1, m70);
+
+        dispatcher.flush();
+        messagingService.expectAuctionOpened("@BuyerA", 1);
+        messagingService.expectAuctionOpened("@BuyerB", 1);
+        messagingService.expectAuctionOpened("@SellerY", 1);
+        messagingService.expectBidReceived("@BuyerB", 1, m70);
+        messagingService.expectBidReceived("@Auctioneer1", 1, m70);
+        messagingService.expectBidReceived("@SellerY", 1, m70);
+        messagingService.verify();
+        // one multicast each for the opening and the bid
+        assertEquals(2, dispatcher.getDelivered());
+        assertEquals(0, dispatcher.getQueueDepth());
+        dispatcher.close();
+    }
+
+    @Test
+    public void testRejectWhenFull() throws Exception {
+        GatedMessagingService messagingService = new GatedMessagingService();
+        NotificationDispatcher dispatcher = new NotificationDispatcher(
+                messagingService, 2, 1, 1, NotificationDispatcher.OverflowPolicy.REJECT);
+
+        // the worker holds @A while @B and @C fill the queue
+        dispatcher.auctionOpened("@A", 1);
+        waitForWorkerToTakeFirst(dispatcher);
+        dispatcher.auctionOpened("@B", 1);
+        dispatcher.auctionOpened("@C", 1);
+        dispatcher.auctionOpened("@D", 1);
+        assertEquals(1, dispatcher.getRejected());
+
+        messagingService.release();
+        dispatcher.flush();
+        messagingService.expectAuctionOpened("@A", 1);
+        messagingService.expectAuctionOpened("@B", 1);
+        messagingService.expectAuctionOpened("@C", 1);
+        messagingService.verify();
+        dispatcher.close();
+    }
+
+    @Test
+    public void testDropOldestWhenFull() throws Exception {
+        GatedMessagingService messagingService = new GatedMessagingService();
+        NotificationDispatcher dispatcher = new NotificationDispatcher(
+                messagingService, 2, 1, 1, NotificationDispatcher.OverflowPolicy.DROP_OLDEST);
+
+        dispatcher.auctionOpened("@A", 1);
+        waitForWorkerToTakeFirst(dispatcher);
+        dispatcher.auctionOpened("@B", 1);
+        dispatcher.auctionOpened("@C", 1);
+        dispatcher.auctionOpened("@D", 1);
+        assertEquals(1, dispatcher.getDropped());
+
+        messagingService.release();
+        dispatcher.flush();
+        messagingService.expectAuctionOpened("@A", 1);
+        messagingService.expectAuctionOpened("@C", 1);
+        messagingService.expectAuctionOpened("@D", 1);
+        messagingService.verify();
+        assertTrue(dispatcher.getMaxDrainLatencyNanos() >= dispatcher.getMeanDrainLatencyNanos());
+        dispatcher.close();
+    }
+
+    @Test
+    public void testDeliversEverythingAcceptedBeforeClosing() throws Exception {
+        MockMessagingService messagingService = new MockMessagingService();
+        final NotificationDispatcher dispatcher = new NotificationDispatcher(
+                messagingService, 2, 1, 2, NotificationDispatcher.OverflowPolicy.BLOCK);
+        final int each = 2000;
+        Thread[] submitters = new Thread[4];
+        for (int i = 0; i < submitters.length; i++) {
+            final String address = "@" + i;
+            submitters[i] = new Thread(() -> {
+                for (int lot = 0; lot < each; lot++) {
+                    dispatcher.auctionOpened(address, lot);
+                }
+            });
+            submitters[i].start();
+        }
+        Thread.sleep(5);
+        dispatcher.close();
+        for (Thread submitter : submitters) {
+            submitter.join();
+        }
+
+        // each event was either delivered or turned away, none left queued
+        dispatcher.flush();
+        assertEquals(submitters.length * each, dispatcher.getDelivered() + dispatcher.getRejected());
+        assertEquals(0, dispatcher.getQueueDepth());
+    }
+
+}
@@ -0,0 +1,263 @@
+package auctionhouse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Retries the payments of lots sold pending payment on background worker
+ * threads, until both of a sale's transfers have been made.
+ *
+ * Sales wait in a delay queue ordered by when they are next due, so any
+ * number of them costs no more threads than the workers. Each worker makes
+ * one bank call at a time, so the number of workers caps the calls in
+ * flight. A transfer that has been made is not made again: only the legs
+ * still owed are retried.
+ *
+ * After each failed attempt the wait doubles, from the initial delay up to
+ * the maximum, and is jittered between half and all of that, so that sales
+ * that failed together, as when the bank was down, do not retry together.
+ *
+ * Closing the retrier hands the sales still waiting, and any added or
+ * failing again afterwards, back to the house. They stay
+ * SOLD_PENDING_PAYMENT, queued for AuctionHouseImp.settleQueued, and the
+ * house may start another retrier.
+ */
+public class PaymentRetrier implements AutoCloseable {
+    private static Logger logger = Logger.getLogger("auctionhouse");
+
+    private static final class Retry implements Delayed {
+        final NettedSettlement.Sale sale;
+        final long pendingSince;
+        int attempts;
+        long due;
+
+        Retry(NettedSettlement.Sale sale) {
+            this.sale = sale;
+            this.pendingSince = System.nanoTime();
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        public int compareTo(Delayed other) {
+            return Long.compare(due, ((Retry) other).due);
+        }
+    }
+
+    private final BankingService bankingService;
+    private final String houseAccount;
+    private final String houseAuthCode;
+    // called once a sale's payments have all been made
+    private final Consumer<NettedSettlement.Sale> paid;
+    // called with each sale not paid for once the retrier is closed
+    private final Consumer<NettedSettlement.Sale> unpaid;
+    // called once closed, after the waiting sales have been handed back
+    private final Consumer<PaymentRetrier> onClose;
+    private final long initialDelayNanos;
+    private final long maxDelayNanos;
+    private final DelayQueue<Retry> queue = new DelayQueue<Retry>();
+    private final Thread[] workers;
+    private volatile boolean closed;
+    // held while a sale is queued and while closing, so none is queued after
+    private final Object lock = new Object();
+
+    private final LongAdder attempts = new LongAdder();
+    private final LongAdder recovered = new LongAdder();
+    private final LongAdder pendingNanos = new LongAdder();
+    private final AtomicLong maxPendingNanos = new AtomicLong();
+
+    /*
+     * Created by AuctionHouseImp.retryPayments, which sells each lot once
+     * it is paid for, takes back the sales left unpaid on closing and then
+     * forgets the retrier.
+     */
+    PaymentRetrier(
+            BankingService bankingService,
+            String houseAccount,
+            String houseAuthCode,
+            Consumer<NettedSettlement.Sale> paid,
+            Consumer<NettedSettlement.Sale> unpaid,
+            Consumer<PaymentRetrier> onClose,
+            long initialDelay,
+            long maxDelay,
+            TimeUnit unit,
+            int maxInFlight) {
+        if (initialDelay < 1 || maxDelay < initialDelay || maxInFlight < 1) {
+            throw new IllegalArgumentException(
+                    "Delays must be positive, the maximum no less than the initial, and calls in flight positive");
+        }
+        this.bankingService = bankingService;
+        this.houseAccount = houseAccount;
+        this.houseAuthCode = houseAuthCode;
+        this.paid = paid;
+        this.unpaid = unpaid;
+        this.onClose = onClose;
+        this.initialDelayNanos = unit.toNanos(initialDelay);
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.workers = new Thread[maxInFlight];
+        for (int i = 0; i < maxInFlight; i++) {
+            workers[i] = new Thread(this::work, "payment-retrier-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /*
+     * Retries the payments sale still owes, after the initial delay, or
+     * hands it back as unpaid if the retrier has been closed.
+     */
+    void add(NettedSettlement.Sale sale) {
+        schedule(new Retry(sale));
+    }
+
+    private void schedule(Retry retry) {
+        synchronized (lock) {
+            if (!closed) {
+                retry.due = System.nanoTime() + backoffNanos(retry.attempts);
+                queue.add(retry);
+                return;
+            }
+        }
+        unpaid.accept(retry.sale);
+    }
+
+    /*
+     * @return the wait after attempts failed attempts: a random time
+     *         between half and all of the doubled delay
+     */
+    long backoffNanos(int attempts) {
+        long ceiling = initialDelayNanos;
+        for (int i = 0; i < attempts && ceiling < maxDelayNanos; i++) {
+            ceiling *= 2;
+        }
+        ceiling = Math.min(ceiling, maxDelayNanos);
+        return ceiling - ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    private void work() {
+        while (!closed) {
+            Retry retry;
+            try {
+                retry = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                retry = null;
+            }
+            if (retry != null) {
+                attempt(retry);
+            }
+        }
+    }
+
+    private void attempt(Retry retry) {
+        NettedSettlement.Sale sale = retry.sale;
+        attempts.increment();
+        retry.attempts++;
+        try {
+            if (!sale.buyerPaid) {
+                sale.buyerPaid = bankingService.transfer(sale.buyerAccount, sale.buyerAuthCode,
+                        houseAccount, Money.ofPence(sale.buyerPence)).kind == Status.Kind.OK;
+            }
+            if (!sale.sellerPaid) {
+                sale.sellerPaid = bankingService.transfer(houseAccount, houseAuthCode,
+                        sale.sellerAccount, Money.ofPence(sale.sellerPence)).kind == Status.Kind.OK;
+            }
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Payment for lot " + sale.lot.getLotNumber() + " failed", e);
+        }
+        if (!sale.isPaid()) {
+            schedule(retry);
+            return;
+        }
+        long pending = System.nanoTime() - retry.pendingSince;
+        pendingNanos.add(pending);
+        maxPendingNanos.accumulateAndGet(pending, Math::max);
+        recovered.increment();
+        logger.fine("Lot " + sale.lot.getLotNumber() + " paid for after " + retry.attempts + " retries");
+        try {
+            paid.accept(sale);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Sale of lot " + sale.lot.getLotNumber() + " failed", e);
+        }
+    }
+
+    /**
+     * Hands the sales still waiting back to the house and stops the workers
+     * once their current attempts are done. If interrupted, returns without
+     * waiting for the workers, with the interrupt status set.
+     */
+    public void close() {
+        List<Retry> waiting = new ArrayList<Retry>();
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            // drainTo would only take the sales already due
+            for (Retry retry : queue.toArray(new Retry[0])) {
+                if (queue.remove(retry)) {
+                    waiting.add(retry);
+                }
+            }
+        }
+        for (Retry retry : waiting) {
+            unpaid.accept(retry.sale);
+        }
+        onClose.accept(this);
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Statistics
+     */
+
+    /**
+     * @return the number of sales waiting for their next attempt
+     */
+    public int getPending() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of attempts made, over all sales
+     */
+    public long getAttempts() {
+        return attempts.sum();
+    }
+
+    /**
+     * @return the number of sales whose payments have all been made
+     */
+    public long getRecovered() {
+        return recovered.sum();
+    }
+
+    /**
+     * @return mean time from a sale being handed over to its payments all
+     *         being made, in nanoseconds
+     */
+    public long getMeanPendingNanos() {
+        long count = recovered.sum();
+        return count == 0 ? 0 : pendingNanos.sum() / count;
+    }
+
+    public long getMaxPendingNanos() {
+        return maxPendingNanos.get();
+    }
+
+}
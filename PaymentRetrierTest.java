@@ -0,0 +1,203 @@
+package auctionhouse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for retrying the payments of lots sold pending payment.
+ */
+public class PaymentRetrierTest {
+
+    @BeforeClass
+    public static void quietLogger() {
+        Logger.getLogger("auctionhouse").setLevel(Level.SEVERE);
+    }
+
+    /*
+     * Refuses transfers from or to an account until it has been tried a
+     * given number of times, and counts the transfers made to each account
+     * and the most calls in flight at once.
+     */
+    private static class FlakyBankingService implements BankingService {
+        private final ConcurrentHashMap<String, AtomicInteger> failuresLeft = new ConcurrentHashMap<String, AtomicInteger>();
+        private final ConcurrentHashMap<String, AtomicInteger> received = new ConcurrentHashMap<String, AtomicInteger>();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger maxInFlight = new AtomicInteger();
+
+        void failFirst(String account, int failures) {
+            failuresLeft.put(account, new AtomicInteger(failures));
+        }
+
+        int received(String account) {
+            AtomicInteger count = received.get(account);
+            return count == null ? 0 : count.get();
+        }
+
+        private boolean fails(String account) {
+            AtomicInteger left = failuresLeft.get(account);
+            return left != null && left.getAndDecrement() > 0;
+        }
+
+        public Status transfer(String senderAccount, String senderAuthCode, String receiverAccount, Money amount) {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(1);
+                if (fails(senderAccount) || fails(receiverAccount)) {
+                    return Status.error("Transfer failed");
+                }
+                received.computeIfAbsent(receiverAccount, account -> new AtomicInteger()).incrementAndGet();
+                return Status.OK();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Status.error("Interrupted");
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private static AuctionHouseImp newHouse(MessagingService messagingService, BankingService bankingService) {
+        return new AuctionHouseImp(
+                new Parameters(10.0, 15.0, new Money("10.00"), "AH A/C", "AH-auth",
+                        messagingService, bankingService));
+    }
+
+    /*
+     * Sells lots 0 to lots - 1 from SellerY, each to the buyer numbered
+     * its lot number modulo buyers.
+     *
+     * @return the number of lots left pending payment on closing
+     */
+    private static int sell(AuctionHouseImp house, int lots, int buyers) {
+        house.registerSeller("SellerY", "@SellerY", "SY A/C");
+        for (int b = 0; b < buyers; b++) {
+            house.registerBuyer("Buyer" + b, "@Buyer" + b, "B" + b + " A/C", "B" + b + "-auth");
+        }
+        int pending = 0;
+        for (int n = 0; n < lots; n++) {
+            house.addLot("SellerY", n, "Lot " + n, new Money("80.00"));
+            house.noteInterest(n % buyers, n);
+            house.openAuction("Auctioneer", "@Auctioneer", n);
+            house.makeBid(n % buyers, n, new Money("100.00"));
+            if (house.closeAuction("Auctioneer", n).kind == Status.Kind.SALE_PENDING_PAYMENT) {
+                pending++;
+            }
+        }
+        return pending;
+    }
+
+    private static void awaitSold(AuctionHouse house, int lots) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (house.countLots(LotStatus.SOLD) < lots && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(lots, house.countLots(LotStatus.SOLD));
+    }
+
+    @Test
+    public void testRetriesOnlyTheFailedTransferUntilPaid() throws Exception {
+        FlakyBankingService bank = new FlakyBankingService();
+        MockMessagingService messagingService = new MockMessagingService();
+        AuctionHouseImp house = newHouse(messagingService, bank);
+        try (PaymentRetrier retrier = house.retryPayments(1, 4, TimeUnit.MILLISECONDS, 1)) {
+            // the buyer's payment fails on closing and on the first two retries
+            bank.failFirst("B0 A/C", 3);
+            assertEquals(1, sell(house, 1, 1));
+            awaitSold(house, 1);
+            assertEquals(3, retrier.getAttempts());
+            assertEquals(1, retrier.getRecovered());
+            assertEquals(0, retrier.getPending());
+            assertTrue(retrier.getMaxPendingNanos() >= retrier.getMeanPendingNanos());
+            // the seller was paid on closing, and not again
+            assertEquals(1, bank.received("SY A/C"));
+            assertEquals(1, bank.received("AH A/C"));
+        }
+        messagingService.expectAuctionOpened("@Buyer0", 0);
+        messagingService.expectAuctionOpened("@SellerY", 0);
+        messagingService.expectBidReceived("@SellerY", 0, new Money("100.00"));
+        messagingService.expectBidReceived("@Auctioneer", 0, new Money("100.00"));
+        messagingService.expectLotSold("@Buyer0", 0);
+        messagingService.expectLotSold("@SellerY", 0);
+        messagingService.verify();
+    }
+
+    @Test
+    public void testCapsCallsInFlight() throws Exception {
+        final int lots = 200;
+        FlakyBankingService bank = new FlakyBankingService();
+        AuctionHouseImp house = newHouse(new CountingMessagingService(), bank);
+        try (PaymentRetrier retrier = house.retryPayments(1, 8, TimeUnit.MILLISECONDS, 4)) {
+            // payments out of the house fail until every lot is closed, then as
+            // many more times as there are lots
+            bank.failFirst("SY A/C", Integer.MAX_VALUE);
+            assertEquals(lots, sell(house, lots, 50));
+            bank.maxInFlight.set(0);
+            bank.failFirst("SY A/C", lots);
+            awaitSold(house, lots);
+            assertEquals(lots, retrier.getRecovered());
+            assertTrue(retrier.getAttempts() >= 2 * lots);
+            assertEquals(lots, bank.received("SY A/C"));
+            assertEquals(lots, bank.received("AH A/C"));
+        }
+        assertTrue(bank.maxInFlight.get() <= 4);
+    }
+
+    @Test
+    public void testHandsSalesBackOnceClosed() throws Exception {
+        FlakyBankingService bank = new FlakyBankingService();
+        AuctionHouseImp house = newHouse(new CountingMessagingService(), bank);
+        PaymentRetrier retrier = house.retryPayments(1, 4, TimeUnit.MILLISECONDS, 1);
+        retrier.close();
+        // the buyer's payment fails on closing, after the retrier has gone
+        bank.failFirst("B0 A/C", 1);
+        assertEquals(1, sell(house, 1, 1));
+        Thread.sleep(20);
+        assertEquals(0, retrier.getAttempts());
+        assertEquals(1, house.countLots(LotStatus.SOLD_PENDING_PAYMENT));
+        // queued for settling, owing only the buyer's payment
+        assertEquals(1, house.settleQueued());
+        assertEquals(1, house.countLots(LotStatus.SOLD));
+        assertEquals(1, bank.received("SY A/C"));
+        // and the house can retry payments again
+        house.retryPayments(1, 4, TimeUnit.MILLISECONDS, 1).close();
+    }
+
+    @Test
+    public void testHandsWaitingSalesBackOnClosing() throws Exception {
+        FlakyBankingService bank = new FlakyBankingService();
+        AuctionHouseImp house = newHouse(new CountingMessagingService(), bank);
+        PaymentRetrier retrier = house.retryPayments(1, 1, TimeUnit.SECONDS, 1);
+        bank.failFirst("B0 A/C", 1);
+        assertEquals(1, sell(house, 1, 1));
+        assertEquals(1, retrier.getPending());
+        retrier.close();
+        assertEquals(0, retrier.getPending());
+        assertEquals(1, house.settleQueued());
+        assertEquals(1, house.countLots(LotStatus.SOLD));
+    }
+
+    @Test
+    public void testBacksOffWithJitterUpToTheMaximum() throws Exception {
+        AuctionHouseImp house = newHouse(new CountingMessagingService(), new CountingBankingService());
+        try (PaymentRetrier retrier = house.retryPayments(10, 100, TimeUnit.MILLISECONDS, 1)) {
+            long[] ceilings = { 10, 20, 40, 80, 100, 100 };
+            for (int attempts = 0; attempts < ceilings.length; attempts++) {
+                long ceiling = TimeUnit.MILLISECONDS.toNanos(ceilings[attempts]);
+                for (int i = 0; i < 100; i++) {
+                    long backoff = retrier.backoffNanos(attempts);
+                    assertTrue(backoff >= ceiling / 2 && backoff <= ceiling);
+                }
+            }
+        }
+    }
+
+}
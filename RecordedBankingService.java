@@ -0,0 +1,49 @@
+package auctionhouse;
+
+import java.util.List;
+
+/**
+ * A BankingService that records a flight recorder event for each call it
+ * passes on (see HouseEvents).
+ */
+final class RecordedBankingService implements BankingService {
+    private final BankingService delegate;
+
+    RecordedBankingService(BankingService delegate) {
+        this.delegate = delegate;
+    }
+
+    public Status transfer(String senderAccount, String senderAuthCode, String receiverAccount, Money amount) {
+        if (!HouseEvents.BANK_TRANSFER.isEnabled()) {
+            return delegate.transfer(senderAccount, senderAuthCode, receiverAccount, amount);
+        }
+        HouseEvents.BankTransfer event = new HouseEvents.BankTransfer();
+        event.senderAccount = senderAccount;
+        event.receiverAccount = receiverAccount;
+        event.amountPence = amount.getPence();
+        event.begin();
+        Status status = delegate.transfer(senderAccount, senderAuthCode, receiverAccount, amount);
+        event.outcome = status.kind.name();
+        event.commit();
+        return status;
+    }
+
+    public List<Status> transferBatch(List<Transfer> transfers) {
+        if (!HouseEvents.BANK_TRANSFER_BATCH.isEnabled()) {
+            return delegate.transferBatch(transfers);
+        }
+        HouseEvents.BankTransferBatch event = new HouseEvents.BankTransferBatch();
+        event.transfers = transfers.size();
+        event.begin();
+        List<Status> outcomes = delegate.transferBatch(transfers);
+        int failed = transfers.size() - outcomes.size();
+        for (Status outcome : outcomes) {
+            if (outcome.kind != Status.Kind.OK) {
+                failed++;
+            }
+        }
+        event.failed = failed;
+        event.commit();
+        return outcomes;
+    }
+}
@@ -0,0 +1,79 @@
+package auctionhouse;
+
+/**
+ * A MessagingService that records a flight recorder event for each
+ * notification it passes on (see HouseEvents).
+ */
+final class RecordedMessagingService implements MessagingService {
+    private final MessagingService delegate;
+
+    RecordedMessagingService(MessagingService delegate) {
+        this.delegate = delegate;
+    }
+
+    private static HouseEvents.Notification begin(String notification, int lotNumber, int fanOut) {
+        if (!HouseEvents.NOTIFICATION.isEnabled()) {
+            return null;
+        }
+        HouseEvents.Notification event = new HouseEvents.Notification();
+        event.notification = notification;
+        event.lotNumber = lotNumber;
+        event.fanOut = fanOut;
+        event.begin();
+        return event;
+    }
+
+    private static void end(HouseEvents.Notification event) {
+        if (event != null) {
+            event.commit();
+        }
+    }
+
+    public void auctionOpened(String address, int lotNumber) {
+        HouseEvents.Notification event = begin("auctionOpened", lotNumber, 1);
+        delegate.auctionOpened(address, lotNumber);
+        end(event);
+    }
+
+    public void bidAccepted(String address, int lotNumber, Money amount) {
+        HouseEvents.Notification event = begin("bidAccepted", lotNumber, 1);
+        delegate.bidAccepted(address, lotNumber, amount);
+        end(event);
+    }
+
+    public void lotSold(String address, int lotNumber) {
+        HouseEvents.Notification event = begin("lotSold", lotNumber, 1);
+        delegate.lotSold(address, lotNumber);
+        end(event);
+    }
+
+    public void lotUnsold(String address, int lotNumber) {
+        HouseEvents.Notification event = begin("lotUnsold", lotNumber, 1);
+        delegate.lotUnsold(address, lotNumber);
+        end(event);
+    }
+
+    public void auctionOpened(String[] addresses, int lotNumber) {
+        HouseEvents.Notification event = begin("auctionOpened", lotNumber, addresses.length);
+        delegate.auctionOpened(addresses, lotNumber);
+        end(event);
+    }
+
+    public void bidAccepted(String[] addresses, int lotNumber, Money amount) {
+        HouseEvents.Notification event = begin("bidAccepted", lotNumber, addresses.length);
+        delegate.bidAccepted(addresses, lotNumber, amount);
+        end(event);
+    }
+
+    public void lotSold(String[] addresses, int lotNumber) {
+        HouseEvents.Notification event = begin("lotSold", lotNumber, addresses.length);
+        delegate.lotSold(addresses, lotNumber);
+        end(event);
+    }
+
+    public void lotUnsold(String[] addresses, int lotNumber) {
+        HouseEvents.Notification event = begin("lotUnsold", lotNumber, addresses.length);
+        delegate.lotUnsold(addresses, lotNumber);
+        end(event);
+    }
+}
@@ -0,0 +1,509 @@
+package auctionhouse;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Point-in-time copies of the state of an AuctionHouseImp, each taken at a
+ * journal position, so that a restart can load the newest copy and replay
+ * only the journal after it (see Journal).
+ *
+ * A snapshot is written while the house keeps changing, so it may include
+ * some changes recorded after its position. That is harmless: every change
+ * recorded before the position is included, and replaying a later change
+ * on top of a state that already includes it leaves the same state.
+ *
+ * Snapshots are written to a temporary file and renamed into place once
+ * complete, so a crash while writing one leaves the previous snapshot in
+ * use. Only the newest snapshot is kept.
+ *
+ * The format is a header, the buyers and sellers in id order, then each
+ * lot as a LotRecord, ended by a zero byte. An index follows the lots: the
+ * number and file offset of every lot, then for each status the positions
+ * in that index of the lots in it, then the offset of the index itself. A
+ * CRC32 of everything before it ends the file. Ints and longs are
+ * big-endian and strings are an int length followed by UTF-8 bytes.
+ *
+ * With Loading.MAPPED, the newest snapshot is memory-mapped instead of read,
+ * and each lot is only read from it when first used (see MappedLots), so
+ * the time to restart does not grow with the number of lots. Buyers and
+ * sellers are still read at once. The CRC32 of a mapped snapshot is not
+ * checked, as that would read the whole file; its header and index are.
+ */
+public class SnapshotStore {
+    private static Logger logger = Logger.getLogger("auctionhouse");
+
+    /**
+     * How a snapshot is loaded.
+     */
+    public enum Loading {
+        // every lot is read into the heap before the house starts
+        EAGER,
+        // the file is mapped and lots are read from it as they are used
+        MAPPED
+    }
+
+    private static final int MAGIC = 0x41485332; // "AHS2"
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".snap";
+    private static final int BUFFER_SIZE = 1 << 20;
+    // the CRC32 that ends the file, as a long
+    private static final int TRAILER = 8;
+    // the offset of the index, before the trailer
+    private static final int FOOTER = 8;
+
+    private final Path directory;
+    private final Loading loading;
+
+    public SnapshotStore(Path directory) throws IOException {
+        this(directory, Loading.EAGER);
+    }
+
+    public SnapshotStore(Path directory, Loading loading) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.loading = loading;
+    }
+
+    private Path snapshot(long position) {
+        return directory.resolve(String.format("%s%016x%s", PREFIX, position, SUFFIX));
+    }
+
+    /*
+     * The positions of the snapshots in the directory, oldest first.
+     */
+    private List<Long> positions() throws IOException {
+        List<Long> positions = new ArrayList<Long>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                positions.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()), 16));
+            }
+        }
+        Collections.sort(positions);
+        return positions;
+    }
+
+    /**
+     * Writes a snapshot of the given state, taken at journal position
+     * position, then deletes any older snapshot.
+     */
+    public void write(
+            long position,
+            UserTable<Buyer> buyers,
+            UserTable<Seller> sellers,
+            LotStore lots) throws IOException {
+        Path temporary = directory.resolve(PREFIX + Long.toHexString(position) + ".tmp");
+        LotIndex index = new LotIndex(lots.size());
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Output out = new Output(channel);
+            out.need(12);
+            out.buffer.putInt(MAGIC).putLong(position);
+
+            int buyerCount = buyers.size();
+            out.need(4);
+            out.buffer.putInt(buyerCount);
+            for (int id = 0; id < buyerCount; id++) {
+                Buyer buyer = buyers.get(id);
+                out.putString(buyer.getName());
+                out.putString(buyer.getAddress());
+                out.putString(buyer.getAccount());
+                out.putString(buyer.getAuthCode());
+            }
+            int sellerCount = sellers.size();
+            out.need(4);
+            out.buffer.putInt(sellerCount);
+            for (int id = 0; id < sellerCount; id++) {
+                Seller seller = sellers.get(id);
+                out.putString(seller.getName());
+                out.putString(seller.getAddress());
+                out.putString(seller.getAccount());
+            }
+
+            // lots still only in a mapped snapshot are copied from it as they are
+            LotStore.Cursor cursor = lots.cursor(null, Long.MIN_VALUE);
+            while (cursor.next()) {
+                long offset = out.position();
+                Lot lot = cursor.lot();
+                if (lot != null) {
+                    index.add(lot.lotNumber, offset, writeLot(out, lot));
+                } else {
+                    ByteBuffer record = cursor.record();
+                    out.need(record.remaining());
+                    out.buffer.put(record);
+                    index.add(cursor.lotNumber(), offset, cursor.status());
+                }
+            }
+            out.need(1);
+            out.buffer.put((byte) 0);
+            index.write(out);
+            out.finish();
+            channel.force(true);
+        }
+        Files.move(temporary, snapshot(position), StandardCopyOption.ATOMIC_MOVE);
+        logger.info("Wrote snapshot of " + index.size + " lots at journal position " + position);
+        for (long older : positions()) {
+            if (older < position) {
+                Files.delete(snapshot(older));
+            }
+        }
+    }
+
+    /*
+     * @return the status written, which the index must agree with
+     */
+    private static LotStatus writeLot(Output out, Lot lot) throws IOException {
+        byte[] record = LotRecord.encode(lot);
+        out.need(record.length);
+        out.buffer.put(record);
+        return LotRecord.status(ByteBuffer.wrap(record), 0);
+    }
+
+    /**
+     * Loads the newest snapshot into the given state, which must be empty.
+     *
+     * @return the journal position the snapshot was taken at, from which
+     *         the journal is to be replayed, or 0 if there is no snapshot
+     */
+    public long load(
+            UserTable<Buyer> buyers,
+            UserTable<Seller> sellers,
+            LotStore lots) throws IOException {
+        List<Long> positions = positions();
+        if (positions.isEmpty()) {
+            return 0;
+        }
+        long position = positions.get(positions.size() - 1);
+        long lotCount = 0;
+        try (FileChannel channel = FileChannel.open(snapshot(position), StandardOpenOption.READ)) {
+            if (loading == Loading.MAPPED) {
+                if (channel.size() <= Integer.MAX_VALUE) {
+                    lotCount = map(channel, snapshot(position), position, buyers, sellers, lots);
+                    logger.info("Mapped snapshot of " + lotCount + " lots at journal position " + position);
+                    return position;
+                }
+                logger.warning("Snapshot " + snapshot(position) + " is too large to map, reading it instead");
+            }
+            Input in = new Input(channel);
+            in.need(12);
+            if (in.buffer.getInt() != MAGIC || in.buffer.getLong() != position) {
+                throw new IOException("Snapshot " + snapshot(position) + " has a bad header");
+            }
+
+            in.need(4);
+            int buyerCount = in.buffer.getInt();
+            for (int id = 0; id < buyerCount; id++) {
+                String name = in.getString();
+                String address = in.getString();
+                String bankAccount = in.getString();
+                buyers.register(new Buyer(name, address, bankAccount, in.getString()));
+            }
+            in.need(4);
+            int sellerCount = in.buffer.getInt();
+            for (int id = 0; id < sellerCount; id++) {
+                String name = in.getString();
+                String address = in.getString();
+                sellers.register(new Seller(name, address, in.getString()));
+            }
+
+            while (true) {
+                in.need(1);
+                if (in.buffer.get() == 0) {
+                    break;
+                }
+                readLot(in, buyers, lots);
+                lotCount++;
+            }
+            // the index is only used by mapped loading
+            in.skip(channel.size() - FOOTER - TRAILER - in.position());
+            in.need(FOOTER);
+            in.buffer.getLong();
+            in.checkTrailer(snapshot(position));
+        }
+        logger.info("Loaded snapshot of " + lotCount + " lots at journal position " + position);
+        return position;
+    }
+
+    private static void readLot(Input in, UserTable<Buyer> buyers, LotStore lots) throws IOException {
+        in.need(4 + 4);
+        int number = in.buffer.getInt();
+        int sellerId = in.buffer.getInt();
+        String description = in.getString();
+        in.need(8 + 1 + 8 + 4 + 1);
+        Money reservePrice = Money.ofPence(in.buffer.getLong());
+        LotStatus status = LotStatus.values()[in.buffer.get()];
+        long highestBid = in.buffer.getLong();
+        int highestBidderId = in.buffer.getInt();
+        boolean opened = in.buffer.get() != 0;
+        Lot lot = new Lot(sellerId, number, description, reservePrice, LotStatus.UNSOLD);
+        lots.putIfAbsent(lot);
+        synchronized (lot) {
+            if (opened) {
+                String name = in.getString();
+                lot.setAuctioneer(new Auctioneer(name, in.getString()));
+            }
+            // most lots have never been opened, and keep the shared initial state
+            if (status != LotStatus.UNSOLD || highestBidderId != UserTable.NO_ID) {
+                lot.restore(status, Money.ofPence(highestBid), highestBidderId);
+            }
+        }
+        in.need(4);
+        int interested = in.buffer.getInt();
+        for (int i = 0; i < interested; i++) {
+            in.need(4);
+            int buyerId = in.buffer.getInt();
+            lot.addBuyer(buyerId, buyers.get(buyerId).getAddress());
+        }
+    }
+
+    /*
+     * Maps a snapshot file, reads its buyers and sellers, and hands its
+     * lots to the store to be read as they are used.
+     *
+     * @return the number of lots in the snapshot
+     */
+    private static int map(
+            FileChannel channel,
+            Path file,
+            long position,
+            UserTable<Buyer> buyers,
+            UserTable<Seller> sellers,
+            LotStore lots) throws IOException {
+        ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        try {
+            ByteBuffer in = mapped.duplicate();
+            if (in.getInt() != MAGIC || in.getLong() != position) {
+                throw new IOException("Snapshot " + file + " has a bad header");
+            }
+            int buyerCount = in.getInt();
+            for (int id = 0; id < buyerCount; id++) {
+                String name = CommandCodec.getString(in);
+                String address = CommandCodec.getString(in);
+                String bankAccount = CommandCodec.getString(in);
+                buyers.register(new Buyer(name, address, bankAccount, CommandCodec.getString(in)));
+            }
+            int sellerCount = in.getInt();
+            for (int id = 0; id < sellerCount; id++) {
+                String name = CommandCodec.getString(in);
+                String address = CommandCodec.getString(in);
+                sellers.register(new Seller(name, address, CommandCodec.getString(in)));
+            }
+            int indexOffset = (int) mapped.getLong(mapped.limit() - TRAILER - FOOTER);
+            MappedLots mappedLots = new MappedLots(mapped, in.position(), indexOffset, buyers);
+            lots.attach(mappedLots);
+            return mappedLots.size();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Snapshot " + file + " is damaged", e);
+        }
+    }
+
+    /*
+     * The number, file offset and status of each lot written, for the
+     * index that follows the lots.
+     */
+    private static final class LotIndex {
+        int size;
+        int[] numbers;
+        long[] offsets;
+        byte[] statuses;
+
+        LotIndex(int expected) {
+            // sized for the lots present at the start, plus a few added meanwhile
+            int capacity = expected + (expected >> 6) + 16;
+            numbers = new int[capacity];
+            offsets = new long[capacity];
+            statuses = new byte[capacity];
+        }
+
+        void add(int number, long offset, LotStatus status) {
+            if (size == numbers.length) {
+                int capacity = size + (size >> 1);
+                numbers = Arrays.copyOf(numbers, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+                statuses = Arrays.copyOf(statuses, capacity);
+            }
+            numbers[size] = number;
+            offsets[size] = offset;
+            statuses[size] = (byte) status.ordinal();
+            size++;
+        }
+
+        void write(Output out) throws IOException {
+            long indexOffset = out.position();
+            out.need(4);
+            out.buffer.putInt(size);
+            for (int i = 0; i < size; i++) {
+                out.need(MappedLots.ENTRY);
+                out.buffer.putInt(numbers[i]).putLong(offsets[i]);
+            }
+            for (LotStatus status : LotStatus.values()) {
+                int count = 0;
+                for (int i = 0; i < size; i++) {
+                    if (statuses[i] == status.ordinal()) {
+                        count++;
+                    }
+                }
+                out.need(4);
+                out.buffer.putInt(count);
+                for (int i = 0; i < size; i++) {
+                    if (statuses[i] == status.ordinal()) {
+                        out.need(4);
+                        out.buffer.putInt(i);
+                    }
+                }
+            }
+            out.need(FOOTER);
+            out.buffer.putLong(indexOffset);
+        }
+    }
+
+    /*
+     * Buffered writing to a snapshot file, keeping the CRC32 of what has
+     * been written.
+     */
+    private static final class Output {
+        final FileChannel channel;
+        final CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        // the number of bytes flushed to channel
+        long flushed;
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        // the file offset of the next byte written
+        long position() {
+            return flushed + buffer.position();
+        }
+
+        // makes room for n more bytes in buffer
+        void need(int n) throws IOException {
+            if (buffer.remaining() < n) {
+                flush();
+                if (buffer.capacity() < n) {
+                    buffer = ByteBuffer.allocate(n);
+                }
+            }
+        }
+
+        void putString(String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            need(4 + bytes.length);
+            buffer.putInt(bytes.length).put(bytes);
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            flushed += buffer.remaining();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        // writes what is buffered, then the trailer
+        void finish() throws IOException {
+            flush();
+            buffer.putLong(crc.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /*
+     * Buffered reading from a snapshot file, keeping the CRC32 of every
+     * byte read before the trailer.
+     */
+    private static final class Input {
+        final FileChannel channel;
+        final CRC32 crc = new CRC32();
+        // the number of bytes before the trailer not yet added to crc
+        long unchecked;
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        Input(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.unchecked = channel.size() - TRAILER;
+            buffer.flip();
+        }
+
+        // reads until at least n bytes are buffered
+        void need(int n) throws IOException {
+            if (buffer.remaining() >= n) {
+                return;
+            }
+            if (buffer.capacity() < n) {
+                ByteBuffer larger = ByteBuffer.allocate(n);
+                larger.put(buffer);
+                larger.flip();
+                buffer = larger;
+            }
+            buffer.compact();
+            int start = buffer.position();
+            while (buffer.position() < n) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("Snapshot ends unexpectedly");
+                }
+            }
+            ByteBuffer read = buffer.duplicate();
+            read.flip();
+            read.position(start);
+            if (read.remaining() > unchecked) {
+                read.limit(start + (int) Math.max(0, unchecked));
+            }
+            unchecked -= read.remaining();
+            crc.update(read);
+            buffer.flip();
+        }
+
+        // the file offset of the next byte to be read
+        long position() throws IOException {
+            return channel.position() - buffer.remaining();
+        }
+
+        void skip(long n) throws IOException {
+            while (n > 0) {
+                int step = (int) Math.min(n, BUFFER_SIZE);
+                need(step);
+                buffer.position(buffer.position() + step);
+                n -= step;
+            }
+        }
+
+        String getString() throws IOException {
+            need(4);
+            int length = buffer.getInt();
+            need(length);
+            String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                    StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return s;
+        }
+
+        void checkTrailer(Path file) throws IOException {
+            need(TRAILER);
+            if (unchecked != 0 || buffer.getLong() != crc.getValue() || buffer.hasRemaining()) {
+                throw new IOException("Snapshot " + file + " is damaged");
+            }
+        }
+    }
+
+}
@@ -4,6 +4,13 @@
 package auctionhouse;
 
 /**
+ * The outcome of an AuctionHouse or BankingService call.
+ *
+ * Every outcome the house knows of has a Code, and each Code one Status,
+ * made up front and shared, so that returning it allocates nothing: a
+ * rejected bid costs no garbage however many are made. A Status is
+ * immutable and is compared by its kind or code, not by identity.
+ *
  * @author pbj
  *
  */
@@ -16,21 +23,72 @@ public class Status {
         NO_SALE
         }
 
+    public static enum Code {
+        OK(Kind.OK, ""),
+        SALE(Kind.SALE, ""),
+        SALE_PENDING_PAYMENT(Kind.SALE_PENDING_PAYMENT, ""),
+        NO_SALE(Kind.NO_SALE, ""),
+        BUYER_ALREADY_REGISTERED("This buyer has already been registerd"),
+        SELLER_ALREADY_REGISTERED("This seller has already been registered"),
+        BUYER_NOT_REGISTERED("This buyer has not been registered"),
+        SELLER_NOT_REGISTERED("This seller has not been registered"),
+        LOT_ALREADY_REGISTERED("This lot has already been registered"),
+        LOT_NOT_REGISTERED("This lot has not been registerd"),
+        LOT_ALREADY_OPENED("This lot has already been opened."),
+        LOT_NOT_OPENED("This lot has not been opened."),
+        LOT_SOLD("This lot is already sold."),
+        LOT_PENDING_PAYMENT("This lot is already sold and is pending payment."),
+        AUCTIONEER_NOT_AUTHORIZED("This auctioneer is not authorized to close this auction"),
+        BUYER_NOT_INTERESTED("Buyer has not noted interest"),
+        BID_TOO_LOW("Bid not high enough"),
+        // any other error, with a message of its own
+        OTHER(Kind.ERROR, "");
 
-    public Kind kind;
-    public String message;
+        private final Status status;
+
+        Code(String message) {
+            this(Kind.ERROR, message);
+        }
+
+        Code(Kind kind, String message) {
+            status = new Status(kind, message, this);
+        }
+    }
+
+    public final Kind kind;
+    public final String message;
+    public final Code code;
 
     public Status(Kind k) {
-        kind = k;
-        message = "";
+        this(k, "");
     }
     public Status(Kind k, String m) {
+        this(k, m, codeOf(k));
+    }
+    private Status(Kind k, String m, Code c) {
         kind = k;
         message = m;
+        code = c;
+    }
+
+    private static Code codeOf(Kind k) {
+        switch (k) {
+        case OK:
+            return Code.OK;
+        case SALE:
+            return Code.SALE;
+        case SALE_PENDING_PAYMENT:
+            return Code.SALE_PENDING_PAYMENT;
+        case NO_SALE:
+            return Code.NO_SALE;
+        default:
+            return Code.OTHER;
+        }
     }
 
     // Convenience methods
-    public static Status OK() { return new Status(Kind.OK); }
+    public static Status OK() { return Code.OK.status; }
+    public static Status of(Code code) { return code.status; }
     public static Status error(String message) {
         return new Status(Kind.ERROR, message);
     }
@@ -0,0 +1,324 @@
+package auctionhouse;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logs events of the hot paths without formatting them on the caller's
+ * thread.
+ *
+ * An event is a pattern with up to three arguments, each standing in for a
+ * {} in the pattern, as in
+ *
+ *     trace.log(Level.FINE, "makeBid {} {} {}", buyerName, lotNumber, bid);
+ *
+ * If the logger does not log the level, that is all the call costs. If it
+ * does, the pattern and the arguments are copied into the next slot of a
+ * ring allocated up front, and a background thread later formats the
+ * message and passes it to the logger. Numbers are passed as longs so
+ * that they are not boxed, and nothing is allocated on the caller's thread
+ * either way. The objects passed are formatted when the event is drained,
+ * so they should not change after being logged.
+ *
+ * When the ring is full new events are dropped rather than the caller
+ * waiting, and the number dropped is logged as a warning once the ring has
+ * room again. Events from one thread are logged in the order they were
+ * made; events from different threads may be interleaved.
+ *
+ * The background thread is started by the first event logged and parks
+ * whenever the ring is empty, to be woken by the next event, so a trace
+ * whose logger logs nothing costs no thread at all. Closing the trace logs
+ * what is in the ring and stops the thread.
+ */
+final class Trace implements AutoCloseable {
+
+    /*
+     * A slot is free for the event numbered sequence, full once sequence + 1,
+     * and free again for the event a lap later, sequence + capacity, once
+     * drained. Writers claim events by moving tail on; the one drainer
+     * follows them with head.
+     */
+    private static final class Slot {
+        volatile long sequence;
+        Level level;
+        String pattern;
+        int numbers; // bit i set when argument i is in n[i] rather than o[i]
+        int arguments;
+        final Object[] o = new Object[3];
+        final long[] n = new long[3];
+    }
+
+    private final Logger logger;
+    private final String sourceClass;
+    private final String prefix;
+    private final String suffix;
+    private final Slot[] ring;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private volatile Thread drainer;
+    // set by the drainer before it parks, so that the next event wakes it
+    private volatile boolean sleeping;
+    private volatile boolean closed;
+    // set once the drainer has logged its last event, or if it never started
+    private volatile boolean stopped;
+    // threads waiting in flush, woken through flushed as head moves on
+    private final Object flushed = new Object();
+    private volatile int flushing;
+    private final LongAdder dropped = new LongAdder();
+    private long droppedReported;
+    private final StringBuilder message = new StringBuilder();
+
+    /**
+     * @param sourceClass the class the messages are logged as coming from
+     * @param prefix written before every message
+     * @param suffix written after every message
+     * @param capacity rounded up to a power of two
+     */
+    Trace(Logger logger, String sourceClass, String prefix, String suffix, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.logger = logger;
+        this.sourceClass = sourceClass;
+        this.prefix = prefix;
+        this.suffix = suffix;
+        int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+        this.ring = new Slot[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Slot();
+            ring[i].sequence = i;
+        }
+    }
+
+    boolean isLoggable(Level level) {
+        return logger.isLoggable(level);
+    }
+
+    void log(Level level, String pattern) {
+        if (logger.isLoggable(level)) {
+            put(level, pattern, 0, 0, null, 0, null, 0, null, 0);
+        }
+    }
+
+    void log(Level level, String pattern, Object a) {
+        if (logger.isLoggable(level)) {
+            put(level, pattern, 1, 0, a, 0, null, 0, null, 0);
+        }
+    }
+
+    void log(Level level, String pattern, long a) {
+        if (logger.isLoggable(level)) {
+            put(level, pattern, 1, 1, null, a, null, 0, null, 0);
+        }
+    }
+
+    void log(Level level, String pattern, Object a, long b) {
+        if (logger.isLoggable(level)) {
+            put(level, pattern, 2, 2, a, 0, null, b, null, 0);
+        }
+    }
+
+    void log(Level level, String pattern, long a, long b) {
+        if (logger.isLoggable(level)) {
+            put(level, pattern, 2, 3, null, a, null, b, null, 0);
+        }
+    }
+
+    void log(Level level, String pattern, Object a, long b, Object c) {
+        if (logger.isLoggable(level)) {
+            put(level, pattern, 3, 2, a, 0, null, b, c, 0);
+        }
+    }
+
+    void log(Level level, String pattern, long a, long b, Object c) {
+        if (logger.isLoggable(level)) {
+            put(level, pattern, 3, 3, null, a, null, b, c, 0);
+        }
+    }
+
+    void log(Level level, String pattern, Object a, Object b, long c) {
+        if (logger.isLoggable(level)) {
+            put(level, pattern, 3, 4, a, 0, b, 0, null, c);
+        }
+    }
+
+    /**
+     * @return the number of events dropped because the ring was full
+     */
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Waits until every event logged before the call has been passed to the
+     * logger, or until the trace has been closed.
+     */
+    void flush() throws InterruptedException {
+        long logged = tail.get();
+        synchronized (flushed) {
+            flushing++;
+            try {
+                while (head < logged && !stopped) {
+                    flushed.wait();
+                }
+            } finally {
+                flushing--;
+            }
+        }
+    }
+
+    /**
+     * Logs the events in the ring and stops the background thread. Events
+     * logged once the trace is closed are dropped.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            closed = true;
+            thread = drainer;
+        }
+        if (thread == null) {
+            stopped = true;
+            wakeFlushing();
+            return;
+        }
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void start() {
+        if (drainer == null && !closed) {
+            Thread thread = new Thread(this::drain, "trace-drainer");
+            thread.setDaemon(true);
+            drainer = thread;
+            thread.start();
+        }
+    }
+
+    private void put(Level level, String pattern, int arguments, int numbers,
+            Object o0, long n0, Object o1, long n1, Object o2, long n2) {
+        if (closed) {
+            dropped.increment();
+            return;
+        }
+        Slot slot;
+        long sequence = tail.get();
+        while (true) {
+            slot = ring[(int) sequence & mask];
+            long free = slot.sequence - sequence;
+            if (free == 0) {
+                if (tail.compareAndSet(sequence, sequence + 1)) {
+                    break;
+                }
+                sequence = tail.get();
+            } else if (free < 0) {
+                // the drainer is still a lap behind
+                dropped.increment();
+                return;
+            } else {
+                sequence = tail.get();
+            }
+        }
+        slot.level = level;
+        slot.pattern = pattern;
+        slot.arguments = arguments;
+        slot.numbers = numbers;
+        slot.o[0] = o0;
+        slot.o[1] = o1;
+        slot.o[2] = o2;
+        slot.n[0] = n0;
+        slot.n[1] = n1;
+        slot.n[2] = n2;
+        slot.sequence = sequence + 1;
+        Thread thread = drainer;
+        if (thread == null) {
+            start();
+        } else if (sleeping) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Slot slot = ring[(int) head & mask];
+            if (slot.sequence != head + 1) {
+                reportDropped();
+                if (closed && tail.get() == head) {
+                    break;
+                }
+                sleeping = true;
+                // an event published before sleeping was set is seen here
+                if (slot.sequence != head + 1 && !closed) {
+                    LockSupport.park(this);
+                }
+                sleeping = false;
+                continue;
+            }
+            Level level = slot.level;
+            format(slot);
+            slot.o[0] = slot.o[1] = slot.o[2] = null;
+            slot.pattern = null;
+            long next = head + 1;
+            slot.sequence = head + ring.length;
+            try {
+                logger.logp(level, sourceClass, null, message.toString());
+            } catch (RuntimeException e) {
+                // a failing handler must not stop the tracing of later events
+            }
+            // only now, so that flush waits for the event to be logged
+            head = next;
+            if (flushing > 0) {
+                wakeFlushing();
+            }
+        }
+        stopped = true;
+        wakeFlushing();
+    }
+
+    private void wakeFlushing() {
+        synchronized (flushed) {
+            flushed.notifyAll();
+        }
+    }
+
+    private void format(Slot slot) {
+        message.setLength(0);
+        message.append(prefix);
+        String pattern = slot.pattern;
+        int from = 0;
+        for (int i = 0; i < slot.arguments; i++) {
+            int at = pattern.indexOf("{}", from);
+            if (at < 0) {
+                break;
+            }
+            message.append(pattern, from, at);
+            if ((slot.numbers & (1 << i)) != 0) {
+                message.append(slot.n[i]);
+            } else {
+                message.append(slot.o[i]);
+            }
+            from = at + 2;
+        }
+        message.append(pattern, from, pattern.length());
+        message.append(suffix);
+    }
+
+    private void reportDropped() {
+        long total = dropped.sum();
+        if (total > droppedReported) {
+            logger.warning("Dropped " + (total - droppedReported) + " trace events");
+            droppedReported = total;
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+package auctionhouse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+/**
+ * Tests for tracing events through a ring drained to a logger.
+ */
+public class TraceTest {
+
+    /*
+     * Keeps the messages published to it, after waiting for started to be
+     * counted down.
+     */
+    private static class Recorder extends Handler {
+        final List<String> messages = new ArrayList<String>();
+        final CountDownLatch started = new CountDownLatch(1);
+
+        @Override
+        public void publish(LogRecord record) {
+            try {
+                started.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (messages) {
+                messages.add(record.getLevel() + " " + record.getMessage());
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        List<String> messages() {
+            synchronized (messages) {
+                return new ArrayList<String>(messages);
+            }
+        }
+    }
+
+    private static Logger newLogger(Recorder recorder, Level level) {
+        Logger logger = Logger.getAnonymousLogger();
+        logger.setUseParentHandlers(false);
+        logger.addHandler(recorder);
+        logger.setLevel(level);
+        return logger;
+    }
+
+    @Test
+    public void testFormatsArgumentsInOrder() throws Exception {
+        Recorder recorder = new Recorder();
+        recorder.started.countDown();
+        Trace trace = new Trace(newLogger(recorder, Level.FINE), "Test", "[", "]", 16);
+        trace.log(Level.FINE, "viewCatalog");
+        trace.log(Level.FINE, "registerBuyer {}", "BuyerA");
+        trace.log(Level.FINE, "noteInterest #{} {}", 3, 7);
+        trace.log(Level.FINE, "makeBid {} {} {}", "BuyerA", 7, new Money("12.50"));
+        trace.log(Level.WARNING, "searchCatalog {} {} {}", "bike", null, 20);
+        trace.log(Level.FINE, "closeAuctions {} {} lots", "Auctioneer", 2);
+        trace.flush();
+        List<String> messages = recorder.messages();
+        assertEquals(6, messages.size());
+        assertEquals("FINE [viewCatalog]", messages.get(0));
+        assertEquals("FINE [registerBuyer BuyerA]", messages.get(1));
+        assertEquals("FINE [noteInterest #3 7]", messages.get(2));
+        assertEquals("FINE [makeBid BuyerA 7 " + new Money("12.50") + "]", messages.get(3));
+        assertEquals("WARNING [searchCatalog bike null 20]", messages.get(4));
+        assertEquals("FINE [closeAuctions Auctioneer 2 lots]", messages.get(5));
+        trace.close();
+    }
+
+    @Test
+    public void testSkipsLevelsNotLogged() throws Exception {
+        Recorder recorder = new Recorder();
+        recorder.started.countDown();
+        Trace trace = new Trace(newLogger(recorder, Level.FINE), "Test", "", "", 16);
+        trace.log(Level.FINER, "makeBid {} {} {}", "BuyerA", 7, new Money("12.50"));
+        trace.log(Level.FINE, "openAuction {} {}", "Auctioneer", 7);
+        trace.flush();
+        assertEquals(1, recorder.messages().size());
+        assertEquals("FINE openAuction Auctioneer 7", recorder.messages().get(0));
+        trace.close();
+    }
+
+    @Test
+    public void testDropsEventsWhenFullAndReportsThem() throws Exception {
+        Recorder recorder = new Recorder();
+        Trace trace = new Trace(newLogger(recorder, Level.FINE), "Test", "", "", 3);
+        // the drainer holds the first event in the handler while the ring,
+        // rounded up to 4, fills behind it
+        trace.log(Level.FINE, "noteInterest #{} {}", 0, 1);
+        while (trace.getDropped() == 0) {
+            trace.log(Level.FINE, "noteInterest #{} {}", 1, 1);
+        }
+        assertTrue(trace.getDropped() >= 1);
+        recorder.started.countDown();
+        trace.flush();
+        long logged = recorder.messages().stream().filter(m -> m.startsWith("FINE")).count();
+        assertTrue(logged >= 4 && logged <= 5);
+        assertEquals("FINE noteInterest #0 1", recorder.messages().get(0));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (recorder.messages().stream().noneMatch(m -> m.startsWith("WARNING Dropped"))
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals("WARNING Dropped " + trace.getDropped() + " trace events",
+                recorder.messages().get(recorder.messages().size() - 1));
+        trace.close();
+    }
+
+    private static long drainers() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().equals("trace-drainer"))
+                .count();
+    }
+
+    @Test
+    public void testStartsNoThreadUntilSomethingIsLogged() throws Exception {
+        Recorder recorder = new Recorder();
+        recorder.started.countDown();
+        long before = drainers();
+        Trace trace = new Trace(newLogger(recorder, Level.OFF), "Test", "", "", 16);
+        trace.log(Level.SEVERE, "makeBid {} {} {}", "BuyerA", 7, new Money("12.50"));
+        trace.flush();
+        assertEquals(before, drainers());
+        trace.close();
+        assertEquals(0, recorder.messages().size());
+    }
+
+    @Test
+    public void testCloseLogsWhatIsQueuedAndStops() throws Exception {
+        Recorder recorder = new Recorder();
+        Trace trace = new Trace(newLogger(recorder, Level.FINE), "Test", "", "", 16);
+        long before = drainers();
+        trace.log(Level.FINE, "openAuction {} {}", "Auctioneer", 7);
+        trace.log(Level.FINE, "closeAuction {} {}", "Auctioneer", 7);
+        assertEquals(before + 1, drainers());
+        recorder.started.countDown();
+        trace.close();
+        assertEquals(2, recorder.messages().size());
+        assertEquals(before, drainers());
+        // events after closing are dropped, and flushing does not wait for them
+        trace.log(Level.FINE, "openAuction {} {}", "Auctioneer", 8);
+        trace.flush();
+        assertEquals(1, trace.getDropped());
+        assertEquals(2, recorder.messages().size());
+    }
+
+}
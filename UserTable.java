@@ -0,0 +1,68 @@
+package auctionhouse;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registered users of one kind, numbered densely from 0 in the order they
+ * registered.
+ * 
+ * Users are held in an array indexed by id, so the ID-based AuctionHouse
+ * calls find a user without hashing. The name index is only used to
+ * resolve names to ids for the name-based calls. Registration takes a lock;
+ * lookups never do. An id is published by the name index only after its
+ * slot has been filled, so any thread that has been given an id can read
+ * the user.
+ */
+public class UserTable<T extends User> {
+    
+    public static final int NO_ID = -1;
+    
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    private volatile Object[] users = new Object[16];
+    private volatile int size;
+    
+    /**
+     * @return the new user's id, or NO_ID if the name is already registered
+     */
+    public synchronized int register(T user) {
+        if (ids.containsKey(user.getName())) {
+            return NO_ID;
+        }
+        int id = size;
+        if (id == users.length) {
+            Object[] more = new Object[2 * id];
+            System.arraycopy(users, 0, more, 0, id);
+            users = more;
+        }
+        users[id] = user;
+        size = id + 1;
+        ids.put(user.getName(), id);
+        return id;
+    }
+    
+    /**
+     * @return the user with this id, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public T get(int id) {
+        Object[] u = users;
+        if (id < 0 || id >= u.length) {
+            return null;
+        }
+        return (T) u[id];
+    }
+    
+    /**
+     * @return the id of the user with this name, or NO_ID if there is none
+     */
+    public int idOf(String name) {
+        Integer id = ids.get(name);
+        return id == null ? NO_ID : id;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+}